@@ -0,0 +1,407 @@
+package com.challengeandresponse.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Annotation processor that generates a DeepCopier for each class marked DeepCopyable.
+ *
+ * <p>For a class pkg.Foo it writes pkg.Foo$$DeepCopier, which creates the copy with the no-arg constructor and assigns
+ * each field, or, if the class has final fields, passes every field to the constructor that takes them all in
+ * declaration order. Primitives, Strings, boxed values and enums are assigned as they are; anything else is copied
+ * through ReflectiveClone.clone(Object, Map), which uses the generated copier of its class when there is one.
+ * A generic class gets a copier with the same type parameters, so the generated code compiles without rawtypes warnings;
+ * only a copy() that casts to a generic field type suppresses the unchecked warning it cannot avoid.</p>
+ *
+ * <p>Every copier is listed in META-INF/services/com.challengeandresponse.utils.DeepCopier in the class output, along
+ * with those already listed there by earlier compilations, so ReflectiveClone finds it through ServiceLoader rather than by
+ * name. native-image reads those entries, so the copiers need no reflection configuration.</p>
+ *
+ * The processor lives in its own source folder, processor, with its META-INF/services registration, so compiling the
+ * library itself never finds a registration for a class that is not built yet. Build that folder on its own, after the
+ * library, and hand it to javac with -processorpath; JDK 22 and later no longer run processors found on the class path
+ * unless given -proc:full, so name it with -processor as well when in doubt.
+ *
+ * @author jim
+ *
+ */
+@SupportedAnnotationTypes("com.challengeandresponse.utils.DeepCopyable")
+public class DeepCopyProcessor extends AbstractProcessor {
+
+	/** where the copiers are listed for ServiceLoader */
+	static final String SERVICES = "META-INF/services/"+DeepCopier.class.getName();
+
+	/** the binary names of the copiers generated so far in this compilation */
+	private final Set <String> copiers = new TreeSet <String> ();
+
+	/** types whose values are assigned rather than copied, as ReflectiveClone treats them */
+	private static final Set <String> IMMUTABLE = new HashSet <String> (Arrays.asList(
+			"java.lang.String", "java.lang.Byte", "java.lang.Short", "java.lang.Integer", "java.lang.Long",
+			"java.lang.Float", "java.lang.Double", "java.lang.Character", "java.lang.Boolean"));
+
+
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+		for (Element e : round.getElementsAnnotatedWith(DeepCopyable.class)) {
+			if (e.getKind() != ElementKind.CLASS) {
+				error(e, "@DeepCopyable applies to classes only");
+				continue;
+			}
+			try {
+				generate((TypeElement) e);
+			}
+			catch (IOException ioe) {
+				error(e, "cannot write the deep copier: "+ioe.toString());
+			}
+		}
+		if (round.processingOver() && (! copiers.isEmpty())) {
+			try {
+				writeServices();
+			}
+			catch (IOException ioe) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "cannot write "+SERVICES+": "+ioe.toString());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * List the copiers in SERVICES, keeping those an earlier compilation listed there
+	 */
+	private void writeServices()
+	throws IOException {
+		Set <String> all = new TreeSet <String> (copiers);
+		try {
+			FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICES);
+			BufferedReader in = new BufferedReader(new InputStreamReader(existing.openInputStream(), "UTF-8"));
+			try {
+				for (String line; (line = in.readLine()) != null; ) {
+					line = line.trim();
+					if ((line.length() > 0) && (! line.startsWith("#")))
+						all.add(line);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) { // none yet
+		}
+		FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICES);
+		Writer out = file.openWriter();
+		try {
+			for (String copier : all)
+				out.write(copier+"\n");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private void error(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+	}
+
+
+	/**
+	 * Check that 'type' can have a copier, and write it
+	 */
+	private void generate(TypeElement type)
+	throws IOException {
+		if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(type, "@DeepCopyable class cannot be abstract");
+			return;
+		}
+		for (Element t = type; t.getKind().isClass() || t.getKind().isInterface(); t = t.getEnclosingElement()) {
+			if (t.getModifiers().contains(Modifier.PRIVATE)) {
+				error(type, "@DeepCopyable class cannot be private, nor nested in a private class");
+				return;
+			}
+			if ((t.getEnclosingElement().getKind() != ElementKind.PACKAGE) && (! t.getModifiers().contains(Modifier.STATIC))) {
+				error(type, "@DeepCopyable class cannot be an inner class; make it static");
+				return;
+			}
+		}
+		TypeMirror superclass = type.getSuperclass();
+		if (! "java.lang.Object".equals(processingEnv.getTypeUtils().erasure(superclass).toString())) {
+			error(type, "@DeepCopyable class must extend Object directly; use ReflectiveClone for class hierarchies");
+			return;
+		}
+
+		List <VariableElement> fields = new ArrayList <VariableElement> ();
+		boolean anyFinal = false;
+		for (VariableElement f : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			if (f.getModifiers().contains(Modifier.STATIC))
+				continue;
+			if (f.getModifiers().contains(Modifier.PRIVATE)) {
+				error(f, "fields of a @DeepCopyable class cannot be private");
+				return;
+			}
+			anyFinal |= f.getModifiers().contains(Modifier.FINAL);
+			fields.add(f);
+		}
+
+		boolean found = false;
+		for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (c.getModifiers().contains(Modifier.PRIVATE))
+				continue;
+			if (! anyFinal)
+				found |= c.getParameters().isEmpty();
+			else
+				found |= takesAll(c, fields);
+		}
+		if (! found) {
+			error(type, anyFinal
+					? "@DeepCopyable class with final fields needs a non-private constructor taking every instance field in declaration order"
+					: "@DeepCopyable class needs a non-private no-arg constructor");
+			return;
+		}
+		write(type, fields, anyFinal);
+	}
+
+	/**
+	 * @return true if constructor 'c' takes exactly the types of 'fields', in order
+	 */
+	private boolean takesAll(ExecutableElement c, List <VariableElement> fields) {
+		List<? extends VariableElement> params = c.getParameters();
+		if (params.size() != fields.size())
+			return false;
+		for (int i = 0; i < params.size(); i++)
+			if (! processingEnv.getTypeUtils().isSameType(params.get(i).asType(), fields.get(i).asType()))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the expression that copies field 'f' of 'src'
+	 */
+	private String copyOf(VariableElement f) {
+		TypeMirror t = f.asType();
+		String read = "src."+f.getSimpleName();
+		if (t.getKind().isPrimitive())
+			return read;
+		TypeMirror erased = processingEnv.getTypeUtils().erasure(t);
+		if (IMMUTABLE.contains(erased.toString()))
+			return read;
+		if (t.getKind() == TypeKind.DECLARED) {
+			Element e = processingEnv.getTypeUtils().asElement(t);
+			if ((e != null) && (e.getKind() == ElementKind.ENUM))
+				return read;
+		}
+		return "("+t+") ReflectiveClone.clone("+read+", copies)";
+	}
+
+	/**
+	 * @return true if copyOf(f) casts to a type with type arguments or variables, which the compiler cannot check
+	 */
+	private boolean uncheckedCopy(VariableElement f) {
+		TypeMirror t = f.asType();
+		return copyOf(f).startsWith("(") && (! processingEnv.getTypeUtils().erasure(t).toString().equals(t.toString()));
+	}
+
+	/**
+	 * @return the type parameters of 'type' as declared, e.g. "<K extends Comparable<K>, V>", or "" if it has none
+	 */
+	private static String typeParameters(TypeElement type) {
+		StringBuilder sb = new StringBuilder();
+		for (TypeParameterElement p : type.getTypeParameters()) {
+			sb.append((sb.length() == 0) ? "<" : ", ").append(p.getSimpleName());
+			String and = " extends ";
+			for (TypeMirror bound : p.getBounds()) {
+				if ("java.lang.Object".equals(bound.toString()))
+					continue;
+				sb.append(and).append(bound);
+				and = " & ";
+			}
+		}
+		return (sb.length() == 0) ? "" : sb.append(">").toString();
+	}
+
+	/**
+	 * @return the type parameters of 'type' as type arguments, e.g. "<K, V>", or "" if it has none
+	 */
+	private static String typeArguments(TypeElement type) {
+		StringBuilder sb = new StringBuilder();
+		for (TypeParameterElement p : type.getTypeParameters())
+			sb.append((sb.length() == 0) ? "<" : ", ").append(p.getSimpleName());
+		return (sb.length() == 0) ? "" : sb.append(">").toString();
+	}
+
+	private void write(TypeElement type, List <VariableElement> fields, boolean construct)
+	throws IOException {
+		String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		String binary = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simple = (pkg.length() == 0 ? binary : binary.substring(pkg.length()+1)) + DeepCopier.SUFFIX;
+		String name = type.getQualifiedName().toString();
+		String self = name+typeArguments(type); // the class as its copier uses it, with its own type parameters
+		boolean unchecked = false;
+		for (VariableElement f : fields)
+			unchecked |= uncheckedCopy(f);
+
+		JavaFileObject file = processingEnv.getFiler().createSourceFile((pkg.length() == 0 ? "" : pkg+".")+simple, type);
+		Writer out = file.openWriter();
+		try {
+			if (pkg.length() > 0)
+				out.write("package "+pkg+";\n\n");
+			out.write("import com.challengeandresponse.utils.DeepCopier;\n");
+			out.write("import com.challengeandresponse.utils.ReflectiveClone;\n\n");
+			out.write("/** Generated by DeepCopyProcessor from "+name+". Do not edit */\n");
+			out.write("public final class "+simple+typeParameters(type)+" implements DeepCopier <"+self+"> {\n\n");
+			if (unchecked)
+				out.write("\t@SuppressWarnings(\"unchecked\") // a copy has its original's type, which a cast to a generic field type cannot check\n");
+			out.write("\tpublic "+self+" copy("+self+" src, java.util.Map <Object,Object> copies) {\n");
+			if (construct) {
+				out.write("\t\tcopies.put(src, PENDING);\n");
+				out.write("\t\t"+self+" dst = new "+name+(type.getTypeParameters().isEmpty() ? "" : "<>")+"(");
+				for (int i = 0; i < fields.size(); i++)
+					out.write(((i > 0) ? ",\n\t\t\t\t" : "\n\t\t\t\t")+copyOf(fields.get(i)));
+				out.write(");\n");
+				out.write("\t\tcopies.put(src, dst);\n");
+			}
+			else {
+				out.write("\t\t"+self+" dst = new "+name+(type.getTypeParameters().isEmpty() ? "" : "<>")+"();\n");
+				out.write("\t\tcopies.put(src, dst);\n");
+				for (VariableElement f : fields)
+					out.write("\t\tdst."+f.getSimpleName()+" = "+copyOf(f)+";\n");
+			}
+			out.write("\t\treturn dst;\n");
+			out.write("\t}\n\n");
+			out.write("}\n");
+		}
+		finally {
+			out.close();
+		}
+		copiers.add((pkg.length() == 0 ? "" : pkg+".")+simple);
+	}
+
+
+
+	/**
+	 * @return the field 'name' of 'c', made accessible. For testing
+	 */
+	private static java.lang.reflect.Field field(Class<?> c, String name)
+	throws NoSuchFieldException {
+		java.lang.reflect.Field f = c.getDeclaredField(name);
+		f.setAccessible(true);
+		return f;
+	}
+
+	// for testing: compile some DeepCopyable classes with this processor, and clone them
+	public static void main(String[] args)
+	throws Exception {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null) {
+			System.out.println("SKIPPED: no compiler in this runtime");
+			return;
+		}
+		File dir = new File(System.getProperty("java.io.tmpdir"), "deepcopy"+System.nanoTime());
+		File src = new File(dir, "test");
+		src.mkdirs();
+		Writer w = new FileWriter(new File(src, "Holder.java"));
+		w.write("package test;\n"
+				+"import com.challengeandresponse.utils.DeepCopyable;\n"
+				+"@DeepCopyable public class Holder {\n"
+				+"	int n; String s; int[] numbers; String[] words; Holder next; Point point; Thread.State state;\n"
+				+"	public Holder() {}\n"
+				+"	@DeepCopyable public static class Point {\n"
+				+"		final int x; final int[] y;\n"
+				+"		Point(int x, int[] y) { this.x = x; this.y = y; }\n"
+				+"	}\n"
+				+"	@DeepCopyable public static class Box <T extends Comparable<T>, U> {\n"
+				+"		T value; U[] others; java.util.Map<String,T> byName; int[] plain;\n"
+				+"		public Box() {}\n"
+				+"	}\n"
+				+"}\n");
+		w.close();
+		w = new FileWriter(new File(src, "Bad.java"));
+		w.write("package test;\n"
+				+"@com.challengeandresponse.utils.DeepCopyable public class Bad { private int hidden; }\n");
+		w.close();
+
+		StandardJavaFileManager files = javac.getStandardFileManager(null, null, null);
+		JavaCompiler.CompilationTask task = javac.getTask(null, files, null,
+				Arrays.asList("-d", dir.getPath(), "-classpath", System.getProperty("java.class.path"), "-proc:only"),
+				null, files.getJavaFileObjects(new File(src, "Bad.java")));
+		task.setProcessors(Arrays.asList(new DeepCopyProcessor()));
+		System.out.println((! task.call()) ? "OK: private field rejected (the error above is expected)" : "FAIL: private field accepted");
+
+		task = javac.getTask(null, files, null,
+				Arrays.asList("-d", dir.getPath(), "-classpath", System.getProperty("java.class.path"), "-Xlint:all", "-Werror"),
+				null, files.getJavaFileObjects(new File(src, "Holder.java")));
+		task.setProcessors(Arrays.asList(new DeepCopyProcessor()));
+		if (! task.call()) {
+			System.out.println("FAIL: Holder did not compile without warnings");
+			return;
+		}
+		files.close();
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()}, DeepCopyProcessor.class.getClassLoader());
+		Class<?> holderClass = loader.loadClass("test.Holder");
+		Class<?> pointClass = loader.loadClass("test.Holder$Point");
+		System.out.println((loader.loadClass("test.Holder"+DeepCopier.SUFFIX) != null) && (loader.loadClass("test.Holder$Point"+DeepCopier.SUFFIX) != null) ? "OK: copiers generated" : "FAIL: copiers missing");
+		List <String> listed = java.nio.file.Files.readAllLines(new File(dir, SERVICES).toPath());
+		System.out.println(listed.equals(Arrays.asList("test.Holder$$DeepCopier", "test.Holder$Box$$DeepCopier", "test.Holder$Point$$DeepCopier"))
+				? "OK: copiers listed for ServiceLoader" : "FAIL: listed "+listed);
+
+		Object holder = holderClass.getConstructor().newInstance();
+		int[] shared = new int[] {1, 2, 3};
+		field(holderClass, "n").setInt(holder, 42);
+		field(holderClass, "s").set(holder, "text");
+		field(holderClass, "numbers").set(holder, shared);
+		field(holderClass, "words").set(holder, new String[] {"a", "b"});
+		field(holderClass, "next").set(holder, holder);
+		field(holderClass, "state").set(holder, Thread.State.NEW);
+		java.lang.reflect.Constructor<?> pc = pointClass.getDeclaredConstructor(int.class, int[].class);
+		pc.setAccessible(true);
+		field(holderClass, "point").set(holder, pc.newInstance(Integer.valueOf(7), shared));
+
+		// Point has final fields, which reflective cloning cannot set: only the generated copier can clone it
+		Object copy = ReflectiveClone.clone(holder);
+		Object point = field(holderClass, "point").get(copy);
+		Object numbers = field(holderClass, "numbers").get(copy);
+		System.out.println((copy != holder) && (field(holderClass, "n").getInt(copy) == 42) ? "OK: copied" : "FAIL: not copied");
+		System.out.println((field(holderClass, "next").get(copy) == copy) ? "OK: cycle preserved" : "FAIL: cycle not preserved");
+		System.out.println((numbers != shared) && (field(pointClass, "y").get(point) == numbers) ? "OK: shared array copied once" : "FAIL: sharing lost");
+		System.out.println((field(pointClass, "x").getInt(point) == 7) ? "OK: final fields copied through the constructor" : "FAIL: final field");
+		Object words = field(holderClass, "words").get(copy);
+		System.out.println(Arrays.equals((String[]) words, new String[] {"a", "b"})
+				&& (words != field(holderClass, "words").get(holder)) ? "OK: array field copied" : "FAIL: array field");
+		System.out.println((field(holderClass, "state").get(copy) == Thread.State.NEW) ? "OK: enum assigned" : "FAIL: enum");
+
+		Class<?> boxClass = loader.loadClass("test.Holder$Box");
+		Object box = boxClass.getConstructor().newInstance();
+		field(boxClass, "value").set(box, "v");
+		field(boxClass, "plain").set(box, shared);
+		Object boxCopy = ReflectiveClone.clone(box);
+		System.out.println((boxCopy != box) && "v".equals(field(boxClass, "value").get(boxCopy)) && (field(boxClass, "plain").get(boxCopy) != shared)
+				? "OK: generic class copied by a generic copier, compiled with no warnings" : "FAIL: generic class");
+		loader.close();
+	}
+
+}
@@ -1,52 +1,626 @@
 package com.challengeandresponse.utils;
 
+import java.io.IOException;
+import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Turns objects into text for chat messages.
+ *
+ * <p>Each class is rendered by a Renderer. The Renderer for a class is worked out the first time an object of that
+ * class is rendered, and remembered, so rendering more objects of the class is one lookup. Renderers registered with
+ * registerRenderer() take precedence over the built-in ones, which handle Maps (key=value), Lists and other
+ * Collections, arrays, and Strings and boxed values. Anything else is rendered with toString().</p>
+ *
+ * <p>Maps, Collections and arrays inside one another are rendered as toString() would show them ([a, b] and {k=v}),
+ * by the renderers rather than by toString(), so a collection that contains itself is shown as (cycle) instead of
+ * overflowing the stack. Limits can cap the characters, the elements per container and the nesting depth rendered,
+ * and pages() renders one page at a time, so only what is actually sent is rendered.</p>
+ *
+ * @author jim
+ *
+ */
 public class ChatUtils {
 
+	/**
+	 * Renders one kind of object
+	 */
+	public interface Renderer {
+		/**
+		 * Append 'o' to 'out'
+		 * @param separator the separator the caller asked for, to place between the parts of a composite object
+		 * @throws IOException from 'out', which must be let through: it is also how rendering stops at a character limit
+		 */
+		public void render(Object o, String separator, Appendable out)
+		throws IOException;
+	}
+
+
+	/**
+	 * Caps on how much of an object is rendered. A cap of 0 or less means no cap
+	 */
+	public static final class Limits {
+		/** no caps at all */
+		public static final Limits NONE = new Limits(0, 0, 0);
+
+		final int maxChars;
+		final int maxElements;
+		final int maxDepth;
+
+		/**
+		 * @param maxChars most characters rendered in all, including a closing "..." when the rest is cut off
+		 * @param maxElements most elements rendered from any one Map, Collection or array, after which "..." stands for the rest
+		 * @param maxDepth most levels of containers inside the top-level one that are rendered; deeper ones are shown as [...] or {...}
+		 */
+		public Limits(int maxChars, int maxElements, int maxDepth) {
+			if ((maxChars > 0) && (maxChars <= MORE.length()))
+				throw new IllegalArgumentException("maxChars must leave room for more than \""+MORE+"\"");
+			this.maxChars = maxChars;
+			this.maxElements = maxElements;
+			this.maxDepth = maxDepth;
+		}
+	}
+
+	/** stands in for whatever a limit cut off */
+	private static final String MORE = "...";
+
+
+	/** registered renderers, by the class or interface they were registered for */
+	private static final ConcurrentHashMap <Class<?>,Renderer> registered = new ConcurrentHashMap <Class<?>,Renderer> ();
+	/** the renderer resolved for each class rendered so far. Replaced whenever a renderer is registered */
+	private static volatile ClassValue <Renderer> resolved = newCache();
+
+
+	/**
+	 * Render objects of class 'type', its subclasses and, for an interface, its implementations with 'renderer'.
+	 * The renderer registered for the nearest superclass wins, then one registered for an interface.
+	 * @param renderer the renderer, or null to go back to the built-in rendering
+	 */
+	public static void registerRenderer(Class<?> type, Renderer renderer) {
+		if (renderer == null)
+			registered.remove(type);
+		else
+			registered.put(type, renderer);
+		resolved = newCache(); // classes resolved before may now resolve differently
+	}
+
+	private static ClassValue <Renderer> newCache() {
+		return new ClassValue <Renderer> () {
+			protected Renderer computeValue(Class<?> type) {
+				return resolve(type);
+			}
+		};
+	}
+
+	/**
+	 * @return the renderer for 'type': a registered one for it or its nearest superclass, else one registered for
+	 * any interface it implements, else a built-in one
+	 */
+	private static Renderer resolve(Class<?> type) {
+		ObjectUtils.TypeInfo info = ObjectUtils.typeInfo(type);
+		if (! registered.isEmpty()) {
+			Renderer r = registered.get(type);
+			if (r != null)
+				return r;
+			for (Class<?> c : info.getSuperclasses()) {
+				r = registered.get(c);
+				if (r != null)
+					return r;
+			}
+			for (Class<?> i : info.getInterfaces()) {
+				r = registered.get(i);
+				if (r != null)
+					return r;
+			}
+		}
+		if (type.isArray())
+			return ARRAY;
+		if (info.isA(Map.class))
+			return MAP;
+		if (info.isA(Collection.class))
+			return COLLECTION;
+		if (info.isA(CharSequence.class))
+			return CHARS;
+		return TO_STRING;
+	}
+
+
+	/** Strings and other CharSequences, appended as they are */
+	private static final Renderer CHARS = new Renderer() {
+		public void render(Object o, String separator, Appendable out)
+		throws IOException {
+			out.append((CharSequence) o);
+		}
+	};
+
+	/** DEFAULT: just call toString() on the thing - we don't have a converter here for it. Boxed whole numbers going to a StringBuilder are formatted straight into it */
+	private static final Renderer TO_STRING = new Renderer() {
+		public void render(Object o, String separator, Appendable out)
+		throws IOException {
+			if ((out instanceof StringBuilder) && ((o instanceof Integer) || (o instanceof Long) || (o instanceof Short) || (o instanceof Byte)))
+				((StringBuilder) out).append(((Number) o).longValue());
+			else
+				out.append(o.toString());
+		}
+	};
+
+	/**
+	 * The built-in renderer for containers. At the top level each element is followed by the separator;
+	 * nested ones are shown as [a, b] or {k=v}. Keys need not be Strings
+	 */
+	private static final class ContainerRenderer implements Renderer {
+		public void render(Object o, String separator, Appendable out)
+		throws IOException {
+			ChatUtils.render(o, new Context(out, separator, Limits.NONE), true);
+		}
+	}
+
+	/** Lists and other Collections */
+	private static final Renderer COLLECTION = new ContainerRenderer();
+	/** Arrays, of objects or primitives */
+	private static final Renderer ARRAY = new ContainerRenderer();
+	/** Maps: key=value */
+	private static final Renderer MAP = new ContainerRenderer();
+
+
 	/**
 	 * "do the right thing" to print out objects of various kinds.
-	 * This method handles Maps (Key = Value), List and String objects
+	 * This method handles Maps (Key = Value), Lists, arrays and String objects, and objects with a registered Renderer
 	 * @param separator the character to place between objects from a Map or List, e.g. a linefeed
 	 */
 	public static String objectToString(Object o, String separator) {
-		StringBuffer sb = new StringBuffer();
-		if (o == null)
-			return "";
-		else if (o instanceof String)
-			sb.append(o);
-		else if (o instanceof Integer)
-			sb.append( ((Integer)o).toString());
-		else if (o instanceof Long)
-			sb.append( ((Long)o).toString());
-		else if (o instanceof Short)
-			sb.append( ((Short)o).toString());
-		else if (o instanceof Double)
-			sb.append( ((Double)o).toString());
-		else if (o instanceof Float)
-			sb.append( ((Float)o).toString());
-		else if (o instanceof Byte)
-			sb.append( ((Byte)o).toString());
-		else if (o instanceof List) {
-			Iterator it = ((List) o).iterator();
-			while (it.hasNext()) 
-				sb.append(it.next()).append(separator);
-		}
-		else if (o instanceof Map) {
-			Map oMap = (Map) o;
-			Set ss = oMap.keySet();
-			Iterator it = ss.iterator();
-			while (it.hasNext()) {
-				String key = (String) it.next();
-				sb.append(key+"="+oMap.get(key)+separator);
-			}
-		}
-		// DEFAULT: just call toString() on the thing - we don't have a converter here for it
-		else {
-			sb.append(o.toString());
+		StringBuilder sb = new StringBuilder();
+		try {
+			objectToString(o, separator, sb);
+		}
+		catch (IOException e) { // a StringBuilder never throws it
+			throw new RuntimeException("cannot render object: "+e.toString());
 		}
 		return sb.toString();
 	}
 
+	/**
+	 * As objectToString(Object,String), but written straight to 'out' piece by piece, without building the whole
+	 * result or any per-line String first. 'out' can be a StringBuilder, a Writer (a socket's, or a log's) or a CharBuffer,
+	 * so a large Map or List can be streamed in constant memory.
+	 * @param separator the character to place between objects from a Map or List, e.g. a linefeed
+	 * @param out where the result goes
+	 * @throws IOException if 'out' throws it
+	 */
+	public static void objectToString(Object o, String separator, Appendable out)
+	throws IOException {
+		objectToString(o, separator, out, Limits.NONE);
+	}
+
+	/**
+	 * As objectToString(Object,String), rendering no more than 'limits' allow
+	 */
+	public static String objectToString(Object o, String separator, Limits limits) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			objectToString(o, separator, sb, limits);
+		}
+		catch (IOException e) { // a StringBuilder never throws it
+			throw new RuntimeException("cannot render object: "+e.toString());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * As objectToString(Object,String,Appendable), rendering no more than 'limits' allow.
+	 * Rendering stops as soon as the character limit is reached, so a huge object costs no more than what is written
+	 * @throws IOException if 'out' throws it
+	 */
+	public static void objectToString(Object o, String separator, Appendable out, Limits limits)
+	throws IOException {
+		Bounded bounded = (limits.maxChars > 0) ? new Bounded(out, limits.maxChars) : null;
+		try {
+			render(o, new Context((bounded != null) ? bounded : out, separator, limits), true);
+			if (bounded != null)
+				bounded.finish();
+		}
+		catch (Full e) { // the character limit was reached, and the "..." written
+		}
+	}
+
+	/**
+	 * Render 'o' lazily, a page at a time: each call to next() renders only as many of the top-level elements as it
+	 * takes to fill a page. Pages are at most 'pageChars' long, and are never split inside a surrogate pair.
+	 * Together the pages make up what objectToString(o, separator, limits) would return.
+	 * @param pageChars most characters in a page, at least 2
+	 */
+	public static Iterator <String> pages(Object o, String separator, int pageChars, Limits limits) {
+		if (pageChars < 2)
+			throw new IllegalArgumentException("pages must hold at least 2 characters");
+		return new Pager(o, separator, pageChars, limits);
+	}
+
+
+	/**
+	 * What one rendering needs to carry down into nested containers
+	 */
+	private static final class Context {
+		final Appendable out;
+		final String separator;
+		final Limits limits;
+		/** the containers being rendered, outermost first: meeting one of these again is a cycle */
+		final IdentityHashMap <Object,Object> path = new IdentityHashMap <Object,Object> ();
+		int depth = -1; // the top-level container is at depth 0
+
+		Context(Appendable out, String separator, Limits limits) {
+			this.out = out;
+			this.separator = separator;
+			this.limits = limits;
+		}
+	}
+
+	/**
+	 * Render 'o' in 'c'. Only the top-level object is rendered with separators; null renders as nothing at the top and as "null" below it
+	 */
+	private static void render(Object o, Context c, boolean top)
+	throws IOException {
+		if (o == null) {
+			if (! top)
+				c.out.append("null");
+			return;
+		}
+		Renderer r = resolved.get(o.getClass());
+		if (! (r instanceof ContainerRenderer)) {
+			r.render(o, c.separator, c.out);
+			return;
+		}
+		boolean map = (r == MAP);
+		if ((! top) && (c.limits.maxDepth > 0) && (c.depth >= c.limits.maxDepth)) {
+			c.out.append(map ? "{...}" : "[...]");
+			return;
+		}
+		if (c.path.containsKey(o)) {
+			c.out.append("(cycle)");
+			return;
+		}
+		c.path.put(o, o);
+		c.depth++;
+		try {
+			Iterator<?> parts = parts(o, r);
+			if (! top)
+				c.out.append(map ? '{' : '[');
+			for (int n = 0; parts.hasNext(); n++) {
+				Object part = parts.next();
+				if ((! top) && (n > 0))
+					c.out.append(", ");
+				if ((c.limits.maxElements > 0) && (n == c.limits.maxElements)) {
+					c.out.append(MORE);
+					if (top)
+						c.out.append(c.separator);
+					break;
+				}
+				renderPart(part, map, c);
+				if (top)
+					c.out.append(c.separator);
+			}
+			if (! top)
+				c.out.append(map ? '}' : ']');
+		}
+		finally {
+			c.path.remove(o);
+			c.depth--;
+		}
+	}
+
+	/**
+	 * @return the elements of a container: Map entries, Collection elements or array elements
+	 */
+	private static Iterator<?> parts(final Object o, Renderer r) {
+		if (r == MAP)
+			return ((Map<?,?>) o).entrySet().iterator();
+		if (r == COLLECTION)
+			return ((Collection<?>) o).iterator();
+		return new Iterator <Object> () {
+			private final int length = Array.getLength(o);
+			private int index = 0;
+			public boolean hasNext() {
+				return index < length;
+			}
+			public Object next() {
+				if (index >= length)
+					throw new NoSuchElementException();
+				return Array.get(o, index++);
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static void renderPart(Object part, boolean map, Context c)
+	throws IOException {
+		if (map) {
+			Map.Entry<?,?> e = (Map.Entry<?,?>) part;
+			render(e.getKey(), c, false);
+			c.out.append('=');
+			render(e.getValue(), c, false);
+		}
+		else
+			render(part, c, false);
+	}
+
+
+	/**
+	 * Thrown through the renderers, which may be anyone's, to stop rendering once the character limit is reached
+	 */
+	private static final class Full extends IOException {
+		private static final long serialVersionUID = 1L;
+		static final Full INSTANCE = new Full();
+
+		public synchronized Throwable fillInStackTrace() { // thrown often, and never shown
+			return this;
+		}
+	}
+
+	/**
+	 * Passes characters on until 'maxChars' are used up, then writes "..." and throws Full. The last 3 characters
+	 * are held back until more text arrives, or finish() is called: only if more follows than fits are they cut for the "...".
+	 * So text that fits exactly is never cut
+	 */
+	private static final class Bounded implements Appendable {
+		private final Appendable out;
+		private final int maxChars;
+		private int written; // passed on to 'out', never more than maxChars-3 until finish()
+		private final StringBuilder held = new StringBuilder(8);
+
+		Bounded(Appendable out, int maxChars) {
+			this.out = out;
+			this.maxChars = maxChars;
+		}
+
+		public Appendable append(CharSequence csq, int start, int end)
+		throws IOException {
+			if (csq == null)
+				csq = "null";
+			if (written == maxChars)
+				throw Full.INSTANCE;
+			int h = held.length();
+			if (written + h + end - start <= maxChars) {
+				int pass = h + end - start - MORE.length();
+				if ((pass > 0) && Character.isHighSurrogate(charAt(csq, start, pass-1))) // a pair goes on, or is cut, whole
+					pass--;
+				if (pass > 0)
+					passOn(csq, start, pass);
+				held.append(csq, start + Math.max(0, pass-h), end);
+				return this;
+			}
+			int cut = maxChars - MORE.length() - written;
+			if ((cut > 0) && Character.isHighSurrogate(charAt(csq, start, cut-1)))
+				cut--;
+			if (cut > 0)
+				passOn(csq, start, cut);
+			held.setLength(0);
+			written = maxChars;
+			out.append(MORE);
+			throw Full.INSTANCE;
+		}
+
+		/**
+		 * @return the i'th character of what is held followed by csq from 'start'
+		 */
+		private char charAt(CharSequence csq, int start, int i) {
+			return (i < held.length()) ? held.charAt(i) : csq.charAt(start + i - held.length());
+		}
+
+		/**
+		 * Pass on the first 'n' characters of what is held followed by csq from 'start'
+		 */
+		private void passOn(CharSequence csq, int start, int n)
+		throws IOException {
+			int h = held.length();
+			if (n <= h) {
+				out.append(held, 0, n);
+				held.delete(0, n);
+			}
+			else {
+				out.append(held);
+				out.append(csq, start, start + n - h);
+				held.setLength(0);
+			}
+			written += n;
+		}
+
+		/**
+		 * Rendering is over without reaching the limit: pass on what is held back
+		 */
+		void finish()
+		throws IOException {
+			if (written == maxChars)
+				return;
+			out.append(held);
+			written += held.length();
+			held.setLength(0);
+		}
+
+		public Appendable append(CharSequence csq)
+		throws IOException {
+			if (csq == null)
+				csq = "null";
+			return append(csq, 0, csq.length());
+		}
+
+		public Appendable append(char ch)
+		throws IOException {
+			return append(String.valueOf(ch), 0, 1);
+		}
+	}
+
+
+	/**
+	 * Renders the top-level elements of an object one at a time, as pages are asked for
+	 */
+	private static final class Pager implements Iterator <String> {
+		private final int pageChars;
+		private final StringBuilder buffer = new StringBuilder();
+		private final Bounded bounded; // or null, with no character limit
+		private final Context context;
+		private Object single;		// a top-level object that is not a container, until it is rendered
+		private Iterator<?> parts;	// the top-level container's elements still to render, or null
+		private boolean map;
+		private int n = 0;
+		private boolean done = false;
+
+		Pager(Object o, String separator, int pageChars, Limits limits) {
+			this.pageChars = pageChars;
+			this.bounded = (limits.maxChars > 0) ? new Bounded(buffer, limits.maxChars) : null;
+			this.context = new Context((bounded != null) ? bounded : buffer, separator, limits);
+			Renderer r = (o == null) ? null : resolved.get(o.getClass());
+			if (r instanceof ContainerRenderer) {
+				parts = parts(o, r);
+				map = (r == MAP);
+				context.path.put(o, o);
+				context.depth = 0;
+			}
+			else
+				single = o;
+		}
+
+		/**
+		 * Render top-level elements until a page is full or there are none left
+		 */
+		private void fill() {
+			try {
+				while ((! done) && (buffer.length() < pageChars)) {
+					if (parts == null) {
+						render(single, context, true);
+						single = null;
+						done = true;
+					}
+					else if (! parts.hasNext())
+						done = true;
+					else {
+						Object part = parts.next();
+						if ((context.limits.maxElements > 0) && (n == context.limits.maxElements)) {
+							context.out.append(MORE).append(context.separator);
+							done = true;
+						}
+						else {
+							renderPart(part, map, context);
+							context.out.append(context.separator);
+							n++;
+						}
+					}
+				}
+				if (done && (bounded != null))
+					bounded.finish();
+			}
+			catch (Full e) {
+				done = true;
+			}
+			catch (IOException e) { // a StringBuilder never throws it, but a renderer may
+				throw new RuntimeException("cannot render object: "+e.toString());
+			}
+		}
+
+		public boolean hasNext() {
+			fill();
+			return buffer.length() > 0;
+		}
+
+		public String next() {
+			if (! hasNext())
+				throw new NoSuchElementException();
+			int cut = Math.min(pageChars, buffer.length());
+			if ((cut < buffer.length()) && Character.isHighSurrogate(buffer.charAt(cut-1)))
+				cut--;
+			String page = buffer.substring(0, cut);
+			buffer.delete(0, cut);
+			return page;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+
+
+	// for testing
+	public static void main(String[] args) {
+		Map <Object,Object> map = new LinkedHashMap <Object,Object> ();
+		map.put("a", Integer.valueOf(1));
+		map.put(Integer.valueOf(2), "two");
+		map.put("c", null);
+		String s = objectToString(map, ";");
+		System.out.println("a=1;2=two;c=null;".equals(s) ? "OK: map with a non-String key" : "FAIL: map rendered as "+s);
+		s = objectToString(Arrays.asList("x", Long.valueOf(2), null), ",");
+		System.out.println("x,2,null,".equals(s) ? "OK: list" : "FAIL: list rendered as "+s);
+		s = objectToString(new int[] {1,2,3}, ",");
+		System.out.println("1,2,3,".equals(s) ? "OK: int array" : "FAIL: int array rendered as "+s);
+		s = objectToString(Double.valueOf(3.5), ",");
+		System.out.println("3.5".equals(s) ? "OK: Double" : "FAIL: Double rendered as "+s);
+
+		registerRenderer(Number.class, new Renderer() {
+			public void render(Object o, String separator, Appendable out)
+			throws IOException {
+				out.append('#').append(o.toString());
+			}
+		});
+		s = objectToString(Arrays.asList(Integer.valueOf(1), "b"), ",");
+		System.out.println("#1,b,".equals(s) ? "OK: registered renderer used for list elements" : "FAIL: rendered as "+s);
+		registerRenderer(Number.class, null);
+		s = objectToString(Integer.valueOf(7), ",");
+		System.out.println("7".equals(s) ? "OK: built-in rendering restored" : "FAIL: rendered as "+s);
+
+		List <Object> self = new ArrayList <Object> ();
+		self.add("a");
+		self.add(Arrays.asList("b", self));
+		s = objectToString(self, ";");
+		System.out.println("a;[b, (cycle)];".equals(s) ? "OK: nested cycle" : "FAIL: nested cycle rendered as "+s);
+		s = objectToString(Arrays.asList(Arrays.asList(Arrays.asList("deep"))), ";", new Limits(0, 0, 1));
+		System.out.println("[[...]];".equals(s) ? "OK: depth limit" : "FAIL: depth limit rendered as "+s);
+		s = objectToString(new int[] {1,2,3,4,5}, ",", new Limits(0, 3, 0));
+		System.out.println("1,2,3,...,".equals(s) ? "OK: element limit" : "FAIL: element limit rendered as "+s);
+		s = objectToString(Collections.singletonList(new int[] {1,2,3}), ",", new Limits(0, 2, 0));
+		System.out.println("[1, 2, ...],".equals(s) ? "OK: element limit on a nested array" : "FAIL: nested element limit rendered as "+s);
+		s = objectToString("abcdefghij", ",", new Limits(8, 0, 0));
+		System.out.println("abcde...".equals(s) ? "OK: character limit" : "FAIL: character limit rendered as "+s);
+		s = objectToString("abcdefgh", ",", new Limits(8, 0, 0));
+		System.out.println("abcdefgh".equals(s) ? "OK: text that fits the limit exactly is not cut" : "FAIL: exact fit rendered as "+s);
+		s = objectToString(Arrays.asList("ab", "cd", "e"), "", new Limits(5, 0, 0));
+		System.out.println("abcde".equals(s) ? "OK: exact fit over several appends" : "FAIL: exact fit over several appends rendered as "+s);
+		s = objectToString(Arrays.asList("ab", "cd", "ef"), "", new Limits(5, 0, 0));
+		System.out.println("ab...".equals(s) ? "OK: one char over the limit is cut" : "FAIL: one over rendered as "+s);
+		s = objectToString("abcd\uD83D\uDE00ghi", ",", new Limits(8, 0, 0));
+		System.out.println("abcd...".equals(s) ? "OK: surrogate pair not split by the cut" : "FAIL: surrogate cut rendered as "+s);
+		StringBuilder paged = new StringBuilder();
+		for (Iterator <String> i = pages("abcdefgh", ",", 3, new Limits(8, 0, 0)); i.hasNext(); )
+			paged.append(i.next());
+		System.out.println("abcdefgh".equals(paged.toString()) ? "OK: pages hold back nothing at the end" : "FAIL: pages joined to "+paged);
+
+		// a huge list is only rendered as far as the limit, and paging renders it a page at a time
+		final int[] read = new int[1];
+		List <Integer> huge = new AbstractList <Integer> () {
+			public Integer get(int i) {
+				read[0]++;
+				return Integer.valueOf(i);
+			}
+			public int size() {
+				return 10000000;
+			}
+		};
+		s = objectToString(huge, ",", new Limits(20, 0, 0));
+		System.out.println((s.length() == 20) && s.endsWith("...") && (read[0] < 20) ? "OK: huge list cut off early" : "FAIL: "+s+" after reading "+read[0]);
+		read[0] = 0;
+		Iterator <String> pages = pages(huge, ",", 10, Limits.NONE);
+		String first = pages.next();
+		String second = pages.next();
+		System.out.println("0,1,2,3,4,".equals(first) && "5,6,7,8,9,".equals(second) && (read[0] < 20) ? "OK: lazy pages" : "FAIL: pages "+first+" "+second+" after reading "+read[0]);
+		StringBuilder joined = new StringBuilder();
+		for (Iterator <String> i = pages(map, ";", 3, new Limits(0, 2, 0)); i.hasNext(); ) {
+			String page = i.next();
+			if (page.length() > 3)
+				joined.append("TOO LONG");
+			joined.append(page);
+		}
+		s = joined.toString();
+		System.out.println(s.equals(objectToString(map, ";", new Limits(0, 2, 0))) ? "OK: pages add up to the whole" : "FAIL: pages joined to "+s);
+	}
 
 }
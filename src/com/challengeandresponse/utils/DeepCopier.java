@@ -0,0 +1,32 @@
+package com.challengeandresponse.utils;
+
+import java.util.Map;
+
+/**
+ * Deep-copies objects of one class. Implementations are generated by DeepCopyProcessor for classes marked
+ * DeepCopyable, named after the class with "$$DeepCopier" appended, and listed in META-INF/services, where
+ * ReflectiveClone finds them through ServiceLoader.
+ *
+ * @author jim
+ *
+ */
+public interface DeepCopier <T> {
+
+	/** appended to a class's binary name to name its copier */
+	public static final String SUFFIX = "$$DeepCopier";
+
+	/**
+	 * Put in 'copies' for an object whose copy is still being constructed, so a reference back to it, which cannot
+	 * be satisfied, is reported rather than followed forever
+	 */
+	public static final Object PENDING = new Object();
+
+	/**
+	 * @param src the object to copy, never null
+	 * @param copies maps each object already copied in this traversal to its copy. The copier adds 'src', and copies
+	 * its fields through ReflectiveClone.clone(Object, Map), so shared references stay shared in the copy
+	 * @return the deep copy of 'src'
+	 */
+	public T copy(T src, Map <Object,Object> copies);
+
+}
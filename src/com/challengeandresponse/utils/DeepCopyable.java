@@ -0,0 +1,29 @@
+package com.challengeandresponse.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class for which DeepCopyProcessor generates a DeepCopier at compile time. ReflectiveClone uses the generated
+ * copier instead of reflection, so the class is copied with plain field reads and writes from the first call: its
+ * fields and constructor are never opened with setAccessible(), and there is no warm-up. The copier is found through
+ * ServiceLoader, from the META-INF/services entry the processor writes, which native-image follows without extra configuration.
+ *
+ * <p>The class must:<br />
+ * - extend Object directly, and not be abstract or a non-static inner class<br />
+ * - have no private instance fields, since the copier is generated into the same package and copies fields directly<br />
+ * - have a non-private no-arg constructor, or, if it has final fields, a non-private constructor taking every
+ * instance field in declaration order<br />
+ * The processor reports a compile error for a class that does not.</p>
+ *
+ * @author jim
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface DeepCopyable {
+}
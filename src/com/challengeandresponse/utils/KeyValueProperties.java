@@ -1,7 +1,23 @@
 package com.challengeandresponse.utils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * Extension of Properties, providing transparent mappings to primitive data types
@@ -11,6 +27,13 @@ import java.util.Properties;
  * - optional dictionary: Strings in the dictionary, if any, are the only permissible keys. If there is nothing in the dictionary, then keys are not checked<br />
  * - setters and getters for primitives that automatically convert to Strings on set() and back to primitives on get(): int, long, double, boolean<br />
  * - overridden put/get methods to help assure that only key,value pairs comprised of String,String are accepted<br />
+ * - transactions: a group of puts and removes that is published all at once, or not at all<br />
+ * - every change, by whichever Map or Properties method, is checked against the dictionary, counted and logged.
+ * The key, value and entry views are read-only: their mutators do nothing<br />
+ * - copy-on-write contents: every change, and every transaction as a whole, is made to a copy of the contents, which
+ * is then published with one volatile write. Readers read the published contents without locking, so they never wait
+ * for writers, transactions or the log, and never see a transaction half-applied. Each change copies the contents,
+ * so this suits namespaces that are read far more than they are written<br />
  * 
  * 
  * @author jim
@@ -20,6 +43,30 @@ public class KeyValueProperties extends Properties {
 
 	private HashSet <String> dictionary;
 	
+	/**
+	 * The published contents, String keys to String values. Never changed once published: writers, holding the lock, copy
+	 * it, change the copy and publish that. Readers go through this reference alone. The table underneath Properties is
+	 * kept the same, under the lock, for the Properties and Hashtable methods not overridden here
+	 */
+	private transient volatile HashMap <Object,Object> contents = new HashMap <Object,Object> ();
+	
+	/** Bumped each time new contents are published */
+	private transient volatile long version;
+	
+	/** Counts changes, so a checkpoint can tell whether these properties changed since it last saved them. Guarded by 'this' */
+	private transient long changes;
+	/** What the last checkpoint saved: the change count it saw, and the segment file it wrote. Managed by PropertyThang2 */
+	transient long savedChanges = -1;
+	transient String segmentFile;
+	transient int segmentId = -1;
+	
+	/** If set, puts and removes are written to this log, under the name logNamespace */
+	private transient PropertyLog log;
+	private transient String logNamespace;
+	
+	/** If set, gets, puts and dictionary rejections are counted here. Set by PropertyThang2 */
+	transient PropertyMetrics metrics;
+	
 	public KeyValueProperties()
 	throws IllegalArgumentException {
 		this.dictionary = new HashSet<String>();
@@ -45,14 +92,291 @@ public class KeyValueProperties extends Properties {
 	 * @returns the previous value of the specified key in this PropertyThang2, or null if it did not have one.
 	 */
 	private String internalPut(String key, String value)
+	throws IllegalArgumentException {
+		checkKey(key);
+		// holding the table's own lock keeps the change count, and the log order, in step with the table. Waiting for the disk happens outside it
+		String previous;
+		long seq;
+		synchronized (this) {
+			previous = (String) contents.get(key);
+			seq = change(key, value);
+		}
+		commitLog(seq);
+		return previous;
+	}
+	
+	/**
+	 * @throws NullPointerException if key is null
+	 * @throws IllegalArgumentException if the dictionary contains one or more entries and the key is not in the dictionary
+	 */
+	private void checkKey(String key)
 	throws IllegalArgumentException {
 		if (key == null)
 			throw  new NullPointerException("key cannot be null");		
 		if (dictionary.size() > 0) {
-			if (! dictionary.contains(key))
+			if (! dictionary.contains(key)) {
+				countRejection();
 				throw new IllegalArgumentException("Key not in dictionary: "+key);
+			}
+		}
+	}
+	
+	/**
+	 * Set 'key' to 'value', or remove it if 'value' is null, publish the change, count it and log it. The caller holds the
+	 * lock, and has checked the key. Removing a key that is not there changes nothing, and is neither counted nor logged
+	 * @return the log sequence number to commit once the lock is released, 0 if there is no log or nothing changed
+	 */
+	private long change(String key, String value) {
+		if ((value == null) && (! contents.containsKey(key)))
+			return 0;
+		HashMap <Object,Object> next = new HashMap <Object,Object> (contents);
+		apply(next, key, value);
+		publish(next);
+		if (value == null)
+			countRemoves(1);
+		else
+			countPuts(1);
+		changes++;
+		if (log == null)
+			return 0;
+		return (value == null) ? log.appendRemove(logNamespace, key) : log.appendPut(logNamespace, key, PropertyValue.STRING, 0L, value);
+	}
+	
+	/**
+	 * Apply several changes to a copy of the contents, publish them at once, count them and log them as one record.
+	 * The caller holds the lock, and has checked the keys and left out removes of keys that are not there
+	 * @param values the new value of each key, or null where it is removed
+	 * @return the log sequence number to commit once the lock is released, 0 if there is no log or nothing changed
+	 */
+	private long change(List <String> keys, List <String> values) {
+		if (keys.isEmpty())
+			return 0;
+		HashMap <Object,Object> next = new HashMap <Object,Object> (contents);
+		int puts = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			apply(next, keys.get(i), values.get(i));
+			if (values.get(i) != null)
+				puts++;
+		}
+		publish(next);
+		countPuts(puts);
+		countRemoves(keys.size() - puts);
+		changes++;
+		// still holding the lock, so the log has changes in the order they were published
+		return (log == null) ? 0 : log.appendBatch(logNamespace, keys, values);
+	}
+	
+	/**
+	 * Make one change to 'next', the unpublished copy, and to the table underneath. The caller holds the lock
+	 */
+	private void apply(HashMap <Object,Object> next, String key, String value) {
+		if (value == null) {
+			next.remove(key);
+			super.remove(key);
+		}
+		else {
+			next.put(key, value);
+			super.put(key, value);
+		}
+	}
+	
+	/**
+	 * Publish 'next' as the contents, with one volatile write. The caller holds the lock, and never changes 'next' again
+	 */
+	private void publish(HashMap <Object,Object> next) {
+		contents = next;
+		version++;
+	}
+	
+	/**
+	 * Wait, without holding the lock, until the log has the change numbered 'seq' on disk
+	 */
+	private void commitLog(long seq) {
+		if ((log != null) && (seq != 0))
+			log.commit(seq);
+	}
+	
+	/**
+	 * @return 'o' as a String
+	 * @throws IllegalArgumentException if it is not one
+	 */
+	private static String string(Object o, String method) {
+		if (! (o instanceof String))
+			throw new IllegalArgumentException(method+"() method in PrimitiveProperties requires String key and String value");
+		return (String) o;
+	}
+	
+	/**
+	 * @return 'o' as a String, or null if it is null
+	 * @throws IllegalArgumentException if it is something else
+	 */
+	private static String stringOrNull(Object o, String method) {
+		return (o == null) ? null : string(o, method);
+	}
+	
+	
+	/**
+	 * Start a transaction on these properties. Nothing it does is visible until commit()
+	 * @return a new, empty transaction
+	 */
+	public Transaction begin() {
+		return new Transaction(this);
+	}
+	
+	/**
+	 * Readers that need several keys to be consistent with each other can check this before and after reading them:
+	 * if it changed, a change was published in between and they should read again. Or they can read them all from
+	 * snapshot(), which needs no check. Readers never block
+	 * @return the number of times new contents have been published
+	 */
+	public long version() {
+		return version;
+	}
+	
+	/**
+	 * @return every key and value as they are now, read-only, and never changed by later puts, removes or transactions.
+	 * Costs nothing: it is the published contents themselves
+	 */
+	public Map <Object,Object> snapshot() {
+		return new ReadonlyMap <Object,Object> (contents);
+	}
+	
+	
+	/**
+	 * Apply a transaction's changes. The dictionary is checked for every key before anything changes, and the changes
+	 * go to the log as a single record, so they are applied all together or not at all, in memory and on recovery
+	 */
+	private void commit(Transaction t)
+	throws IllegalArgumentException {
+		if (dictionary.size() > 0) {
+			for (Map.Entry <String,String> e : t.writes.entrySet())
+				if ((e.getValue() != null) && (! dictionary.contains(e.getKey()))) {
+					countRejection();
+					throw new IllegalArgumentException("Key not in dictionary: "+e.getKey());
+				}
+		}
+		long seq;
+		synchronized (this) {
+			HashMap <Object,Object> current = contents;
+			List <String> keys = new ArrayList <String> ();
+			List <String> values = new ArrayList <String> ();
+			if (t.cleared) {
+				for (Object key : current.keySet())
+					if (! t.writes.containsKey(key)) {
+						keys.add((String) key);
+						values.add(null);
+					}
+			}
+			for (Map.Entry <String,String> e : t.writes.entrySet()) {
+				if ((e.getValue() == null) && (! current.containsKey(e.getKey())))
+					continue; // removing a key that is not there changes nothing
+				keys.add(e.getKey());
+				values.add(e.getValue());
+			}
+			seq = change(keys, values);
+		}
+		commitLog(seq);
+	}
+	
+	
+	/**
+	 * @return the number of changes made so far. Compare with savedChanges to see whether these properties are dirty
+	 */
+	synchronized long changes() {
+		return changes;
+	}
+	
+	/**
+	 * Write every key and value to 'out' as a count followed by (key,value) pairs
+	 * @return the change count the written contents correspond to
+	 */
+	synchronized long writeTo(DataOutputStream out)
+	throws IOException {
+		HashMap <Object,Object> current = contents;
+		out.writeInt(current.size());
+		for (Map.Entry <Object,Object> e : current.entrySet()) {
+			PropertyLog.writeString(out, (String) e.getKey());
+			PropertyLog.writeString(out, (String) e.getValue());
 		}
-		return (String) super.put(key,value);
+		return changes;
+	}
+	
+	/**
+	 * Add the keys and values written by writeTo(). They are not checked against the dictionary, logged or counted as changes
+	 */
+	synchronized void readFrom(DataInputStream in)
+	throws IOException {
+		HashMap <Object,Object> next = new HashMap <Object,Object> (contents);
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			apply(next, PropertyLog.readString(in), PropertyLog.readString(in));
+		publish(next);
+	}
+	
+	/**
+	 * Deserializing fills in the table underneath, but not the transient contents; publish them from the table
+	 */
+	private void readObject(ObjectInputStream in)
+	throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		synchronized (this) {
+			HashMap <Object,Object> table = new HashMap <Object,Object> ();
+			for (Map.Entry <Object,Object> e : super.entrySet())
+				table.put(e.getKey(), e.getValue());
+			contents = table;
+		}
+	}
+	
+	
+	/**
+	 * Log every subsequent put and remove to 'log', under the name 'namespace'
+	 */
+	void setLog(PropertyLog log, String namespace) {
+		this.logNamespace = namespace;
+		this.log = log;
+	}
+	
+	/**
+	 * @return a rough size in bytes of the keys, values and table entries
+	 */
+	long estimatedBytes() {
+		long bytes = 0;
+		for (Map.Entry <Object,Object> e : contents.entrySet())
+			bytes += 112 + 2L*(((String) e.getKey()).length() + ((String) e.getValue()).length());
+		return bytes;
+	}
+	
+	/**
+	 * Read one value from the published contents. Readers never lock, so they never wait for writers, transactions or the log
+	 * @return the value of 'key', or null if it is not set
+	 */
+	private String read(String key) {
+		Object value = contents.get(key);
+		return (value instanceof String) ? (String) value : null;
+	}
+	
+	private void countGet() {
+		PropertyMetrics m = metrics;
+		if ((m != null) && m.enabled)
+			m.gets.increment();
+	}
+	
+	private void countPuts(int n) {
+		PropertyMetrics m = metrics;
+		if ((m != null) && m.enabled)
+			m.puts.add(n);
+	}
+	
+	private void countRemoves(int n) {
+		PropertyMetrics m = metrics;
+		if ((m != null) && m.enabled)
+			m.removes.add(n);
+	}
+	
+	private void countRejection() {
+		PropertyMetrics m = metrics;
+		if ((m != null) && m.enabled)
+			m.dictionaryRejections.increment();
 	}
 	
 	
@@ -119,9 +443,11 @@ public class KeyValueProperties extends Properties {
 	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
 	 */
 	public String getStringProperty(String key, String dflt) {
+		countGet();
 		try {
-			if (containsKey(key))
-				return (getProperty(key));
+			String value = read(key);
+			if (value != null)
+				return value;
 		}
 		catch (Exception e) {
 		}
@@ -135,9 +461,11 @@ public class KeyValueProperties extends Properties {
 	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
 	 */
 	public int getIntProperty(String key, int dflt) {
+		countGet();
 		try {
-			if (containsKey(key))
-				return Integer.parseInt(getProperty(key));
+			String value = read(key);
+			if (value != null)
+				return Integer.parseInt(value);
 		}
 		catch (Exception e) { // class cast exception (wrong type), or null pointer exception (not there)			
 		}
@@ -151,9 +479,11 @@ public class KeyValueProperties extends Properties {
 	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
 	 */
 	public long getLongProperty(String key, long dflt) {
+		countGet();
 		try {
-			if (containsKey(key))
-				return Long.parseLong(getProperty(key));
+			String value = read(key);
+			if (value != null)
+				return Long.parseLong(value);
 		}
 		catch (Exception e) { // class cast exception (wrong type), or null pointer exception (not there)			
 		}
@@ -167,9 +497,11 @@ public class KeyValueProperties extends Properties {
 	 * @return The key object, or 'dflt' if it was not found or if 'key' was null
 	 */
 	public double getDoubleProperty(String key, double dflt) {
+		countGet();
 		try {
-			if (containsKey(key))
-				return Double.parseDouble(getProperty(key));
+			String value = read(key);
+			if (value != null)
+				return Double.parseDouble(value);
 		}
 		catch (Exception e) { // class cast exception (wrong type), or null pointer exception (not there)
 		}
@@ -183,9 +515,11 @@ public class KeyValueProperties extends Properties {
 	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
 	 */
 	public boolean getBooleanProperty(String key, boolean dflt) {
+		countGet();
 		try {
-			if (containsKey(key)) 
-				return Boolean.parseBoolean(getProperty(key));
+			String value = read(key);
+			if (value != null)
+				return Boolean.parseBoolean(value);
 		}
 		catch (Exception e) { // class cast exception (wrong type), or null pointer exception (not there)
 		}
@@ -193,13 +527,24 @@ public class KeyValueProperties extends Properties {
 	}
 	
 	
+	/**
+	 * Get a property, never seeing a transaction half-applied
+	 * @return the value of 'key', or null if it is not set
+	 */
+	@Override
+	public String getProperty(String key) {
+		String value = read(key);
+		return ((value == null) && (defaults != null)) ? defaults.getProperty(key) : value;
+	}
+	
+	
 	//// these delegate methods override the base HashTable's calls that don't enforce String params
 	@Override
 	public Object get(Object key) {
 		if (! (key instanceof String))
 			throw new IllegalArgumentException("get() method in PrimitiveProperties requires String key");
-		else
-			return super.get((String) key);
+		countGet();
+		return contents.get(key);
 	}
 
 	@Override
@@ -214,14 +559,348 @@ public class KeyValueProperties extends Properties {
 	public Object remove(Object key) {
 		if (! (key instanceof String))
 			throw new IllegalArgumentException("remove() method in PrimitiveProperties requires String key");
-		else
-			return super.remove((String) key);
+		Object previous;
+		long seq;
+		synchronized (this) {
+			previous = contents.get(key);
+			if (previous == null)
+				return null;
+			seq = change((String) key, null);
+		}
+		commitLog(seq);
+		return previous;
+	}
+
+	/**
+	 * Remove every property, as one logged transaction
+	 */
+	@Override
+	public void clear() {
+		Transaction t = begin();
+		t.clear();
+		t.commit();
+	}
+
+	/**
+	 * Put every entry of 't', as one logged transaction
+	 * @throws IllegalArgumentException if a key or value is not a String, or a key is not in a non-empty dictionary. Nothing is changed
+	 */
+	@Override
+	public void putAll(Map<?,?> t) {
+		Transaction all = begin();
+		for (Map.Entry<?,?> e : t.entrySet())
+			all.setProperty(string(e.getKey(), "putAll"), string(e.getValue(), "putAll"));
+		all.commit();
+	}
+
+	@Override
+	public Object putIfAbsent(Object key, Object value) {
+		String k = string(key, "putIfAbsent");
+		String v = string(value, "putIfAbsent");
+		checkKey(k);
+		Object previous;
+		long seq = 0;
+		synchronized (this) {
+			previous = contents.get(k);
+			if (previous == null)
+				seq = change(k, v);
+		}
+		commitLog(seq);
+		return previous;
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		if ((! (key instanceof String)) || (value == null))
+			return false;
+		long seq;
+		synchronized (this) {
+			if (! value.equals(contents.get(key)))
+				return false;
+			seq = change((String) key, null);
+		}
+		commitLog(seq);
+		return true;
+	}
+
+	@Override
+	public Object replace(Object key, Object value) {
+		String k = string(key, "replace");
+		String v = string(value, "replace");
+		Object previous;
+		long seq;
+		synchronized (this) {
+			previous = contents.get(k);
+			if (previous == null)
+				return null;
+			seq = change(k, v);
+		}
+		commitLog(seq);
+		return previous;
+	}
+
+	@Override
+	public boolean replace(Object key, Object oldValue, Object newValue) {
+		String k = string(key, "replace");
+		String v = string(newValue, "replace");
+		long seq;
+		synchronized (this) {
+			Object previous = contents.get(k);
+			if ((previous == null) || (! previous.equals(oldValue)))
+				return false;
+			seq = change(k, v);
+		}
+		commitLog(seq);
+		return true;
+	}
+
+	@Override
+	public Object computeIfAbsent(Object key, Function<? super Object, ?> mappingFunction) {
+		String k = string(key, "computeIfAbsent");
+		long seq;
+		String v;
+		synchronized (this) {
+			Object previous = contents.get(k);
+			if (previous != null)
+				return previous;
+			v = stringOrNull(mappingFunction.apply(k), "computeIfAbsent");
+			if (v == null)
+				return null;
+			checkKey(k);
+			seq = change(k, v);
+		}
+		commitLog(seq);
+		return v;
+	}
+
+	@Override
+	public Object computeIfPresent(Object key, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+		String k = string(key, "computeIfPresent");
+		long seq;
+		String v;
+		synchronized (this) {
+			Object previous = contents.get(k);
+			if (previous == null)
+				return null;
+			v = stringOrNull(remappingFunction.apply(k, previous), "computeIfPresent");
+			seq = change(k, v);
+		}
+		commitLog(seq);
+		return v;
+	}
+
+	@Override
+	public Object compute(Object key, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+		String k = string(key, "compute");
+		long seq = 0;
+		String v;
+		synchronized (this) {
+			Object previous = contents.get(k);
+			v = stringOrNull(remappingFunction.apply(k, previous), "compute");
+			if (v != null)
+				checkKey(k);
+			if ((v != null) || (previous != null))
+				seq = change(k, v);
+		}
+		commitLog(seq);
+		return v;
+	}
+
+	@Override
+	public Object merge(Object key, Object value, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+		String k = string(key, "merge");
+		String given = string(value, "merge");
+		long seq = 0;
+		String v;
+		synchronized (this) {
+			Object previous = contents.get(k);
+			v = (previous == null) ? given : stringOrNull(remappingFunction.apply(previous, given), "merge");
+			if (v != null)
+				checkKey(k);
+			if ((v != null) || (previous != null))
+				seq = change(k, v);
+		}
+		commitLog(seq);
+		return v;
+	}
+
+	/**
+	 * Replace every value, as one logged transaction
+	 */
+	@Override
+	public void replaceAll(BiFunction<? super Object, ? super Object, ?> function) {
+		long seq;
+		synchronized (this) {
+			List <String> keys = new ArrayList <String> ();
+			List <String> values = new ArrayList <String> ();
+			for (Map.Entry <Object,Object> e : contents.entrySet()) {
+				keys.add((String) e.getKey());
+				values.add(string(function.apply(e.getKey(), e.getValue()), "replaceAll"));
+			}
+			seq = change(keys, values);
+		}
+		commitLog(seq);
+	}
+
+	//// readers: all read the published contents, without locking
+	@Override
+	public Object getOrDefault(Object key, Object defaultValue) {
+		Object value = get(key);
+		return (value == null) ? defaultValue : value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return contents.containsKey(key);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return contents.containsValue(value);
+	}
+
+	@Override
+	public boolean contains(Object value) {
+		return contents.containsValue(value);
+	}
+
+	@Override
+	public int size() {
+		return contents.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return contents.isEmpty();
+	}
+
+	@Override
+	public Enumeration <Object> keys() {
+		return Collections.enumeration(contents.keySet());
+	}
+
+	@Override
+	public Enumeration <Object> elements() {
+		return Collections.enumeration(contents.values());
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super Object, ? super Object> action) {
+		contents.forEach(action);
+	}
+
+	/** @return the keys as they are now, read-only: removing through them does nothing */
+	@Override
+	public Set <Object> keySet() {
+		return new ReadonlySet <Object> (contents.keySet());
+	}
+
+	/** @return the values as they are now, read-only: removing through them does nothing */
+	@Override
+	public Collection <Object> values() {
+		return new ReadonlyCollection <Object> (contents.values());
+	}
+
+	/** @return the entries as they are now, read-only: removing them or setting their values does nothing */
+	@Override
+	public Set <Map.Entry<Object,Object>> entrySet() {
+		return new ReadonlyMap.EntrySet <Object,Object> (contents.entrySet());
 	}
 
 	
 	
 	
 	
+	/**
+	 * <p>A group of puts and removes on one KeyValueProperties, published together by commit() or dropped by rollback().
+	 * Until then the changes are only held here, and readers of the properties see none of them.</p>
+	 * 
+	 * <p>For example, an agent can stash its entire state before a shutdown or suspend with<br />
+	 * <code>Transaction t = kvp.begin(); t.clear(); t.setProperty(...); ... t.commit();</code><br />
+	 * and whatever happens, the properties hold either the old state or the new one.</p>
+	 * 
+	 * A transaction is used by one thread, and only once.
+	 */
+	public static class Transaction {
+		private final KeyValueProperties target;
+		private final LinkedHashMap <String,String> writes = new LinkedHashMap <String,String> (); // null value: remove
+		private boolean cleared = false;
+		private boolean done = false;
+		
+		private Transaction(KeyValueProperties target) {
+			this.target = target;
+		}
+		
+		private void put(String key, String value) {
+			if (done)
+				throw new IllegalStateException("transaction already committed or rolled back");
+			if (key == null)
+				throw new NullPointerException("key cannot be null");
+			writes.put(key, value);
+		}
+		
+		/** Set a named int property when the transaction commits */
+		public void setProperty(String key, int value) {
+			put(key, String.valueOf(value));
+		}
+		
+		/** Set a named long property when the transaction commits */
+		public void setProperty(String key, long value) {
+			put(key, String.valueOf(value));
+		}
+		
+		/** Set a named double property when the transaction commits */
+		public void setProperty(String key, double value) {
+			put(key, String.valueOf(value));
+		}
+		
+		/** Set a named String property when the transaction commits */
+		public void setProperty(String key, String value) {
+			put(key, String.valueOf(value));
+		}
+		
+		/** Set a named boolean property when the transaction commits */
+		public void setProperty(String key, boolean value) {
+			put(key, String.valueOf(value));
+		}
+		
+		/** Remove a property when the transaction commits */
+		public void remove(String key) {
+			put(key, null);
+		}
+		
+		/** Remove every property the transaction does not set itself, when it commits */
+		public void clear() {
+			if (done)
+				throw new IllegalStateException("transaction already committed or rolled back");
+			writes.clear();
+			cleared = true;
+		}
+		
+		/**
+		 * Publish all the changes at once
+		 * @throws IllegalArgumentException if the dictionary contains one or more entries and a key set is not in it. Nothing is changed
+		 * @throws IllegalStateException if the transaction was already committed or rolled back
+		 */
+		public void commit()
+		throws IllegalArgumentException {
+			if (done)
+				throw new IllegalStateException("transaction already committed or rolled back");
+			done = true;
+			target.commit(this);
+		}
+		
+		/**
+		 * Drop all the changes
+		 */
+		public void rollback() {
+			done = true;
+			writes.clear();
+		}
+	}
+	
+	
+	
 	// for testing
 	public static void main(String[] args) {
 		KeyValueProperties pt = new KeyValueProperties();
@@ -268,6 +947,102 @@ public class KeyValueProperties extends Properties {
 			System.out.println("OK: put() threw IllegalArgumentException for non-String key");
 		}
 
+		try {
+			pt.putAll(Collections.singletonMap("notindictionary", "12"));
+			System.out.println("FAIL: putAll() did not check the dictionary");
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println((! pt.containsKey("notindictionary")) ? "OK: putAll() checked the dictionary" : "FAIL: putAll() put a key not in the dictionary");
+		}
+		pt.keySet().remove("STRING");
+		pt.entrySet().iterator().next().setValue("changed");
+		System.out.println("hey".equals(pt.getProperty("STRING")) && (! pt.containsValue("changed")) ? "OK: views are read-only" : "FAIL: changed through a view");
+
+		KeyValueProperties state = new KeyValueProperties();
+		state.setProperty("A", 1);
+		state.setProperty("B", 2);
+		Transaction t = state.begin();
+		t.clear();
+		t.setProperty("A", 10);
+		t.setProperty("C", 30);
+		System.out.println((state.getIntProperty("A",-1) == 1) ? "OK: uncommitted change not visible" : "FAIL: uncommitted change visible");
+		long before = state.version();
+		Map <Object,Object> old = state.snapshot();
+		t.commit();
+		System.out.println(((state.getIntProperty("A",-1) == 10) && (! state.containsKey("B")) && (state.getIntProperty("C",-1) == 30))
+				? "OK: committed state is {A=10, C=30}" : "FAIL: committed state is "+state);
+		System.out.println((state.version() == before+1) ? "OK: one commit publishes once" : "FAIL: version went from "+before+" to "+state.version());
+		System.out.println("1".equals(old.get("A")) && "2".equals(old.get("B")) && (old.size() == 2) ? "OK: snapshot unchanged by the commit" : "FAIL: snapshot changed to "+old);
+		Transaction r = state.begin();
+		r.remove("A");
+		r.rollback();
+		System.out.println(state.containsKey("A") ? "OK: rolled back remove did nothing" : "FAIL: rolled back remove happened");
+
+		// a reader must never see one transaction's A with another's B
+		final KeyValueProperties pair = new KeyValueProperties();
+		pair.setProperty("A", 0);
+		pair.setProperty("B", 0);
+		Thread writer = new Thread() {
+			public void run() {
+				for (int i = 1; i <= 20000; i++) {
+					Transaction w = pair.begin();
+					w.setProperty("A", i);
+					w.setProperty("B", -i);
+					w.commit();
+				}
+			}
+		};
+		writer.start();
+		int torn = 0;
+		while (writer.isAlive()) {
+			// one snapshot holds one transaction's A and B
+			Map <Object,Object> both = pair.snapshot();
+			if (Integer.parseInt((String) both.get("A")) != -Integer.parseInt((String) both.get("B")))
+				torn++;
+			// as version() asks: reads of several keys between which the version did not change come from one transaction
+			long v = pair.version();
+			int a = pair.getIntProperty("A", 0);
+			int b = pair.getIntProperty("B", 0);
+			if ((pair.version() == v) && (a != -b))
+				torn++;
+		}
+		System.out.println((torn == 0) ? "OK: no torn reads between transactions" : "FAIL: "+torn+" torn reads");
+
+		// a writer holding the table, as one does while it appends to the log, must not hold up readers
+		final boolean[] held = new boolean[1];
+		Thread holder = new Thread() {
+			public void run() {
+				synchronized (pair) {
+					synchronized (held) {
+						held[0] = true;
+						held.notifyAll();
+					}
+					try {
+						Thread.sleep(2000);
+					}
+					catch (InterruptedException e) {
+					}
+				}
+			}
+		};
+		holder.start();
+		synchronized (held) {
+			while (! held[0])
+				try {
+					held.wait();
+				}
+				catch (InterruptedException e) {
+				}
+		}
+		long start = System.nanoTime();
+		pair.getIntProperty("A", 0);
+		pair.getProperty("B");
+		pair.containsKey("A");
+		pair.size();
+		pair.keySet().size();
+		pair.snapshot().get("A");
+		System.out.println((System.nanoTime()-start < 1000000000L) ? "OK: readers do not wait for a writer" : "FAIL: reader waited for a writer");
+
 		
 	}
 
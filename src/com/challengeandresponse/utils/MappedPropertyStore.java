@@ -0,0 +1,688 @@
+package com.challengeandresponse.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * The off-heap storage behind MappedPropertyThang: every namespace's typed properties, kept in two memory-mapped files.
+ *
+ * <p>The data file ("name.dat") holds one record per stored value: the namespace, key and String value as UTF-16 chars,
+ * and the type tag and raw bits of a primitive value. Records are only appended. A primitive value, or a String of the
+ * same length, is overwritten in place, otherwise a new record is appended and the old one is left as garbage.
+ * Removed properties leave garbage too. Once garbage is over half the data file (and over COMPACT_MIN bytes), the next put
+ * compacts the store: the live records are copied to a new data file, with a new index pointing at them.</p>
+ *
+ * <p>The index file ("name.idx") is an open-addressing hash table of 16-byte slots, each holding the hash of
+ * (namespace,key) and the offset of its record. Lookups compare the stored chars against the caller's Strings
+ * directly, so a read allocates nothing on the heap unless it returns a String. The index is rebuilt into a table
+ * twice the size when it is 3/4 full.</p>
+ *
+ * <p>Compactions and rehashes never write over a file that is mapped: a mapping lasts until it is garbage collected,
+ * and on some systems (Windows) a mapped file cannot be replaced or deleted. Instead the new files get the next
+ * generation number, "name.dat.3" and "name.idx.3" (generation 0 is plain "name.dat" and "name.idx"), and the small
+ * unmapped file "name.gen", which names the generations in use, is replaced atomically to switch to them. Files of other
+ * generations are deleted once unmapped, or, if that fails, the next time the store is opened. A crash leaves either
+ * the old files or the new ones in use, never a mix.</p>
+ *
+ * Both files are mapped in chunks of at most 1GB, so stores can grow past the 2GB limit of a single MappedByteBuffer.
+ * Everything that changes is written straight into the mapped files, so reopening the files is all it takes to restart.
+ *
+ * MT-safety: safe for use from multiple concurrent threads within one JVM. Reads share a lock, writes take it exclusively.
+ * Open a given file from one store at a time.
+ *
+ * @author jim
+ *
+ */
+final class MappedPropertyStore {
+
+	private static final int DATA_MAGIC = 0x50544d44; // "PTMD"
+	private static final int INDEX_MAGIC = 0x50544d49; // "PTMI"
+
+	private static final int DATA_HEADER = 16;	// magic, int generation, long write position
+	private static final int INDEX_HEADER = 32;	// magic, int generation, long capacity, long count, long used (count + removed slots)
+	private static final int H_GENERATION = 4;	// in both files: the generation in the file's name, checked at open
+	private static final int SLOT = 16;			// int hash, unused, long record offset (EMPTY or REMOVED or an offset)
+	private static final long EMPTY = 0L;
+	private static final long REMOVED = -1L;
+	private static final long INITIAL_CAPACITY = 1024;
+	private static final long COMPACT_MIN = 1L << 20; // garbage below this is never worth a compaction
+
+	// record layout: int nsLen, int keyLen, byte type (+3 unused), int stringLen, long bits, then the chars of namespace, key, string
+	private static final int REC_NS_LEN = 0;
+	private static final int REC_KEY_LEN = 4;
+	private static final int REC_TYPE = 8;
+	private static final int REC_STRING_LEN = 12;
+	private static final int REC_BITS = 16;
+	private static final int REC_CHARS = 24;
+
+	private final File base;
+	private final File generationFile; // names the generations of the data file and index in use
+	private int dataGeneration;
+	private int indexGeneration;
+	private Region data;
+	private Region index;
+	private long capacity;
+	private long count;
+	private long used;
+	private long writePosition;
+	private long garbage; // bytes of the data file not held by a live record
+
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+	/**
+	 * Open the store kept in the files base.dat and base.idx, creating them if they do not exist
+	 * @throws IOException if the files cannot be opened or are not property store files
+	 */
+	MappedPropertyStore(File base)
+	throws IOException {
+		this.base = base;
+		this.generationFile = new File(base.getPath()+".gen");
+		readGenerations();
+		deleteOtherGenerations();
+		boolean exists = dataFile(dataGeneration).exists() && indexFile(indexGeneration).exists();
+		data = new Region(dataFile(dataGeneration));
+		index = new Region(indexFile(indexGeneration));
+		if (exists) {
+			if ((data.getInt(0) != DATA_MAGIC) || (index.getInt(0) != INDEX_MAGIC))
+				throw new IOException("not a property store: "+base);
+			if ((data.getInt(H_GENERATION) != dataGeneration) || (index.getInt(H_GENERATION) != indexGeneration))
+				throw new IOException("property store is damaged: "+generationFile+" does not match the files it names");
+			readHeaders();
+			long live = 0;
+			for (long i = 0; i < capacity; i++) {
+				long rec = index.getLong(INDEX_HEADER + i*SLOT + 8);
+				if ((rec != EMPTY) && (rec != REMOVED))
+					live += length(rec);
+			}
+			garbage = writePosition - DATA_HEADER - live;
+		}
+		else {
+			data.ensure(DATA_HEADER);
+			data.putInt(0, DATA_MAGIC);
+			writePosition = DATA_HEADER;
+			data.putLong(8, writePosition);
+			capacity = INITIAL_CAPACITY;
+			index.ensure(INDEX_HEADER + capacity*SLOT);
+			writeIndexHeader(index, capacity, 0, 0);
+		}
+	}
+
+
+	private void readHeaders() {
+		writePosition = data.getLong(8);
+		capacity = index.getLong(8);
+		count = index.getLong(16);
+		used = index.getLong(24);
+	}
+
+
+	/**
+	 * @return the index slot holding (namespace,key), or -1 if there is none. Caller holds the lock
+	 */
+	private long find(String namespace, String key, int hash) {
+		long mask = capacity-1;
+		for (long i = hash & mask; ; i = (i+1) & mask) {
+			long slot = INDEX_HEADER + i*SLOT;
+			long rec = index.getLong(slot+8);
+			if (rec == EMPTY)
+				return -1;
+			if ((rec != REMOVED) && (index.getInt(slot) == hash) && matches(rec, namespace, key))
+				return slot;
+		}
+	}
+
+	private boolean matches(long rec, String namespace, String key) {
+		int nsLen = data.getInt(rec+REC_NS_LEN);
+		int keyLen = data.getInt(rec+REC_KEY_LEN);
+		if ((nsLen != namespace.length()) || (keyLen != key.length()))
+			return false;
+		long pos = rec+REC_CHARS;
+		for (int i = 0; i < nsLen; i++, pos += 2)
+			if (data.getChar(pos) != namespace.charAt(i))
+				return false;
+		for (int i = 0; i < keyLen; i++, pos += 2)
+			if (data.getChar(pos) != key.charAt(i))
+				return false;
+		return true;
+	}
+
+	static int hash(String namespace, String key) {
+		int h = namespace.hashCode()*31 + key.hashCode(); // String caches its hash, so this costs nothing after the first time
+		return h ^ (h >>> 16);
+	}
+
+
+	/**
+	 * @return the record offset of (namespace,key), or -1 if it is not stored. Caller holds the read lock
+	 */
+	long record(String namespace, String key) {
+		long slot = find(namespace, key, hash(namespace, key));
+		return (slot < 0) ? -1 : index.getLong(slot+8);
+	}
+
+	byte type(long rec) {
+		return data.get(rec+REC_TYPE);
+	}
+
+	long bits(long rec) {
+		return data.getLong(rec+REC_BITS);
+	}
+
+	String string(long rec) {
+		int nsLen = data.getInt(rec+REC_NS_LEN);
+		int keyLen = data.getInt(rec+REC_KEY_LEN);
+		return readChars(rec+REC_CHARS+2L*(nsLen+keyLen), data.getInt(rec+REC_STRING_LEN));
+	}
+
+	private String readChars(long pos, int len) {
+		char[] c = new char[len];
+		for (int i = 0; i < len; i++, pos += 2)
+			c[i] = data.getChar(pos);
+		return new String(c);
+	}
+
+
+	/**
+	 * Store a typed value, in place if the stored value has the same type (and for Strings the same length). Caller holds the write lock
+	 */
+	void put(String namespace, String key, byte type, long bits, String string)
+	throws IOException {
+		if ((garbage > COMPACT_MIN) && (garbage*2 > writePosition))
+			compact();
+		int hash = hash(namespace, key);
+		long slot = find(namespace, key, hash);
+		if (slot >= 0) {
+			long rec = index.getLong(slot+8);
+			if (data.get(rec+REC_TYPE) == type) {
+				if (type != PropertyValue.STRING) {
+					data.putLong(rec+REC_BITS, bits);
+					return;
+				}
+				if (data.getInt(rec+REC_STRING_LEN) == string.length()) {
+					long pos = rec+REC_CHARS+2L*(namespace.length()+key.length());
+					for (int i = 0; i < string.length(); i++, pos += 2)
+						data.putChar(pos, string.charAt(i));
+					return;
+				}
+			}
+			index.putLong(slot+8, append(namespace, key, type, bits, string));
+			garbage += length(rec);
+			return;
+		}
+
+		if ((used+1)*4 > capacity*3)
+			rehash(capacity*2);
+		long rec = append(namespace, key, type, bits, string);
+		long mask = capacity-1;
+		for (long i = hash & mask; ; i = (i+1) & mask) {
+			slot = INDEX_HEADER + i*SLOT;
+			long r = index.getLong(slot+8);
+			if ((r == EMPTY) || (r == REMOVED)) {
+				if (r == EMPTY)
+					used++;
+				count++;
+				index.putInt(slot, hash);
+				index.putLong(slot+8, rec);
+				writeIndexHeader(index, capacity, count, used);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove (namespace,key). Caller holds the write lock
+	 * @return true if it was stored
+	 */
+	boolean remove(String namespace, String key) {
+		long slot = find(namespace, key, hash(namespace, key));
+		if (slot < 0)
+			return false;
+		garbage += length(index.getLong(slot+8));
+		index.putLong(slot+8, REMOVED);
+		count--;
+		writeIndexHeader(index, capacity, count, used);
+		return true;
+	}
+
+
+	/**
+	 * @return the keys stored in 'namespace'. This scans the whole index. Caller holds the read lock
+	 */
+	List <String> keys(String namespace) {
+		List <String> result = new ArrayList <String> ();
+		for (long i = 0; i < capacity; i++) {
+			long rec = index.getLong(INDEX_HEADER + i*SLOT + 8);
+			if ((rec == EMPTY) || (rec == REMOVED) || (data.getInt(rec+REC_NS_LEN) != namespace.length()))
+				continue;
+			long pos = rec+REC_CHARS;
+			boolean match = true;
+			for (int c = 0; match && (c < namespace.length()); c++, pos += 2)
+				match = (data.getChar(pos) == namespace.charAt(c));
+			if (match)
+				result.add(readChars(pos, data.getInt(rec+REC_KEY_LEN)));
+		}
+		return result;
+	}
+
+
+	/**
+	 * Append a record to the data file. Records never straddle two mapped chunks
+	 * @return the offset of the new record
+	 */
+	private long append(String namespace, String key, byte type, long bits, String string)
+	throws IOException {
+		int stringLen = (string == null) ? 0 : string.length();
+		long length = length(namespace.length(), key.length(), stringLen);
+		if (length > Region.CHUNK)
+			throw new IOException("property too large for a mapped store: "+namespace+":"+key);
+		long rec = writePosition;
+		if ((rec >>> Region.CHUNK_BITS) != ((rec+length-1) >>> Region.CHUNK_BITS))
+			rec = ((rec >>> Region.CHUNK_BITS)+1) << Region.CHUNK_BITS;
+		data.ensure(rec+length);
+		data.putInt(rec+REC_NS_LEN, namespace.length());
+		data.putInt(rec+REC_KEY_LEN, key.length());
+		data.put(rec+REC_TYPE, type);
+		data.putInt(rec+REC_STRING_LEN, stringLen);
+		data.putLong(rec+REC_BITS, bits);
+		long pos = rec+REC_CHARS;
+		for (int i = 0; i < namespace.length(); i++, pos += 2)
+			data.putChar(pos, namespace.charAt(i));
+		for (int i = 0; i < key.length(); i++, pos += 2)
+			data.putChar(pos, key.charAt(i));
+		for (int i = 0; i < stringLen; i++, pos += 2)
+			data.putChar(pos, string.charAt(i));
+		garbage += rec-writePosition; // skipped to start a new chunk
+		writePosition = rec+length;
+		data.putLong(8, writePosition); // published after the record is written
+		return rec;
+	}
+
+	private static long length(int nsLen, int keyLen, int stringLen) {
+		return (REC_CHARS + 2L*(nsLen+keyLen+stringLen) + 7) & ~7L;
+	}
+
+	/**
+	 * @return the length of the record at 'rec', padding included
+	 */
+	private long length(long rec) {
+		return length(data.getInt(rec+REC_NS_LEN), data.getInt(rec+REC_KEY_LEN), data.getInt(rec+REC_STRING_LEN));
+	}
+
+
+	/**
+	 * Copy the live slots into a new index of 'newCapacity' slots, of the next generation, and switch to it
+	 */
+	private void rehash(long newCapacity)
+	throws IOException {
+		int generation = nextGeneration();
+		File f = indexFile(generation);
+		f.delete();
+		Region next = new Region(f);
+		next.ensure(INDEX_HEADER + newCapacity*SLOT);
+		long mask = newCapacity-1;
+		for (long i = 0; i < capacity; i++) {
+			long slot = INDEX_HEADER + i*SLOT;
+			long rec = index.getLong(slot+8);
+			if ((rec == EMPTY) || (rec == REMOVED))
+				continue;
+			int hash = index.getInt(slot);
+			for (long j = hash & mask; ; j = (j+1) & mask) {
+				long to = INDEX_HEADER + j*SLOT;
+				if (next.getLong(to+8) == EMPTY) {
+					next.putInt(to, hash);
+					next.putLong(to+8, rec);
+					break;
+				}
+			}
+		}
+		next.putInt(H_GENERATION, generation);
+		writeIndexHeader(next, newCapacity, count, count);
+		next.force();
+		try {
+			writeGenerations(dataGeneration, generation);
+		}
+		catch (IOException e) {
+			next.close();
+			f.delete();
+			throw e;
+		}
+		Region old = index;
+		int oldGeneration = indexGeneration;
+		index = next;
+		indexGeneration = generation;
+		capacity = newCapacity;
+		used = count;
+		old.close();
+		indexFile(oldGeneration).delete(); // fails while the old mapping is still reachable on some systems; the next open deletes it
+	}
+
+	private static void writeIndexHeader(Region index, long capacity, long count, long used) {
+		index.putLong(8, capacity);
+		index.putLong(16, count);
+		index.putLong(24, used);
+		index.putInt(0, INDEX_MAGIC);
+	}
+
+
+	/**
+	 * Copy the live records into a new data file, with a new index of the same capacity pointing at them, both of the
+	 * next generation, and switch to them. Caller holds the write lock
+	 */
+	private void compact()
+	throws IOException {
+		int generation = nextGeneration();
+		File dataNext = dataFile(generation);
+		File indexNext = indexFile(generation);
+		dataNext.delete();
+		indexNext.delete();
+		Region nextData = new Region(dataNext);
+		Region nextIndex = new Region(indexNext);
+		nextIndex.ensure(INDEX_HEADER + capacity*SLOT);
+		long position = DATA_HEADER;
+		long mask = capacity-1;
+		byte[] buf = new byte[256];
+		for (long i = 0; i < capacity; i++) {
+			long slot = INDEX_HEADER + i*SLOT;
+			long rec = index.getLong(slot+8);
+			if ((rec == EMPTY) || (rec == REMOVED))
+				continue;
+			int length = (int) length(rec);
+			if ((position >>> Region.CHUNK_BITS) != ((position+length-1) >>> Region.CHUNK_BITS))
+				position = ((position >>> Region.CHUNK_BITS)+1) << Region.CHUNK_BITS;
+			if (buf.length < length)
+				buf = new byte[Math.max(length, buf.length*2)];
+			data.get(rec, buf, length);
+			nextData.ensure(position+length);
+			nextData.put(position, buf, length);
+			int hash = index.getInt(slot);
+			for (long j = hash & mask; ; j = (j+1) & mask) {
+				long to = INDEX_HEADER + j*SLOT;
+				if (nextIndex.getLong(to+8) == EMPTY) {
+					nextIndex.putInt(to, hash);
+					nextIndex.putLong(to+8, position);
+					break;
+				}
+			}
+			position += length;
+		}
+		nextData.ensure(DATA_HEADER);
+		nextData.putLong(8, position);
+		nextData.putInt(H_GENERATION, generation);
+		nextData.putInt(0, DATA_MAGIC);
+		nextIndex.putInt(H_GENERATION, generation);
+		writeIndexHeader(nextIndex, capacity, count, count);
+		nextData.force();
+		nextIndex.force();
+		try {
+			writeGenerations(generation, generation);
+		}
+		catch (IOException e) {
+			nextData.close();
+			nextIndex.close();
+			dataNext.delete();
+			indexNext.delete();
+			throw e;
+		}
+		Region oldData = data;
+		Region oldIndex = index;
+		int oldDataGeneration = dataGeneration;
+		int oldIndexGeneration = indexGeneration;
+		data = nextData;
+		index = nextIndex;
+		dataGeneration = generation;
+		indexGeneration = generation;
+		writePosition = position;
+		used = count;
+		garbage = 0;
+		oldData.close();
+		oldIndex.close();
+		dataFile(oldDataGeneration).delete(); // as in rehash(), the next open deletes what cannot be deleted yet
+		indexFile(oldIndexGeneration).delete();
+	}
+
+
+	private File dataFile(int generation) {
+		return new File(base.getPath()+".dat"+((generation == 0) ? "" : "."+generation));
+	}
+
+	private File indexFile(int generation) {
+		return new File(base.getPath()+".idx"+((generation == 0) ? "" : "."+generation));
+	}
+
+	/**
+	 * @return the files of the store as it is now: its data file, index and generation file, which may not exist yet
+	 */
+	File[] files() {
+		return new File[] {dataFile(dataGeneration), indexFile(indexGeneration), generationFile};
+	}
+
+	private int nextGeneration() {
+		return Math.max(dataGeneration, indexGeneration)+1;
+	}
+
+	/**
+	 * Read the generations in use from the generation file, or 0 and 0 if there is none
+	 */
+	private void readGenerations()
+	throws IOException {
+		if (! generationFile.exists()) {
+			dataGeneration = 0;
+			indexGeneration = 0;
+			return;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(generationFile));
+		try {
+			dataGeneration = in.readInt();
+			indexGeneration = in.readInt();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Switch to the data file and index of the given generations, by replacing the generation file atomically.
+	 * The files must be complete and forced to disk
+	 */
+	private void writeGenerations(int dataGeneration, int indexGeneration)
+	throws IOException {
+		File tmp = new File(generationFile.getPath()+".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(dataGeneration);
+			out.writeInt(indexGeneration);
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), generationFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Delete the data files and indexes of generations not in use: left by a compaction or rehash that crashed before
+	 * switching, or replaced by one whose old files could not be deleted while they were still mapped
+	 */
+	private void deleteOtherGenerations() {
+		File dir = base.getAbsoluteFile().getParentFile();
+		String[] names = (dir == null) ? null : dir.list();
+		if (names == null)
+			return;
+		String current1 = dataFile(dataGeneration).getName();
+		String current2 = indexFile(indexGeneration).getName();
+		Pattern ours = Pattern.compile(Pattern.quote(base.getName())+"\\.(dat|idx)(\\.[0-9]+)?|"+Pattern.quote(generationFile.getName()+".tmp"));
+		for (String name : names)
+			if (ours.matcher(name).matches() && (! name.equals(current1)) && (! name.equals(current2)))
+				new File(dir, name).delete();
+	}
+
+
+	/**
+	 * Flush both files to disk
+	 */
+	void force() {
+		data.force();
+		index.force();
+	}
+
+	void close()
+	throws IOException {
+		force();
+		data.close();
+		index.close();
+	}
+
+
+
+	/**
+	 * A file mapped in chunks of at most 1GB. Values read or written must not straddle two chunks.
+	 * The file doubles in size when it needs to grow.
+	 */
+	static final class Region {
+		static final int CHUNK_BITS = 30;
+		static final long CHUNK = 1L << CHUNK_BITS;
+		private static final long MASK = CHUNK-1;
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final FileChannel.MapMode mode;
+		private MappedByteBuffer[] chunks;
+		private long size;
+
+		Region(File f)
+		throws IOException {
+			this(f, false);
+		}
+
+		/**
+		 * @param readOnly map an existing file for reading only
+		 */
+		Region(File f, boolean readOnly)
+		throws IOException {
+			this.file = new RandomAccessFile(f, readOnly ? "r" : "rw");
+			this.channel = file.getChannel();
+			this.mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+			this.chunks = new MappedByteBuffer[0];
+			this.size = 0;
+			if (channel.size() > 0)
+				map(channel.size());
+		}
+
+		void ensure(long needed)
+		throws IOException {
+			if (needed > size)
+				map(Math.max(needed, Math.max(size*2, 4096)));
+		}
+
+		private void map(long newSize)
+		throws IOException {
+			int n = (int) ((newSize+CHUNK-1) >>> CHUNK_BITS);
+			MappedByteBuffer[] next = new MappedByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				long start = ((long) i) << CHUNK_BITS;
+				long len = Math.min(CHUNK, newSize-start);
+				if ((i < chunks.length) && (chunks[i].capacity() == len))
+					next[i] = chunks[i];
+				else
+					next[i] = channel.map(mode, start, len);
+			}
+			chunks = next;
+			size = newSize;
+		}
+
+		private MappedByteBuffer chunk(long pos) {
+			return chunks[(int) (pos >>> CHUNK_BITS)];
+		}
+
+		byte get(long pos)					{ return chunk(pos).get((int) (pos & MASK)); }
+		char getChar(long pos)				{ return chunk(pos).getChar((int) (pos & MASK)); }
+		int getInt(long pos)				{ return chunk(pos).getInt((int) (pos & MASK)); }
+		long getLong(long pos)				{ return chunk(pos).getLong((int) (pos & MASK)); }
+		void put(long pos, byte b)			{ chunk(pos).put((int) (pos & MASK), b); }
+		void putChar(long pos, char c)		{ chunk(pos).putChar((int) (pos & MASK), c); }
+		void putInt(long pos, int i)		{ chunk(pos).putInt((int) (pos & MASK), i); }
+		void putLong(long pos, long l)		{ chunk(pos).putLong((int) (pos & MASK), l); }
+
+		/**
+		 * Copy dst.length bytes starting at 'pos' into 'dst'. Unlike the single-value reads, this may cross chunks
+		 */
+		void get(long pos, byte[] dst) {
+			get(pos, dst, dst.length);
+		}
+
+		/**
+		 * Copy 'length' bytes starting at 'pos' into the start of 'dst'. This may cross chunks
+		 */
+		void get(long pos, byte[] dst, int length) {
+			int done = 0;
+			while (done < length) {
+				ByteBuffer c = chunk(pos).duplicate();
+				int offset = (int) (pos & MASK);
+				int n = Math.min(length-done, c.capacity()-offset);
+				c.position(offset);
+				c.get(dst, done, n);
+				done += n;
+				pos += n;
+			}
+		}
+
+		/**
+		 * Copy the first 'length' bytes of 'src' to 'pos'. This may cross chunks
+		 */
+		void put(long pos, byte[] src, int length) {
+			int done = 0;
+			while (done < length) {
+				ByteBuffer c = chunk(pos).duplicate();
+				int offset = (int) (pos & MASK);
+				int n = Math.min(length-done, c.capacity()-offset);
+				c.position(offset);
+				c.put(src, done, n);
+				done += n;
+				pos += n;
+			}
+		}
+
+		long size() {
+			return size;
+		}
+
+		void force() {
+			if (mode == FileChannel.MapMode.READ_ONLY)
+				return;
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i].force();
+		}
+
+		/**
+		 * Close the file but keep the mappings, which stay valid until they are garbage collected, for a Region
+		 * other threads may still be reading
+		 */
+		void closeFile()
+		throws IOException {
+			channel.close();
+			file.close();
+		}
+
+		/**
+		 * Close the file and drop the mappings, so nothing here keeps them alive
+		 */
+		void close()
+		throws IOException {
+			chunks = new MappedByteBuffer[0];
+			size = 0;
+			channel.close();
+			file.close();
+		}
+	}
+
+}
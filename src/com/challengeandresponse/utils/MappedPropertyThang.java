@@ -0,0 +1,393 @@
+package com.challengeandresponse.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * MappedPropertyThang has the same API as PropertyThang, but keeps its properties off the heap
+ * in memory-mapped files (see MappedPropertyStore for the file layout).
+ *
+ * Use it for stores too large to keep as objects: heap use does not grow with the number of properties,
+ * nothing is loaded on startup, and the properties are still there when the files are reopened after a restart.
+ * Typed reads allocate nothing; getStringProperty and getProperty allocate the object they return.
+ *
+ * Changes are written straight into the mapped files. The operating system writes them to disk
+ * in its own time; call force() to write them now.
+ *
+ * @author jim
+ *
+ */
+public class MappedPropertyThang {
+
+	private MappedPropertyStore store;
+	private HashSet <String> dictionary;
+	private String namespace;
+
+
+	/**
+	 * Open (or create) the store kept in the files base.dat and base.idx (or their later generations, see MappedPropertyStore),
+	 * and access it via the namespace 'namespace'.
+	 * A store must only be opened once at a time; use the view constructor for more namespaces.
+	 * @throws IOException if the files cannot be opened or are not property store files
+	 */
+	public MappedPropertyThang(File base, String namespace)
+	throws IOException {
+		this.store = new MappedPropertyStore(base);
+		this.dictionary = null;
+		this.namespace = namespace;
+	}
+
+	/**
+	 * Access an existing MappedPropertyThang, filtering it with a different namespace
+	 */
+	public MappedPropertyThang(MappedPropertyThang pt, String namespace) {
+		this.store = pt.store;
+		this.dictionary = pt.dictionary;
+		this.namespace = namespace;
+	}
+
+
+	/**
+	 * A dictionary is optional. If one is set, only key values from the dictionary
+	 * are permitted as keys. The dictionary is case and white-space sensitive.
+	 * If no dictionary is set, any string can be a key.
+	 * Dictionaries are NOT in any namespace - a dictionary rules ALL namespaces
+	 * @param dictionary a HashSet of all the legal property names.
+	 */
+	public void setDictionary(HashSet<String> dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * @return the contents of the current dictionary, as a Vector of Strings
+	 */
+	public Vector <String> getDictionary() {
+		return new Vector <String> (this.dictionary);
+	}
+
+
+	/**
+	 * @return all the property keys for the current namespace as a vector of strings. This scans the whole index
+	 */
+	public Vector <String> getPropertyKeys() {
+		store.lock.readLock().lock();
+		try {
+			return new Vector <String> (store.keys(namespace));
+		}
+		finally {
+			store.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return all the property keys and values for the current namespace. This scans the whole index
+	 */
+	public Hashtable <String,Object> getPropertyKeysAndValues() {
+		Hashtable <String,Object> result = new Hashtable <String,Object> ();
+		store.lock.readLock().lock();
+		try {
+			for (String key : store.keys(namespace)) {
+				long rec = store.record(namespace, key);
+				result.put(key, toObject(rec));
+			}
+		}
+		finally {
+			store.lock.readLock().unlock();
+		}
+		return result;
+	}
+
+
+	private void internalPut(String key, byte type, long bits, String string)
+	throws IllegalArgumentException {
+		if (key == null)
+			return;
+		if (dictionary != null) {
+			if (! dictionary.contains(key))
+				throw new IllegalArgumentException("Key not in dictionary: "+key);
+		}
+		store.lock.writeLock().lock();
+		try {
+			store.put(namespace, key, type, bits, string);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("cannot store property ["+key+"] in mapped store: "+e.toString());
+		}
+		finally {
+			store.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Set a named int property. if key is null, the method will silently do nothing
+	 * @param key
+	 * @param value
+	 */
+	public void setProperty(String key, int value) {
+		internalPut(key,PropertyValue.INT,value,null);
+	}
+
+	/**
+	 * Set a named long property. if key is null, the method will silently do nothing
+	 * @param key
+	 * @param value
+	 */
+	public void setProperty(String key, long value) {
+		internalPut(key,PropertyValue.LONG,value,null);
+	}
+
+	/**
+	 * Set a named double property. if key is null, the method will silently do nothing
+	 * @param key
+	 * @param value
+	 */
+	public void setProperty(String key, double value) {
+		internalPut(key,PropertyValue.DOUBLE,PropertyValue.bits(value),null);
+	}
+
+	/**
+	 * Set a named String property. if key is null, the method will silently do nothing
+	 * @param key
+	 * @param value
+	 * @throws NullPointerException if value is null
+	 */
+	public void setProperty(String key, String value) {
+		if (value == null)
+			throw new NullPointerException("value cannot be null");
+		internalPut(key,PropertyValue.STRING,0L,value);
+	}
+
+	/**
+	 * Set a named boolean property. if key is null, the method will silently do nothing
+	 * @param key
+	 * @param value
+	 */
+	public void setProperty(String key, boolean value) {
+		internalPut(key,PropertyValue.BOOLEAN,PropertyValue.bits(value),null);
+	}
+
+
+	/**
+	 * @return the value of record 'rec' as an Object, boxing primitives. Caller holds the read lock
+	 */
+	private Object toObject(long rec) {
+		byte type = store.type(rec);
+		if (type == PropertyValue.STRING)
+			return store.string(rec);
+		return new PropertyValue(type, store.bits(rec), null).toObject();
+	}
+
+	/**
+	 * Get a property object. Primitive properties are boxed on the way out.
+	 * @param key The name of the desired property
+	 * @param dflt the default value to return if the property is not set
+	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
+	 */
+	public Object getProperty(String key, Object dflt) {
+		if (key == null)
+			return dflt;
+		store.lock.readLock().lock();
+		try {
+			long rec = store.record(namespace, key);
+			return (rec < 0) ? dflt : toObject(rec);
+		}
+		finally {
+			store.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the raw bits of property 'key' if it is of type 'type', otherwise 'dflt'
+	 */
+	private long typedBits(String key, byte type, long dflt) {
+		if (key == null)
+			return dflt;
+		store.lock.readLock().lock();
+		try {
+			long rec = store.record(namespace, key);
+			if ((rec >= 0) && (store.type(rec) == type))
+				return store.bits(rec);
+			return dflt;
+		}
+		finally {
+			store.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get a property object as a String
+	 * @param key The name of the desired property
+	 * @param dflt the default value to return if the property is not set
+	 * @return The property object, or 'dflt' if it was not found, was not a String, or if 'key' was null
+	 */
+	public String getStringProperty(String key, String dflt) {
+		if (key == null)
+			return dflt;
+		store.lock.readLock().lock();
+		try {
+			long rec = store.record(namespace, key);
+			if ((rec >= 0) && (store.type(rec) == PropertyValue.STRING))
+				return store.string(rec);
+			return dflt;
+		}
+		finally {
+			store.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get a property object as a primitive int
+	 * @param key The name of the desired property
+	 * @param dflt the default value to return if the property is not set
+	 * @return The property object, or 'dflt' if it was not found, was not an int, or if 'key' was null
+	 */
+	public int getIntProperty(String key, int dflt) {
+		return (int) typedBits(key, PropertyValue.INT, dflt);
+	}
+
+	/**
+	 * Get a property object as a primitive long
+	 * @param key The name of the desired property
+	 * @param dflt the default value to return if the property is not set
+	 * @return The property object, or 'dflt' if it was not found, was not a long, or if 'key' was null
+	 */
+	public long getLongProperty(String key, long dflt) {
+		return typedBits(key, PropertyValue.LONG, dflt);
+	}
+
+	/**
+	 * Get a property object as a primitive double
+	 * @param key The name of the desired property
+	 * @param dflt the default value to return if the property is not set
+	 * @return The key object, or 'dflt' if it was not found, was not a double, or if 'key' was null
+	 */
+	public double getDoubleProperty(String key, double dflt) {
+		return Double.longBitsToDouble(typedBits(key, PropertyValue.DOUBLE, PropertyValue.bits(dflt)));
+	}
+
+	/**
+	 * Get a property object as a primitive boolean
+	 * @param key The name of the desired property
+	 * @param dflt the default value to return if the property is not set
+	 * @return The property object, or 'dflt' if it was not found, was not a boolean, or if 'key' was null
+	 */
+	public boolean getBooleanProperty(String key, boolean dflt) {
+		return typedBits(key, PropertyValue.BOOLEAN, PropertyValue.bits(dflt)) != 0L;
+	}
+
+	/**
+	 * @return true if a property named 'key' exists, false otherwise
+	 */
+	public boolean hasProperty(String key) {
+		if (key == null)
+			return false;
+		store.lock.readLock().lock();
+		try {
+			return store.record(namespace, key) >= 0;
+		}
+		finally {
+			store.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a property. if key is null, the method will silently do nothing
+	 * @param key The name of the property to remove
+	 * @return true if the property existed and was removed, false otherwise
+	 */
+	public boolean removeProperty(String key) {
+		if (key == null)
+			return false;
+		store.lock.writeLock().lock();
+		try {
+			return store.remove(namespace, key);
+		}
+		finally {
+			store.lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Write all changes made so far to disk
+	 */
+	public void force() {
+		store.lock.readLock().lock();
+		try {
+			store.force();
+		}
+		finally {
+			store.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Write all changes to disk and close the files. This closes the store for every view on it
+	 * @throws IOException if the files cannot be closed
+	 */
+	public void close()
+	throws IOException {
+		store.lock.writeLock().lock();
+		try {
+			store.close();
+		}
+		finally {
+			store.lock.writeLock().unlock();
+		}
+	}
+
+
+
+	// for testing
+	public static void main(String[] args)
+	throws IOException {
+		File base = new File(System.getProperty("java.io.tmpdir"), "MappedPropertyThang-"+System.nanoTime());
+		MappedPropertyThang pt = new MappedPropertyThang(base, "NS1");
+		pt.setProperty("INT", 132);
+		pt.setProperty("STRING", "hey");
+		pt.setProperty("DOUBLE", 2.5);
+		MappedPropertyThang pt2 = new MappedPropertyThang(pt, "NS2");
+		pt2.setProperty("eep", 1000);
+		for (int i = 0; i < 10000; i++) // forces the index to grow a few times
+			pt2.setProperty("k"+i, (long) i);
+		pt2.removeProperty("k5");
+		pt.setProperty("STRING", "a longer string");
+		pt.close();
+
+		MappedPropertyThang reopened = new MappedPropertyThang(base, "NS1");
+		MappedPropertyThang reopened2 = new MappedPropertyThang(reopened, "NS2");
+		System.out.println((reopened.getIntProperty("INT",-1) == 132) ? "OK: INT=132" : "FAIL: INT="+reopened.getIntProperty("INT",-1));
+		System.out.println("a longer string".equals(reopened.getStringProperty("STRING",null)) ? "OK: STRING rewritten" : "FAIL: STRING="+reopened.getStringProperty("STRING",null));
+		System.out.println((reopened.getDoubleProperty("DOUBLE",-1) == 2.5) ? "OK: DOUBLE=2.5" : "FAIL: DOUBLE="+reopened.getDoubleProperty("DOUBLE",-1));
+		System.out.println((reopened.getIntProperty("eep",-1) == -1) ? "OK: other namespace not visible" : "FAIL: saw eep in NS1");
+		System.out.println((reopened2.getLongProperty("k9999",-1) == 9999) ? "OK: k9999=9999" : "FAIL: k9999="+reopened2.getLongProperty("k9999",-1));
+		System.out.println((! reopened2.hasProperty("k5")) ? "OK: k5 removed" : "FAIL: k5 still there");
+		System.out.println((reopened2.getPropertyKeys().size() == 10000) ? "OK: 10000 keys in NS2" : "FAIL: "+reopened2.getPropertyKeys().size()+" keys in NS2");
+		for (int i = 0; i < 200000; i++) { // about 40MB of replaced Strings and removed keys, all garbage
+			reopened2.setProperty("k"+(i % 10000), (i % 2 == 0) ? "even "+i : "odd");
+			reopened2.setProperty("t"+i, "temporary");
+			reopened2.removeProperty("t"+i);
+		}
+		reopened.close();
+		File[] files = reopened.store.files();
+		long dataBytes = files[0].length();
+		System.out.println((dataBytes <= (8 << 20)) ? "OK: garbage compacted, data file is "+dataBytes+" bytes" : "FAIL: data file grew to "+dataBytes+" bytes");
+		new FileOutputStream(base.getPath()+".idx.99").close(); // as left by a rehash that crashed before switching to it
+		reopened = new MappedPropertyThang(base, "NS2");
+		System.out.println(("even 199990".equals(reopened.getStringProperty("k9990",null)) && "odd".equals(reopened.getStringProperty("k9999",null))
+				&& (reopened.getPropertyKeys().size() == 10001)) ? "OK: values survive compaction" : "FAIL: k9990="+reopened.getStringProperty("k9990",null));
+		System.out.println((new MappedPropertyThang(reopened, "NS1").getIntProperty("INT",-1) == 132) ? "OK: INT=132 after compaction" : "FAIL: INT lost in compaction");
+		reopened.close();
+		String[] left = base.getAbsoluteFile().getParentFile().list();
+		int stale = 0;
+		for (String name : left)
+			if (name.startsWith(base.getName()+".") && (! Arrays.asList(files).contains(new File(base.getParentFile(), name))))
+				stale++;
+		System.out.println((stale == 0) ? "OK: replaced generations deleted" : "FAIL: "+stale+" files of replaced generations left");
+		for (File f : reopened.store.files())
+			f.delete();
+	}
+
+}
@@ -0,0 +1,226 @@
+package com.challengeandresponse.utils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * A read-only, memory-mapped snapshot of many namespaces, each of which can be decoded on its own.
+ *
+ * <p>Layout: a 32-byte header (magic, namespace count, offset of the names, offset of the directory), then each
+ * namespace's properties in the format of KeyValueProperties.writeTo(), then the namespace names as UTF-16 chars,
+ * then the directory: one 32-byte entry per namespace (name offset, name length, data offset, data length) sorted by name.</p>
+ *
+ * Opening a snapshot only maps the file. Finding a namespace is a binary search of the directory that compares
+ * the mapped chars directly, and only the namespace asked for is decoded, so a namespace that is never asked for
+ * costs no heap.
+ *
+ * MT-safety: the file is never changed once written, so any number of threads may read a snapshot at once.
+ *
+ * @author jim
+ *
+ */
+final class NamespaceSnapshot {
+
+	private static final int MAGIC = 0x50544e53; // "PTNS"
+	private static final int HEADER = 32;	// magic, count, long names offset, long directory offset, unused
+	private static final int ENTRY = 32;	// long name offset, int name length, unused, long data offset, long data length
+
+	private final MappedPropertyStore.Region region;
+	private final int count;
+	private final long directory;
+
+
+	/**
+	 * Map the snapshot in 'file'. Nothing but the header is read
+	 * @throws IOException if the file cannot be mapped or is not a snapshot
+	 */
+	NamespaceSnapshot(File file)
+	throws IOException {
+		this.region = new MappedPropertyStore.Region(file, true);
+		if ((region.size() < HEADER) || (region.getInt(0) != MAGIC)) {
+			region.close();
+			throw new IOException("not a namespace snapshot: "+file);
+		}
+		this.count = region.getInt(4);
+		this.directory = region.getLong(16);
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return the name of the i'th namespace, in sorted order
+	 */
+	String name(int i) {
+		long entry = directory + (long) i*ENTRY;
+		long pos = region.getLong(entry);
+		char[] c = new char[region.getInt(entry+8)];
+		for (int j = 0; j < c.length; j++, pos += 2)
+			c[j] = region.getChar(pos);
+		return new String(c);
+	}
+
+	/**
+	 * @return the directory index of 'namespace', or -1 if the snapshot does not hold it
+	 */
+	int find(String namespace) {
+		int lo = 0;
+		int hi = count-1;
+		while (lo <= hi) {
+			int mid = (lo+hi) >>> 1;
+			int cmp = compare(mid, namespace);
+			if (cmp < 0)
+				lo = mid+1;
+			else if (cmp > 0)
+				hi = mid-1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compare the i'th name with 'namespace' in the order of String.compareTo, without making a String of it
+	 */
+	private int compare(int i, String namespace) {
+		long entry = directory + (long) i*ENTRY;
+		long pos = region.getLong(entry);
+		int len = region.getInt(entry+8);
+		int n = Math.min(len, namespace.length());
+		for (int j = 0; j < n; j++, pos += 2) {
+			char c = region.getChar(pos);
+			if (c != namespace.charAt(j))
+				return c - namespace.charAt(j);
+		}
+		return len - namespace.length();
+	}
+
+	/**
+	 * @return the encoded properties of the i'th namespace, as written by KeyValueProperties.writeTo()
+	 */
+	private byte[] data(int i) {
+		long entry = directory + (long) i*ENTRY;
+		byte[] result = new byte[(int) region.getLong(entry+24)];
+		region.get(region.getLong(entry+16), result);
+		return result;
+	}
+
+	/**
+	 * Add the i'th namespace's properties to 'kvp'
+	 */
+	void decode(int i, KeyValueProperties kvp)
+	throws IOException {
+		kvp.readFrom(new DataInputStream(new ByteArrayInputStream(data(i))));
+	}
+
+	void close()
+	throws IOException {
+		region.close();
+	}
+
+	/**
+	 * Close the file, leaving the mapping to the garbage collector, for a snapshot that other threads may still be decoding from
+	 */
+	void closeFile()
+	throws IOException {
+		region.closeFile();
+	}
+
+
+	/**
+	 * Write a snapshot of the namespaces in 'live', plus those in 'previous' that are not in 'live', to 'file'.
+	 * The file is written beside its final name and renamed into place, so readers of an old snapshot at 'file' are not disturbed.
+	 * Namespaces from 'previous' are copied without being decoded.
+	 * @param previous an open snapshot, or null
+	 */
+	static void write(File file, Map <String,KeyValueProperties> live, NamespaceSnapshot previous)
+	throws IOException {
+		TreeMap <String,Integer> names = new TreeMap <String,Integer> (); // name -> index in 'previous', or -1 if live
+		if (previous != null)
+			for (int i = 0; i < previous.size(); i++)
+				names.put(previous.name(i), Integer.valueOf(i));
+		for (String name : live.keySet())
+			names.put(name, Integer.valueOf(-1));
+
+		File tmp = new File(file.getPath()+".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD())));
+			out.write(new byte[HEADER]);
+			long pos = HEADER;
+			long[] dataOffset = new long[names.size()];
+			long[] dataLength = new long[names.size()];
+			int i = 0;
+			for (Map.Entry <String,Integer> e : names.entrySet()) {
+				byte[] data;
+				int from = e.getValue().intValue();
+				if (from < 0) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream encoded = new DataOutputStream(bytes);
+					live.get(e.getKey()).writeTo(encoded);
+					encoded.flush();
+					data = bytes.toByteArray();
+				}
+				else
+					data = previous.data(from);
+				out.write(data);
+				dataOffset[i] = pos;
+				dataLength[i] = data.length;
+				pos += data.length;
+				i++;
+			}
+			pos = pad(out, pos);
+
+			long namesOffset = pos;
+			long[] nameOffset = new long[names.size()];
+			i = 0;
+			for (String name : names.keySet()) {
+				out.writeChars(name);
+				nameOffset[i++] = pos;
+				pos += 2L*name.length();
+			}
+			pos = pad(out, pos);
+
+			long directory = pos;
+			i = 0;
+			for (String name : names.keySet()) {
+				out.writeLong(nameOffset[i]);
+				out.writeInt(name.length());
+				out.writeInt(0);
+				out.writeLong(dataOffset[i]);
+				out.writeLong(dataLength[i]);
+				i++;
+			}
+			out.flush();
+
+			raf.seek(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(names.size());
+			raf.writeLong(namesOffset);
+			raf.writeLong(directory);
+			raf.getFD().sync();
+		}
+		finally {
+			raf.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Pad to a multiple of 8 bytes, so the chars and longs that follow are aligned and never straddle two mapped chunks
+	 * @return the new position
+	 */
+	private static long pad(DataOutputStream out, long pos)
+	throws IOException {
+		while ((pos & 7) != 0) {
+			out.write(0);
+			pos++;
+		}
+		return pos;
+	}
+
+}
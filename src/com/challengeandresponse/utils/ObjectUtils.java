@@ -1,6 +1,10 @@
 package com.challengeandresponse.utils;
 
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
 
 
 /**
@@ -12,47 +16,660 @@ import java.io.*;
 public class ObjectUtils {
 
 	
+	/**
+	 * What there is to know about a class for cloning, comparing and dispatching on it, worked out once per class
+	 * and shared: ObjectUtils, ReflectiveClone and ChatUtils all read it from here.
+	 *
+	 * Supertypes are worked out when the TypeInfo is made; the field layout and constructor, which must be opened
+	 * with setAccessible(), only when cloning or hashing first needs them.
+	 *
+	 * MT-safety: safe for use from multiple concurrent threads. Made once per class; the layout may be made twice in a race, and either copy serves.
+	 */
+	public static final class TypeInfo {
+
+		/** How objects of a class can be deep-cloned, in order of preference */
+		public enum CloneKind {
+			/** immutable values (Strings, boxed values, enums, Classes): the object itself serves as its clone */
+			IMMUTABLE,
+			/** arrays, copied element by element */
+			ARRAY,
+			/** DeepCopyable: ReflectiveClone uses the generated copier, if the class was compiled with DeepCopyProcessor */
+			GENERATED,
+			/** ReflectiveClone can clone it: a no-arg constructor, no final fields, and fields that can be opened */
+			REFLECTIVE,
+			/** only by serialization, e.g. cloneSerial() */
+			SERIALIZABLE,
+			/** none of the above */
+			NONE
+		}
+
+		// the kinds of structure deepHash() and deepEquals() walk
+		static final int LEAF = 0;		// compared with equals() and hashCode(): values, closed classes, and classes that serialize themselves
+		static final int ARRAY = 1;
+		static final int MAP = 2;
+		static final int SET = 3;
+		static final int COLLECTION = 4;	// Lists and other Collections, in iteration order
+		static final int FIELDS = 5;		// field by field
+		static final int IDENTITY = 6;		// only equal to itself: Maps, Sets and Collections with state besides their elements that cannot be read
+
+		private static final Set <Class<?>> VALUE_CLASSES = new HashSet <Class<?>> (Arrays.<Class<?>>asList(
+				String.class, Integer.class, Long.class, Double.class, Boolean.class, Character.class,
+				Byte.class, Short.class, Float.class, Class.class));
+
+		// Maps, Sets and Collections whose only state is their elements and, for the sorted ones, their comparator()
+		// (capacities and load factors aside, which change no result). Any other is also compared by its fields, or
+		// is IDENTITY if they cannot be opened: a LinkedHashMap's access order, or a subclass's own fields, are state
+		private static final Set <Class<?>> PLAIN_COLLECTIONS = new HashSet <Class<?>> (Arrays.<Class<?>>asList(
+				ArrayList.class, LinkedList.class, ArrayDeque.class, Vector.class, HashMap.class, Hashtable.class,
+				HashSet.class, LinkedHashSet.class, TreeMap.class, TreeSet.class, PriorityQueue.class,
+				java.util.concurrent.ConcurrentHashMap.class, java.util.concurrent.ConcurrentSkipListMap.class,
+				java.util.concurrent.ConcurrentSkipListSet.class, java.util.concurrent.CopyOnWriteArrayList.class,
+				java.util.concurrent.ConcurrentLinkedQueue.class, java.util.concurrent.ConcurrentLinkedDeque.class,
+				Arrays.asList().getClass(), Collections.emptyList().getClass(), Collections.emptySet().getClass(),
+				Collections.emptyMap().getClass(), Collections.singletonList(null).getClass(),
+				Collections.singleton(null).getClass(), Collections.singletonMap(null, null).getClass()));
+
+		private final Class<?> type;
+		private final List <Class<?>> superclasses;
+		private final Set <Class<?>> interfaces;
+		private final Set <Class<?>> supertypes;	// the type, its superclasses and its interfaces
+		private final Set <String> interfaceNames;
+		private final CloneKind cloneKind;	// IMMUTABLE, ARRAY or GENERATED, or null if the layout decides
+		private final int kind;				// LEAF ... FIELDS; FIELDS may yet turn out to be LEAF when the layout is made
+		private final boolean plain;		// a Map, Set or Collection in PLAIN_COLLECTIONS; any other is compared by its fields as well
+		private volatile Layout layout;		// made the first time cloning or hashing needs it
+
+		/**
+		 * The fields and no-arg constructor of a class, opened with setAccessible(). Made only when cloning, hashing
+		 * or a caller first asks for them, so asking what a class is does not open its private members.
+		 */
+		private static final class Layout {
+			final List <Field> fields;
+			final Field[] persistentFields;	// the fields serialization would copy
+			final boolean open;
+			final boolean finalFields;
+			final Constructor<?> noarg;
+			final CloneKind cloneKind;
+			final int kind;
+
+			Layout(TypeInfo info) {
+				Class<?> type = info.type;
+				// instance fields, the class's own first, then up through its superclasses
+				List <Field> fields = new ArrayList <Field> ();
+				List <Field> persistent = new ArrayList <Field> ();
+				boolean open = true;
+				boolean finalFields = false;
+				for (Class<?> c = type; (c != null) && (c != Object.class); c = c.getSuperclass()) {
+					for (Field f : c.getDeclaredFields()) {
+						int modifiers = f.getModifiers();
+						if ((modifiers & Modifier.STATIC) != 0)
+							continue;
+						fields.add(f);
+						if ((modifiers & Modifier.TRANSIENT) == 0)
+							persistent.add(f);
+						finalFields |= ((modifiers & Modifier.FINAL) != 0);
+						if (open) {
+							try {
+								f.setAccessible(true);
+							}
+							catch (RuntimeException e) { // SecurityException, or a module that does not open the package
+								open = false;
+							}
+						}
+					}
+				}
+				this.fields = ReadonlyList.of(fields);
+				this.persistentFields = persistent.toArray(new Field[persistent.size()]);
+				this.open = open;
+				this.finalFields = finalFields;
+
+				Constructor<?> noarg = null;
+				try {
+					noarg = type.getDeclaredConstructor();
+					if ((noarg.getModifiers() & Modifier.PUBLIC) == 0)
+						noarg.setAccessible(true);
+				}
+				catch (NoSuchMethodException e) {
+				}
+				catch (RuntimeException e) { // cannot be opened
+					noarg = null;
+				}
+				this.noarg = noarg;
+
+				if (info.cloneKind != null)
+					this.cloneKind = info.cloneKind;
+				else if ((noarg != null) && open && (! finalFields) && (! type.isInterface()) && ((type.getModifiers() & Modifier.ABSTRACT) == 0))
+					this.cloneKind = CloneKind.REFLECTIVE;
+				else if (info.supertypes.contains(Serializable.class))
+					this.cloneKind = CloneKind.SERIALIZABLE;
+				else
+					this.cloneKind = CloneKind.NONE;
+
+				if (info.kind == FIELDS)
+					this.kind = (open && (! serializesItself(type))) ? FIELDS : LEAF;
+				else if ((info.kind == MAP) || (info.kind == SET) || (info.kind == COLLECTION))
+					this.kind = (info.plain || open) ? info.kind : IDENTITY;
+				else
+					this.kind = info.kind;
+			}
+		}
+
+		private TypeInfo(Class<?> type) {
+			this.type = type;
+
+			List <Class<?>> superclasses = new ArrayList <Class<?>> ();
+			for (Class<?> c = type.getSuperclass(); c != null; c = c.getSuperclass())
+				superclasses.add(c);
+			this.superclasses = ReadonlyList.of(superclasses);
+
+			// each class's interfaces depth first, nearest class first
+			LinkedHashSet <Class<?>> interfaces = new LinkedHashSet <Class<?>> ();
+			for (Class<?> c = type; c != null; c = c.getSuperclass())
+				addInterfaces(c.getInterfaces(), interfaces);
+			this.interfaces = new ReadonlySet <Class<?>> (interfaces);
+			HashSet <String> names = new HashSet <String> ();
+			for (Class<?> i : interfaces)
+				names.add(i.getName());
+			this.interfaceNames = names;
+			HashSet <Class<?>> supertypes = new HashSet <Class<?>> (interfaces);
+			supertypes.addAll(superclasses);
+			supertypes.add(type);
+			this.supertypes = supertypes;
+
+			boolean value = VALUE_CLASSES.contains(type) || Enum.class.isAssignableFrom(type);
+			if (value)
+				this.cloneKind = CloneKind.IMMUTABLE;
+			else if (type.isArray())
+				this.cloneKind = CloneKind.ARRAY;
+			else if (type.isAnnotationPresent(DeepCopyable.class))
+				this.cloneKind = CloneKind.GENERATED;
+			else
+				this.cloneKind = null;
+
+			if (value)
+				this.kind = LEAF;
+			else if (type.isArray())
+				this.kind = ARRAY;
+			else if (supertypes.contains(Map.class))
+				this.kind = MAP;
+			else if (supertypes.contains(Set.class))
+				this.kind = SET;
+			else if (supertypes.contains(Collection.class))
+				this.kind = COLLECTION;
+			else
+				this.kind = FIELDS;
+			this.plain = PLAIN_COLLECTIONS.contains(type);
+		}
+
+		/**
+		 * @return the fields and constructor, opened the first time they are needed. Two threads may both make
+		 * them; the results are the same, and either serves
+		 */
+		private Layout layout() {
+			Layout l = layout;
+			if (l == null)
+				layout = l = new Layout(this);
+			return l;
+		}
+
+		/**
+		 * @return for deepHash() and deepEquals(): one of LEAF ... FIELDS
+		 */
+		int kind() {
+			return ((kind == LEAF) || (kind == ARRAY) || plain) ? kind : layout().kind;
+		}
+
+		/**
+		 * @return for deepHash() and deepEquals(): true if a Map, Set or Collection is compared by its persistentFields() as well as its elements
+		 */
+		boolean hasState() {
+			return ! plain;
+		}
+
+		/**
+		 * @return for deepHash() and deepEquals(): the fields serialization would copy
+		 */
+		Field[] persistentFields() {
+			return layout().persistentFields;
+		}
+
+		/**
+		 * @return true if serialization of 'type' may write something other than its non-transient fields: it is
+		 * Externalizable, or it or a superclass has writeObject(), writeReplace() or serialPersistentFields
+		 */
+		private static boolean serializesItself(Class<?> type) {
+			if (! Serializable.class.isAssignableFrom(type))
+				return false;
+			if (Externalizable.class.isAssignableFrom(type))
+				return true;
+			for (Class<?> c = type; (c != null) && (c != Object.class); c = c.getSuperclass()) {
+				try {
+					c.getDeclaredField("serialPersistentFields");
+					return true;
+				}
+				catch (NoSuchFieldException e) {
+				}
+				for (java.lang.reflect.Method m : c.getDeclaredMethods()) {
+					Class<?>[] params = m.getParameterTypes();
+					if ("writeReplace".equals(m.getName()) && (params.length == 0))
+						return true;
+					if ("writeObject".equals(m.getName()) && (params.length == 1) && (params[0] == ObjectOutputStream.class))
+						return true;
+				}
+			}
+			return false;
+		}
+
+		private static void addInterfaces(Class<?>[] direct, Set <Class<?>> all) {
+			for (Class<?> i : direct) {
+				if (all.add(i))
+					addInterfaces(i.getInterfaces(), all);
+			}
+		}
+
+		public Class<?> getType() {
+			return type;
+		}
+
+		/**
+		 * @return the superclasses of the type, nearest first and ending with Object. Empty for Object, interfaces and primitives
+		 */
+		public List <Class<?>> getSuperclasses() {
+			return superclasses;
+		}
+
+		/**
+		 * @return every interface the type implements or extends, directly or through its superclasses and
+		 * superinterfaces: each class's interfaces depth first, nearest class first
+		 */
+		public Set <Class<?>> getInterfaces() {
+			return interfaces;
+		}
+
+		/**
+		 * @return true if an object of this type is an instance of 'c': 'c' is the type itself, one of its superclasses or one of its interfaces
+		 */
+		public boolean isA(Class<?> c) {
+			return supertypes.contains(c);
+		}
+
+		/**
+		 * @param name the fully qualified name of an interface, e.g. "java.io.Serializable", not "Serializable"
+		 * @return true if the type implements the interface named 'name', directly or not
+		 */
+		public boolean hasInterface(String name) {
+			return interfaceNames.contains(name);
+		}
+
+		public boolean isCloneable() {
+			return supertypes.contains(Cloneable.class);
+		}
+
+		public boolean isSerializable() {
+			return supertypes.contains(Serializable.class);
+		}
+
+		/**
+		 * @return how the type can be deep-cloned. IMMUTABLE, ARRAY and GENERATED are known from the type alone; telling
+		 * the others apart opens its fields and constructor, as getFields() does
+		 */
+		public CloneKind getCloneKind() {
+			return (cloneKind != null) ? cloneKind : layout().cloneKind;
+		}
+
+		/**
+		 * @return the instance fields of the type, its own first, then those of each superclass in turn, made
+		 * accessible if they can be; see isOpen(). They are opened the first time they are asked for, by this or by
+		 * cloning or hashing
+		 */
+		public List <Field> getFields() {
+			return layout().fields;
+		}
+
+		/**
+		 * @return true if every field in getFields() can be read and written, false if some module or security manager prevents it
+		 */
+		public boolean isOpen() {
+			return layout().open;
+		}
+
+		/**
+		 * @return true if any field in getFields() is final
+		 */
+		public boolean hasFinalFields() {
+			return layout().finalFields;
+		}
+
+		/**
+		 * @return the no-arg constructor, made accessible if it is not public, or null if there is none or it cannot be opened
+		 */
+		public Constructor<?> getNoargConstructor() {
+			return layout().noarg;
+		}
+	}
+
+	private static final ClassValue <TypeInfo> TYPES = new ClassValue <TypeInfo> () {
+		protected TypeInfo computeValue(Class<?> type) {
+			return new TypeInfo(type);
+		}
+	};
+
+	/**
+	 * @return what there is to know about 'c'. Worked out the first time a class is asked about; after that this is one lookup
+	 */
+	public static TypeInfo typeInfo(Class<?> c) {
+		return TYPES.get(c);
+	}
+
 	/**
 	 * Return true if object o has an interface named ifName
 	 * @param o the object to inspect
-	 * @param iName the fully qualified name of the interface to look for (e.g. "java.io.Serializable", not "Serializable")
-	 * @return true if object o has an interface named ifName
-	 */
-//	public static boolean hasInterface(Object o, String ifName) {
-//		Class[] interfaces = o.getClass().getInterfaces();
-//
-//		for (int i = 0; i < interfaces.length; i++)
-//			if (interfaces[i].getName().equals(ifName))
-//				return true;
-//
-//		return false;
-//	}
-	
-	
-	
-	
+	 * @param ifName the fully qualified name of the interface to look for (e.g. "java.io.Serializable", not "Serializable")
+	 * @return true if object o has an interface named ifName, directly or through a superclass or superinterface
+	 */
+	public static boolean hasInterface(Object o, String ifName) {
+		return TYPES.get(o.getClass()).hasInterface(ifName);
+	}
+
 	/**
 	 * @param c the Class to check for presence of the requested implementations
 	 * @param impls One or more interfaces that the class 'c' should implement
-	 * @return true if 'c' implements all the interfaces of 'impls', and false otherwise. Short-circuit evaluation, returns true when the first non-listed interface is found
-	 */
-//	public static boolean hasInterfaces (Class c, Class... impls ) {
-//		// a list of all interfaces in the actual class 'c'
-//		List ifList = Arrays.asList(c.getInterfaces());
-//
-//		// check each item in 'impls' to be sure it's in the class's interfaces; return false if not
-//		for (int i = 0; i < impls.length; i++) {
-//			if (! ifList.contains(impls[i]))
-//				return false;
-//		}
-//		return true;
-//	}
-	
+	 * @return true if 'c' implements all the interfaces of 'impls', directly or not, and false as soon as one is found that it does not
+	 */
+	public static boolean hasInterfaces(Class<?> c, Class<?>... impls) {
+		TypeInfo info = TYPES.get(c);
+		for (Class<?> i : impls) {
+			if (! (i.isInterface() && info.isA(i)))
+				return false;
+		}
+		return true;
+	}
+
+
+
+
+	/**
+	 * A hash of the structure and contents of 'o', consistent with deepEquals(): objects are hashed field by field,
+	 * through their superclasses, down to the Strings, boxed values and primitives they are made of.<br />
+	 * - Lists and other Collections are hashed element by element in order, Sets and Maps regardless of order; those
+	 * other than the plain JDK ones also hash their fields, or their identity if their fields cannot be opened<br />
+	 * - transient and static fields are left out, as serialization leaves them out<br />
+	 * - Strings, boxed values, enums, classes whose fields cannot be opened (much of java.*), and Serializable classes that
+	 * write themselves (writeObject(), writeReplace(), serialPersistentFields, Externalizable) use their own hashCode()<br />
+	 * - an object met again below itself, in a cycle, is hashed by how far up the path it is; an object met again
+	 * elsewhere, shared rather than cyclic, is hashed in full each time, as deepEquals() compares it<br />
+	 * Field lists are worked out once per class, so hashing costs about as much as walking the object.
+	 * @return the hash, 0 for null
+	 */
+	public static int deepHash(Object o) {
+		return deepHash(o, new IdentityHashMap <Object,Integer> ());
+	}
+
+	/**
+	 * @param path the objects being hashed, from the top down to 'o''s parent, each with its depth
+	 */
+	private static int deepHash(Object o, IdentityHashMap <Object,Integer> path) {
+		if (o == null)
+			return 0;
+		TypeInfo info = TYPES.get(o.getClass());
+		if (info.kind() == TypeInfo.LEAF)
+			return o.hashCode();
+		if (info.kind() == TypeInfo.IDENTITY)
+			return System.identityHashCode(o);
+		Integer depth = path.get(o);
+		if (depth != null) // a cycle
+			return path.size() - depth.intValue();
+		path.put(o, Integer.valueOf(path.size()));
+		int h = hash(o, info, path);
+		path.remove(o);
+		return h;
+	}
+
+	/**
+	 * deepHash() of an object that is not a LEAF, already on the path
+	 */
+	private static int hash(Object o, TypeInfo info, IdentityHashMap <Object,Integer> path) {
+		Class<?> type = o.getClass();
+		int h = type.getName().hashCode();
+		switch (info.kind()) {
+		case TypeInfo.ARRAY:
+			Class<?> component = type.getComponentType();
+			if (component == int.class) return 31*h + Arrays.hashCode((int[]) o);
+			if (component == long.class) return 31*h + Arrays.hashCode((long[]) o);
+			if (component == double.class) return 31*h + Arrays.hashCode((double[]) o);
+			if (component == byte.class) return 31*h + Arrays.hashCode((byte[]) o);
+			if (component == char.class) return 31*h + Arrays.hashCode((char[]) o);
+			if (component == boolean.class) return 31*h + Arrays.hashCode((boolean[]) o);
+			if (component == short.class) return 31*h + Arrays.hashCode((short[]) o);
+			if (component == float.class) return 31*h + Arrays.hashCode((float[]) o);
+			for (Object e : (Object[]) o)
+				h = 31*h + deepHash(e, path);
+			return h;
+		case TypeInfo.MAP:
+			int sum = 0;
+			for (Map.Entry<?,?> e : ((Map<?,?>) o).entrySet())
+				sum += deepHash(e.getKey(), path) ^ deepHash(e.getValue(), path);
+			h = 31*h + sum;
+			break;
+		case TypeInfo.SET:
+			sum = 0;
+			for (Object e : (Set<?>) o)
+				sum += deepHash(e, path);
+			h = 31*h + sum;
+			break;
+		case TypeInfo.COLLECTION:
+			for (Object e : (Collection<?>) o)
+				h = 31*h + deepHash(e, path);
+			break;
+		}
+		if ((info.kind() != TypeInfo.FIELDS) && (! info.hasState()))
+			return h;
+		try {
+			for (Field f : info.persistentFields()) {
+				Class<?> t = f.getType();
+				int v;
+				if (! t.isPrimitive()) v = deepHash(f.get(o), path);
+				else if (t == int.class) v = f.getInt(o);
+				else if (t == long.class) v = Long.hashCode(f.getLong(o));
+				else if (t == double.class) v = Double.hashCode(f.getDouble(o));
+				else if (t == boolean.class) v = f.getBoolean(o) ? 1231 : 1237;
+				else if (t == float.class) v = Float.hashCode(f.getFloat(o));
+				else if (t == char.class) v = f.getChar(o);
+				else if (t == byte.class) v = f.getByte(o);
+				else v = f.getShort(o);
+				h = 31*h + v;
+			}
+		}
+		catch (IllegalAccessException e) {
+			throw new RuntimeException("cannot hash class [" + type.getName() + "]: " + e.toString());
+		}
+		return h;
+	}
+
+
+	/**
+	 * @return true if 'a' and 'b' are of the same class and have equal contents, compared as deepHash() hashes them:
+	 * field by field down to Strings, boxed values and primitives, arrays and Lists element by element.
+	 * Sets and Maps are first compared deeply in iteration order; if that fails, each Set element or Map key is
+	 * matched with a deepEquals() one on the other side, and Map values are compared deeply. Sorted Maps, Sets and
+	 * queues must have deepEquals() comparators. Maps, Sets and Collections other than the plain JDK ones (ArrayList,
+	 * HashMap, TreeSet and so on) must also have equal fields, or, if their fields cannot be opened, be the same object.
+	 * Cycles must match: where one side refers back to an object above it, the other must refer back as far up.
+	 * Below the top, an object shared by both sides is compared like any other, as deepHash() hashes it in full.
+	 */
+	public static boolean deepEquals(Object a, Object b) {
+		if (a == b)
+			return true;
+		return deepEquals(a, b, new Paths());
+	}
+
+	/**
+	 * The objects being compared, from the top down to the current pair's parents, each with its depth
+	 */
+	private static final class Paths {
+		final IdentityHashMap <Object,Integer> a = new IdentityHashMap <Object,Integer> ();
+		final IdentityHashMap <Object,Integer> b = new IdentityHashMap <Object,Integer> ();
+	}
+
+	private static boolean deepEquals(Object a, Object b, Paths paths) {
+		if ((a == null) || (b == null))
+			return a == b;
+		Class<?> type = a.getClass();
+		if (type != b.getClass())
+			return false;
+		TypeInfo info = TYPES.get(type);
+		if (info.kind() == TypeInfo.LEAF)
+			return a.equals(b);
+		if (info.kind() == TypeInfo.IDENTITY)
+			return a == b;
+		Integer depthA = paths.a.get(a);
+		Integer depthB = paths.b.get(b);
+		if ((depthA != null) || (depthB != null)) // a cycle on either side
+			return (depthA != null) && depthA.equals(depthB);
+		Integer depth = Integer.valueOf(paths.a.size());
+		paths.a.put(a, depth);
+		paths.b.put(b, depth);
+		boolean result = compare(a, b, info, paths);
+		paths.a.remove(a);
+		paths.b.remove(b);
+		return result;
+	}
+
+	/**
+	 * deepEquals() for two objects of the same class that is not a LEAF
+	 */
+	private static boolean compare(Object a, Object b, TypeInfo info, Paths paths) {
+		switch (info.kind()) {
+		case TypeInfo.ARRAY:
+			Class<?> component = a.getClass().getComponentType();
+			if (component == int.class) return Arrays.equals((int[]) a, (int[]) b);
+			if (component == long.class) return Arrays.equals((long[]) a, (long[]) b);
+			if (component == double.class) return Arrays.equals((double[]) a, (double[]) b);
+			if (component == byte.class) return Arrays.equals((byte[]) a, (byte[]) b);
+			if (component == char.class) return Arrays.equals((char[]) a, (char[]) b);
+			if (component == boolean.class) return Arrays.equals((boolean[]) a, (boolean[]) b);
+			if (component == short.class) return Arrays.equals((short[]) a, (short[]) b);
+			if (component == float.class) return Arrays.equals((float[]) a, (float[]) b);
+			return inOrder(Arrays.asList((Object[]) a), Arrays.asList((Object[]) b), paths);
+		case TypeInfo.MAP:
+			Map<?,?> x = (Map<?,?>) a;
+			Map<?,?> y = (Map<?,?>) b;
+			if ((x.size() != y.size()) || (! deepEquals(comparator(a), comparator(b), paths)))
+				return false;
+			if (! (inOrder(x.entrySet(), y.entrySet(), paths) || matched(x.keySet(), y.keySet(), x, y, paths)))
+				return false;
+			break;
+		case TypeInfo.SET:
+			Set<?> s = (Set<?>) a;
+			Set<?> t = (Set<?>) b;
+			if ((s.size() != t.size()) || (! deepEquals(comparator(a), comparator(b), paths)))
+				return false;
+			if (! (inOrder(s, t, paths) || matched(s, t, null, null, paths)))
+				return false;
+			break;
+		case TypeInfo.COLLECTION:
+			if ((! deepEquals(comparator(a), comparator(b), paths)) || (! inOrder((Collection<?>) a, (Collection<?>) b, paths)))
+				return false;
+			break;
+		}
+		if ((info.kind() != TypeInfo.FIELDS) && (! info.hasState()))
+			return true;
+		try {
+			for (Field f : info.persistentFields()) {
+				Class<?> t = f.getType();
+				boolean same;
+				if (! t.isPrimitive()) same = deepEquals(f.get(a), f.get(b), paths);
+				else if (t == int.class) same = f.getInt(a) == f.getInt(b);
+				else if (t == long.class) same = f.getLong(a) == f.getLong(b);
+				else if (t == double.class) same = Double.doubleToLongBits(f.getDouble(a)) == Double.doubleToLongBits(f.getDouble(b));
+				else if (t == boolean.class) same = f.getBoolean(a) == f.getBoolean(b);
+				else if (t == float.class) same = Float.floatToIntBits(f.getFloat(a)) == Float.floatToIntBits(f.getFloat(b));
+				else if (t == char.class) same = f.getChar(a) == f.getChar(b);
+				else if (t == byte.class) same = f.getByte(a) == f.getByte(b);
+				else same = f.getShort(a) == f.getShort(b);
+				if (! same)
+					return false;
+			}
+		}
+		catch (IllegalAccessException e) {
+			throw new RuntimeException("cannot compare class [" + a.getClass().getName() + "]: " + e.toString());
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if 'x' and 'y' are the same size and deepEquals() element by element in iteration order. Map entries are compared key and value
+	 */
+	private static boolean inOrder(Collection<?> x, Collection<?> y, Paths paths) {
+		if (x.size() != y.size())
+			return false;
+		Iterator<?> i = x.iterator();
+		Iterator<?> j = y.iterator();
+		while (i.hasNext() && j.hasNext()) {
+			Object p = i.next();
+			Object q = j.next();
+			if ((p instanceof Map.Entry) && (q instanceof Map.Entry)) {
+				Map.Entry<?,?> e = (Map.Entry<?,?>) p;
+				Map.Entry<?,?> f = (Map.Entry<?,?>) q;
+				if ((! deepEquals(e.getKey(), f.getKey(), paths)) || (! deepEquals(e.getValue(), f.getValue(), paths)))
+					return false;
+			}
+			else if (! deepEquals(p, q, paths))
+				return false;
+		}
+		return ! (i.hasNext() || j.hasNext());
+	}
+
+	/**
+	 * @return true if each element of 'x' is deepEquals() to a different element of 'y', whatever their order. For
+	 * Maps, 'x' and 'y' are the key sets of 'xMap' and 'yMap', and the values of matched keys must be deepEquals() too.
+	 * Elements are found by deepHash(), not by equals(), which may overlook fields that deepEquals() compares
+	 */
+	private static boolean matched(Collection<?> x, Collection<?> y, Map<?,?> xMap, Map<?,?> yMap, Paths paths) {
+		HashMap <Integer,List<Object>> buckets = new HashMap <Integer,List<Object>> ();
+		for (Object q : y) {
+			Integer h = Integer.valueOf(deepHash(q, paths.b));
+			List <Object> bucket = buckets.get(h);
+			if (bucket == null)
+				buckets.put(h, bucket = new ArrayList <Object> (1));
+			bucket.add(q);
+		}
+		for (Object p : x) {
+			List <Object> bucket = buckets.get(Integer.valueOf(deepHash(p, paths.a)));
+			if (bucket == null)
+				return false;
+			boolean found = false;
+			for (Iterator <Object> i = bucket.iterator(); i.hasNext() && (! found); ) {
+				Object q = i.next();
+				if (deepEquals(p, q, paths) && ((xMap == null) || deepEquals(xMap.get(p), yMap.get(q), paths))) {
+					i.remove();
+					found = true;
+				}
+			}
+			if (! found)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the comparator that orders a sorted Map, Set or queue, or null if it has none or uses natural ordering
+	 */
+	private static Object comparator(Object o) {
+		if (o instanceof SortedMap)
+			return ((SortedMap<?,?>) o).comparator();
+		if (o instanceof SortedSet)
+			return ((SortedSet<?>) o).comparator();
+		if (o instanceof PriorityQueue)
+			return ((PriorityQueue<?>) o).comparator();
+		if (o instanceof java.util.concurrent.PriorityBlockingQueue)
+			return ((java.util.concurrent.PriorityBlockingQueue<?>) o).comparator();
+		return null;
+	}
+
+
+
 
-	
-	
-	
-	
 	/**
 	 * Source: http://www.javaworld.com/javaworld/javaqa/2003-01/02-qa-0124-clone.html?page=2
 	 * Vladimir Roubtsov, JavaWorld.com, 01/24/03
@@ -61,13 +678,31 @@ public class ObjectUtils {
 	 * @return a clone of obj, using serialization
 	 */
 	public static Object cloneSerial(Object obj) {
+		return deserialize(serialize(obj), obj);
+	}
+
+	private static byte[] serialize(Object obj) {
 		try {
 			ByteArrayOutputStream out = new ByteArrayOutputStream ();
 			ObjectOutputStream oout = new ObjectOutputStream (out);
 			oout.writeObject (obj);
+			oout.close();
+			return out.toByteArray();
+		}
+		catch (Exception e) {
+			throw new RuntimeException ("cannot clone class [" +
+			                                                 obj.getClass ().getName () + "] via serialization: " +
+			                                                 e.toString ());
+		}
+	}
 
+	/**
+	 * @param obj what 'bytes' were serialized from, for the error message
+	 */
+	private static Object deserialize(byte[] bytes, Object obj) {
+		try {
 			ObjectInputStream in = new ObjectInputStream (
-					new ByteArrayInputStream (out.toByteArray ()));
+					new ByteArrayInputStream (bytes));
 			return in.readObject ();
 		}
 		catch (Exception e) {
@@ -76,10 +711,230 @@ public class ObjectUtils {
 			                                                 e.toString ());
 		}
 	}
+
+
+	/**
+	 * Remembers recent serialization clones, so cloning an unchanged object again, typically a template, costs
+	 * a deepHash() and a deepEquals() instead of serializing it.
+	 *
+	 * <p>Each entry keeps the serialized form of an object and one clone of it, the master, which is never changed
+	 * (unless it is shared, below) and is what later objects are compared with. When an object is deepEquals() to a
+	 * master, the clone comes from the entry:<br />
+	 * - shared: the master itself is returned, to every caller. This is nearly free, but callers must treat the
+	 * clone as frozen and never change it<br />
+	 * - not shared: a new clone is deserialized from the stored bytes, which skips the serializing half of cloneSerial()<br />
+	 * The least recently used entry is dropped once there are more than maxEntries.</p>
+	 *
+	 * Transient fields are not compared, as serialization does not copy them. A class that decides for itself what
+	 * is serialized (writeObject(), writeReplace(), serialPersistentFields, Externalizable) is compared with its own
+	 * equals() instead, since its fields may not be what gets copied: without an equals() of its own, it only
+	 * matches itself, so it is never served from the cache.
+	 *
+	 * MT-safety: safe for use from multiple concurrent threads. Hashing and comparing are done outside the cache's lock.
+	 */
+	public static class CloneCache {
+		private final int maxEntries;
+		private final boolean shared;
+		private final LinkedHashMap <Integer,Entry[]> entries;
+		private int size = 0;
+		private long hits = 0;
+		private long misses = 0;
+
+		private static final class Entry {
+			final Object master;
+			final byte[] bytes;
+
+			Entry(Object master, byte[] bytes) {
+				this.master = master;
+				this.bytes = bytes;
+			}
+		}
+
+		/**
+		 * @param maxEntries most objects remembered
+		 * @param shared if true, every clone of an unchanged object is the same frozen object; if false each call gets its own clone
+		 */
+		public CloneCache(int maxEntries, boolean shared) {
+			if (maxEntries < 1)
+				throw new IllegalArgumentException("maxEntries must be at least 1");
+			this.maxEntries = maxEntries;
+			this.shared = shared;
+			this.entries = new LinkedHashMap <Integer,Entry[]> (16, 0.75f, true);
+		}
+
+		/**
+		 * @return a clone of 'obj', as cloneSerial() makes, from this cache if an equal object was cloned recently
+		 */
+		public Object clone(Object obj) {
+			if (obj == null)
+				return null;
+			Integer hash = Integer.valueOf(deepHash(obj));
+			Entry[] candidates;
+			synchronized (this) {
+				candidates = entries.get(hash);
+			}
+			if (candidates != null) {
+				for (Entry e : candidates) {
+					if (deepEquals(obj, e.master)) {
+						synchronized (this) {
+							hits++;
+						}
+						return shared ? e.master : deserialize(e.bytes, obj);
+					}
+				}
+			}
+
+			byte[] bytes = serialize(obj);
+			Entry entry = new Entry(deserialize(bytes, obj), bytes);
+			synchronized (this) {
+				misses++;
+				Entry[] bucket = entries.get(hash);
+				bucket = (bucket == null) ? new Entry[] {entry} : append(bucket, entry);
+				entries.put(hash, bucket);
+				size++;
+				evict();
+			}
+			return shared ? entry.master : deserialize(bytes, obj);
+		}
+
+		private static Entry[] append(Entry[] bucket, Entry entry) {
+			Entry[] result = Arrays.copyOf(bucket, bucket.length+1);
+			result[bucket.length] = entry;
+			return result;
+		}
+
+		/**
+		 * Drop the least recently used entries until there are no more than maxEntries. Holds the lock
+		 */
+		private void evict() {
+			Iterator <Map.Entry<Integer,Entry[]>> i = entries.entrySet().iterator();
+			while ((size > maxEntries) && i.hasNext()) {
+				Map.Entry <Integer,Entry[]> eldest = i.next();
+				Entry[] bucket = eldest.getValue();
+				if (bucket.length == 1)
+					i.remove();
+				else
+					eldest.setValue(Arrays.copyOfRange(bucket, 1, bucket.length));
+				size--;
+			}
+		}
+
+		/** @return how many objects are remembered */
+		public synchronized int size() {
+			return size;
+		}
+
+		/** @return how many clones came from the cache */
+		public synchronized long getHits() {
+			return hits;
+		}
+
+		/** @return how many clones were made by serializing */
+		public synchronized long getMisses() {
+			return misses;
+		}
+
+		public synchronized void clear() {
+			entries.clear();
+			size = 0;
+		}
+	}
 	
 	
 	
 
+	// for testing
+	static class Item implements Serializable {
+		private static final long serialVersionUID = 1L;
+		String label;
+		double weight;
+
+		Item() {
+		}
+
+		Item(String label, double weight) {
+			this.label = label;
+			this.weight = weight;
+		}
+	}
+
+	// for testing: serializes a transient field itself, so its fields are not what serialization copies
+	static class Custom implements Serializable {
+		private static final long serialVersionUID = 1L;
+		transient int[] data;
+
+		Custom(int... data) {
+			this.data = data;
+		}
+
+		private void writeObject(ObjectOutputStream out)
+		throws IOException {
+			out.defaultWriteObject();
+			out.writeObject(data);
+		}
+
+		private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			data = (int[]) in.readObject();
+		}
+	}
+
+	// for testing: a List with state of its own
+	static class NamedList extends ArrayList <String> {
+		private static final long serialVersionUID = 1L;
+		String name;
+
+		NamedList(String name, String... elements) {
+			super(Arrays.asList(elements));
+			this.name = name;
+		}
+	}
+
+	// for testing: equal by id alone
+	static class Keyed implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int id;
+		String label;
+
+		Keyed(int id, String label) {
+			this.id = id;
+			this.label = label;
+		}
+
+		public boolean equals(Object o) {
+			return (o instanceof Keyed) && (((Keyed) o).id == id);
+		}
+
+		public int hashCode() {
+			return id;
+		}
+	}
+
+	// for testing
+	static class Template implements Serializable {
+		private static final long serialVersionUID = 1L;
+		String name;
+		int[] numbers;
+		List <Item> items = new ArrayList <Item> ();
+		Map <String,Item> byName = new HashMap <String,Item> ();
+		transient Object cache;
+		Template self;
+
+		static Template sample() {
+			Template t = new Template();
+			t.name = "template";
+			t.numbers = new int[] {1, 2, 3};
+			t.items.add(new Item("a", 1.0));
+			t.items.add(new Item("b", 2.0));
+			for (Item i : t.items)
+				t.byName.put(i.label, i);
+			t.self = t;
+			return t;
+		}
+	}
+
+
  	/**
  	 * For testing only
  	 * @param args
@@ -95,6 +950,85 @@ public class ObjectUtils {
  		s3 = (String) cloneSerial(s);
  		System.out.println("s / s1 / s2 "+s+" "+s2+" "+s3);
  		System.out.println("s == s3? "+(s == s3));
+
+		Template t = Template.sample();
+		Template same = Template.sample();
+		System.out.println(deepEquals(t, same) && (deepHash(t) == deepHash(same)) ? "OK: equal structures, equal hashes" : "FAIL: equal structures differ");
+		Item shared = new Item("x", 1.0);
+		List <Item> twice = Arrays.asList(shared, shared);
+		List <Item> two = Arrays.asList(new Item("x", 1.0), new Item("x", 1.0));
+		System.out.println(deepEquals(twice, two) && (deepHash(twice) == deepHash(two)) ? "OK: shared reference hashed as deepEquals compares it" : "FAIL: shared reference hashed "+deepHash(twice)+" vs "+deepHash(two));
+		Template loop = Template.sample();
+		loop.self = Template.sample(); // loop -> other -> other, not loop -> loop
+		System.out.println((! deepEquals(t, loop)) ? "OK: cycles of different shape differ" : "FAIL: cycles of different shape equal");
+		same.cache = new Object();
+		System.out.println(deepEquals(t, same) ? "OK: transient fields ignored" : "FAIL: transient field compared");
+		same.items.get(1).weight = 2.5;
+		System.out.println((! deepEquals(t, same)) && (deepHash(t) != deepHash(same)) ? "OK: nested change seen" : "FAIL: nested change missed");
+
+		CloneCache cache = new CloneCache(2, false);
+		Template c1 = (Template) cache.clone(t);
+		Template c2 = (Template) cache.clone(t);
+		System.out.println((c1 != c2) && (c1 != t) && deepEquals(c1, t) && (cache.getHits() == 1) ? "OK: second clone from the cache" : "FAIL: cache hits="+cache.getHits());
+		System.out.println((c2.self == c2) ? "OK: cycle preserved in cached clone" : "FAIL: cycle lost");
+		t.items.get(0).label = "changed";
+		Template c3 = (Template) cache.clone(t);
+		System.out.println("changed".equals(c3.items.get(0).label) && (cache.getMisses() == 2) ? "OK: changed template cloned afresh" : "FAIL: stale clone returned");
+		cache.clone("x");
+		cache.clone("y");
+		System.out.println((cache.size() == 2) ? "OK: cache bounded" : "FAIL: cache size "+cache.size());
+
+		TypeInfo lazy = typeInfo(Custom.class);
+		System.out.println(lazy.isSerializable() && (lazy.layout == null) ? "OK: queries leave the fields closed" : "FAIL: layout made by a query");
+		System.out.println((lazy.getCloneKind() == TypeInfo.CloneKind.SERIALIZABLE) && (lazy.layout != null) ? "OK: layout made when cloning needs it" : "FAIL: lazy layout");
+
+		TypeInfo info = typeInfo(ArrayList.class);
+		System.out.println(info.isA(List.class) && info.isA(AbstractList.class) && info.isA(Iterable.class) && (! info.isA(Set.class)) ? "OK: isA" : "FAIL: isA");
+		System.out.println(hasInterface(new ArrayList <Object> (), "java.util.Collection") && hasInterfaces(ArrayList.class, List.class, RandomAccess.class)
+				&& (! hasInterfaces(ArrayList.class, List.class, Set.class)) ? "OK: hasInterface(s), inherited included" : "FAIL: hasInterface(s)");
+		System.out.println(info.getSuperclasses().equals(Arrays.asList(AbstractList.class, AbstractCollection.class, Object.class)) ? "OK: superclasses" : "FAIL: superclasses "+info.getSuperclasses());
+		System.out.println(info.isCloneable() && info.isSerializable() && (typeInfo(ArrayList.class) == info) ? "OK: classification, cached" : "FAIL: classification");
+		System.out.println((typeInfo(String.class).getCloneKind() == TypeInfo.CloneKind.IMMUTABLE)
+				&& (typeInfo(Item.class).getCloneKind() == TypeInfo.CloneKind.REFLECTIVE)
+				&& (typeInfo(int[].class).getCloneKind() == TypeInfo.CloneKind.ARRAY)
+				&& (typeInfo(Thread.State.class).getCloneKind() == TypeInfo.CloneKind.IMMUTABLE) ? "OK: clone kinds" : "FAIL: clone kinds");
+		System.out.println((typeInfo(Template.class).getFields().size() == 6) && typeInfo(Template.class).isOpen() ? "OK: field layout" : "FAIL: fields "+typeInfo(Template.class).getFields());
+		Item item = (Item) ReflectiveClone.clone(new Item("x", 1.5));
+		System.out.println("x".equals(item.label) && (item.weight == 1.5) ? "OK: ReflectiveClone through TypeInfo" : "FAIL: ReflectiveClone");
+
+		CloneCache custom = new CloneCache(10, false);
+		custom.clone(new Custom(1));
+		Custom c4 = (Custom) custom.clone(new Custom(2));
+		System.out.println((c4.data[0] == 2) && (custom.getHits() == 0) ? "OK: class that writes itself not matched by its fields" : "FAIL: custom serialization cloned as data="+c4.data[0]);
+
+		CloneCache frozen = new CloneCache(10, true);
+		System.out.println((frozen.clone(same) == frozen.clone(Template.sample()) ? "FAIL: different templates shared" : "OK: different templates not shared"));
+		System.out.println((frozen.clone(same) == frozen.clone(same)) ? "OK: shared frozen clone" : "FAIL: shared clone not reused");
+
+		CloneCache sorted = new CloneCache(10, false);
+		TreeMap <String,String> folded = new TreeMap <String,String> (String.CASE_INSENSITIVE_ORDER);
+		folded.put("a", "1");
+		sorted.clone(folded);
+		TreeMap <String,String> natural = new TreeMap <String,String> ();
+		natural.put("a", "1");
+		@SuppressWarnings("unchecked")
+		TreeMap <String,String> c5 = (TreeMap <String,String>) sorted.clone(natural);
+		System.out.println((c5.comparator() == null) && (sorted.getHits() == 0) ? "OK: comparator compared" : "FAIL: clone has comparator "+c5.comparator());
+		sorted.clone(new NamedList("x", "a", "b"));
+		NamedList c6 = (NamedList) sorted.clone(new NamedList("y", "a", "b"));
+		System.out.println("y".equals(c6.name) ? "OK: a subclass's own fields compared" : "FAIL: clone has name "+c6.name);
+		Set <Keyed> keyed = new HashSet <Keyed> (Arrays.asList(new Keyed(1, "one"), new Keyed(2, "two")));
+		Set <Keyed> relabeled = new LinkedHashSet <Keyed> (Arrays.asList(new Keyed(2, "two"), new Keyed(1, "uno")));
+		System.out.println((! deepEquals(new HashSet <Keyed> (keyed), new HashSet <Keyed> (relabeled))) ? "OK: Set elements matched deeply" : "FAIL: Set elements matched with equals()");
+		Map <Keyed,String> byKey = new HashMap <Keyed,String> ();
+		Map <Keyed,String> byRelabeled = new HashMap <Keyed,String> ();
+		for (Keyed k : keyed)
+			byKey.put(k, k.label);
+		for (Keyed k : relabeled)
+			byRelabeled.put(k, byKey.get(k));
+		System.out.println((! deepEquals(byKey, byRelabeled)) ? "OK: Map keys matched deeply" : "FAIL: Map keys matched with containsKey()");
+		Set <Keyed> reordered = new LinkedHashSet <Keyed> (Arrays.asList(new Keyed(2, "two"), new Keyed(1, "one")));
+		System.out.println(deepEquals(new LinkedHashSet <Keyed> (keyed), reordered) ? "OK: Set elements matched regardless of order" : "FAIL: reordered Set differs");
  		
  		
  		
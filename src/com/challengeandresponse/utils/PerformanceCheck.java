@@ -0,0 +1,366 @@
+package com.challengeandresponse.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Benchmarks and allocation checks for the property stores, ReadonlyList and ChatUtils.
+ *
+ * <p>Benchmarks run each scenario for a fixed time after a warm-up and print the time per operation. They are for
+ * comparing one change with another on the same machine, not for absolute numbers.</p>
+ *
+ * <p>Allocation checks measure the bytes the current thread allocates per operation, through the HotSpot
+ * ThreadMXBean, and print FAIL when a hot path allocates more than its budget. main() exits with status 1 if any check
+ * fails, so a build script can run it as a gate. On a JVM that cannot measure allocation the checks are skipped.</p>
+ *
+ * Usage: PerformanceCheck [bench|alloc] - with no argument, both are run
+ *
+ * @author jim
+ *
+ */
+public class PerformanceCheck {
+
+	/** how long each benchmark is warmed up, then measured */
+	private static final long WARMUP_MILLIS = 500;
+	private static final long MEASURE_MILLIS = 1000;
+
+	/** how many operations each allocation check measures, after as many to warm up */
+	private static final int ALLOC_OPS = 200000;
+
+	/** results are folded in here so the JIT cannot discard the work */
+	private static volatile long sink;
+
+	private static int failures = 0;
+
+
+	/**
+	 * One operation to measure
+	 */
+	private interface Op {
+		/**
+		 * Do the operation once
+		 * @param i how many times it has been done before, to vary keys with
+		 * @return anything depending on the work, to be kept from the JIT
+		 */
+		public long run(int i);
+	}
+
+
+	/**
+	 * Run 'op' for MEASURE_MILLIS after warming up, and print the time per operation
+	 */
+	private static void bench(String name, Op op) {
+		loop(op, WARMUP_MILLIS);
+		long[] result = loop(op, MEASURE_MILLIS);
+		System.out.printf("%-56s %12.1f ns/op%n", name, (double) result[1] / result[0]);
+	}
+
+	/**
+	 * @return operations done, and nanoseconds taken, running 'op' for about 'millis'
+	 */
+	private static long[] loop(Op op, long millis) {
+		long acc = 0;
+		long ops = 0;
+		long start = System.nanoTime();
+		long end = start + millis*1000000L;
+		long now;
+		do {
+			for (int i = 0; i < 1000; i++)
+				acc += op.run((int) ops + i);
+			ops += 1000;
+			now = System.nanoTime();
+		} while (now < end);
+		sink += acc;
+		return new long[] {ops, now-start};
+	}
+
+
+	/**
+	 * Run 'op' ALLOC_OPS times after warming up, and print OK if it allocated no more than 'budget' bytes per operation
+	 */
+	private static void allocation(String name, double budget, Op op) {
+		long before = allocatedBytes();
+		if (before < 0) {
+			System.out.println("SKIPPED: "+name+" (allocation cannot be measured on this JVM)");
+			return;
+		}
+		long acc = 0;
+		for (int i = 0; i < ALLOC_OPS; i++)
+			acc += op.run(i);
+		before = allocatedBytes();
+		for (int i = 0; i < ALLOC_OPS; i++)
+			acc += op.run(i);
+		long after = allocatedBytes();
+		sink += acc;
+		double perOp = (double) (after-before) / ALLOC_OPS;
+		if (perOp <= budget)
+			System.out.printf("OK: %s allocates %.1f bytes/op (budget %.0f)%n", name, perOp, budget);
+		else {
+			System.out.printf("FAIL: %s allocates %.1f bytes/op, over its budget of %.0f%n", name, perOp, budget);
+			failures++;
+		}
+	}
+
+	/**
+	 * @return the bytes the current thread has allocated so far, or -1 if the JVM cannot tell
+	 */
+	private static long allocatedBytes() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (! (bean instanceof com.sun.management.ThreadMXBean))
+				return -1;
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+			if (! hotspot.isThreadAllocatedMemoryEnabled())
+				return -1;
+			return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		catch (UnsupportedOperationException e) {
+			return -1;
+		}
+		catch (LinkageError e) { // com.sun.management is not there
+			return -1;
+		}
+	}
+
+
+	/**
+	 * @return 'n' keys, key0 ... key(n-1)
+	 */
+	private static String[] keys(int n) {
+		String[] keys = new String[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = "key"+i;
+		return keys;
+	}
+
+	private static KeyValueProperties kvp(String[] keys) {
+		KeyValueProperties kvp = new KeyValueProperties();
+		for (int i = 0; i < keys.length; i++)
+			kvp.setProperty(keys[i], i);
+		return kvp;
+	}
+
+	private static PropertyThang propertyThang(String[] keys) {
+		PropertyThang pt = new PropertyThang("bench");
+		for (int i = 0; i < keys.length; i++)
+			pt.setProperty(keys[i], i);
+		return pt;
+	}
+
+	private static Map <String,Object> bigMap(int n) {
+		Map <String,Object> map = new LinkedHashMap <String,Object> ();
+		for (int i = 0; i < n; i++)
+			map.put("key"+i, (i % 2 == 0) ? (Object) Integer.valueOf(i) : (Object) ("value"+i));
+		return map;
+	}
+
+
+
+	/**
+	 * The benchmark scenarios
+	 */
+	private static void benchmarks()
+	throws InterruptedException {
+		for (final int size : new int[] {16, 1024, 65536}) {
+			final String[] keys = keys(size);
+			final int mask = Integer.highestOneBit(size)-1;
+			final KeyValueProperties kvp = kvp(keys);
+			final PropertyThang pt = propertyThang(keys);
+			bench("KeyValueProperties.getIntProperty, "+size+" keys", new Op() {
+				public long run(int i) {
+					return kvp.getIntProperty(keys[i & mask], -1);
+				}
+			});
+			bench("KeyValueProperties.setProperty(int), "+size+" keys", new Op() {
+				public long run(int i) {
+					kvp.setProperty(keys[i & mask], i);
+					return i;
+				}
+			});
+			bench("PropertyThang.getIntProperty, "+size+" keys", new Op() {
+				public long run(int i) {
+					return pt.getIntProperty(keys[i & mask], -1);
+				}
+			});
+			bench("PropertyThang.setProperty(int), "+size+" keys", new Op() {
+				public long run(int i) {
+					pt.setProperty(keys[i & mask], i);
+					return i;
+				}
+			});
+		}
+
+		final PropertyThang enumerated = propertyThang(keys(1024));
+		bench("PropertyThang.getPropertyKeySet, 1024 keys", new Op() {
+			public long run(int i) {
+				long n = 0;
+				for (String key : enumerated.getPropertyKeySet())
+					n += key.length();
+				return n;
+			}
+		});
+		bench("PropertyThang.getPropertyKeys (copy), 1024 keys", new Op() {
+			public long run(int i) {
+				long n = 0;
+				for (String key : enumerated.getPropertyKeys())
+					n += key.length();
+				return n;
+			}
+		});
+
+		final List <Integer> raw = new ArrayList <Integer> ();
+		for (int i = 0; i < 1000; i++)
+			raw.add(Integer.valueOf(i));
+		final List <Integer> readonly = ReadonlyList.of(raw);
+		bench("ArrayList iteration, 1000 elements", new Op() {
+			public long run(int i) {
+				long n = 0;
+				for (Integer e : raw)
+					n += e.intValue();
+				return n;
+			}
+		});
+		bench("ReadonlyList iteration, 1000 elements", new Op() {
+			public long run(int i) {
+				long n = 0;
+				for (Integer e : readonly)
+					n += e.intValue();
+				return n;
+			}
+		});
+
+		final Map <String,Object> map = bigMap(10000);
+		final StringBuilder out = new StringBuilder();
+		bench("ChatUtils.objectToString, 10000-entry map", new Op() {
+			public long run(int i) {
+				return ChatUtils.objectToString(map, ";").length();
+			}
+		});
+		final ChatUtils.Limits limits = new ChatUtils.Limits(2000, 0, 0);
+		bench("ChatUtils.objectToString, 10000-entry map, 2000 chars", new Op() {
+			public long run(int i) {
+				out.setLength(0);
+				try {
+					ChatUtils.objectToString(map, ";", out, limits);
+				}
+				catch (java.io.IOException e) {
+					throw new RuntimeException("cannot render: "+e.toString());
+				}
+				return out.length();
+			}
+		});
+
+		contendedClaims(1);
+		contendedClaims(4);
+	}
+
+	/**
+	 * Benchmark 'threads' threads claiming and releasing a few namespaces of one PropertyThang2 between them
+	 */
+	private static void contendedClaims(final int threads)
+	throws InterruptedException {
+		final PropertyThang2 pt2 = new PropertyThang2();
+		final String[] namespaces = keys(4);
+		final long[] ops = new long[threads];
+		final long end = System.nanoTime() + (WARMUP_MILLIS+MEASURE_MILLIS)*1000000L;
+		final long measureFrom = System.nanoTime() + WARMUP_MILLIS*1000000L;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int me = t;
+			workers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; System.nanoTime() < end; i++) {
+						PropertyThang2.Lease lease = pt2.tryClaim(namespaces[i & 3], 0);
+						if (lease != null)
+							lease.release();
+						if (System.nanoTime() >= measureFrom)
+							ops[me]++;
+					}
+				}
+			};
+		}
+		for (Thread t : workers)
+			t.start();
+		for (Thread t : workers)
+			t.join();
+		long total = 0;
+		for (long n : ops)
+			total += n;
+		System.out.printf("%-56s %12.1f ns/op%n", "PropertyThang2 tryClaim+release, "+threads+" threads", (MEASURE_MILLIS*1000000.0*threads) / total);
+	}
+
+
+	/**
+	 * The allocation budgets of the hot paths. A budget is bytes per operation, averaged, so a little slack covers
+	 * the occasional allocation by the JVM itself
+	 */
+	private static void allocationChecks() {
+		final String[] keys = keys(1024);
+		final KeyValueProperties kvp = kvp(keys);
+		final PropertyThang pt = propertyThang(keys);
+		allocation("KeyValueProperties.getIntProperty", 1, new Op() {
+			public long run(int i) {
+				return kvp.getIntProperty(keys[i & 1023], -1);
+			}
+		});
+		allocation("PropertyThang.getIntProperty", 1, new Op() {
+			public long run(int i) {
+				return pt.getIntProperty(keys[i & 1023], -1);
+			}
+		});
+		allocation("PropertyThang.hasProperty", 1, new Op() {
+			public long run(int i) {
+				return pt.hasProperty(keys[i & 1023]) ? 1 : 0;
+			}
+		});
+
+		final List <Integer> raw = new ArrayList <Integer> ();
+		for (int i = 0; i < 1000; i++)
+			raw.add(Integer.valueOf(i));
+		final List <Integer> readonly = ReadonlyList.of(raw);
+		allocation("ReadonlyList.get", 1, new Op() {
+			public long run(int i) {
+				return readonly.get(i % 1000).intValue();
+			}
+		});
+		allocation("ReadonlyList iteration of 1000 elements", 8, new Op() {
+			public long run(int i) {
+				long n = 0;
+				for (Integer e : readonly)
+					n += e.intValue();
+				return n;
+			}
+		});
+
+		final Map <String,Object> map = bigMap(100);
+		final StringBuilder out = new StringBuilder(4096);
+		allocation("ChatUtils.objectToString of a 100-entry map into a StringBuilder", 512, new Op() {
+			public long run(int i) {
+				out.setLength(0);
+				try {
+					ChatUtils.objectToString(map, ";", out);
+				}
+				catch (java.io.IOException e) {
+					throw new RuntimeException("cannot render: "+e.toString());
+				}
+				return out.length();
+			}
+		});
+	}
+
+
+
+	public static void main(String[] args)
+	throws InterruptedException {
+		String which = (args.length > 0) ? args[0] : "";
+		if (! "bench".equals(which))
+			allocationChecks();
+		if (! "alloc".equals(which))
+			benchmarks();
+		if (failures > 0) {
+			System.out.println(failures+" allocation check(s) FAILED");
+			System.exit(1);
+		}
+	}
+
+}
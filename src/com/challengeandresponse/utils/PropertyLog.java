@@ -0,0 +1,683 @@
+package com.challengeandresponse.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A durable, append-only log of typed property puts and removes, grouped by namespace.
+ * Attach one to a PropertyThang or a PropertyThang2 to make every change survive a crash.</p>
+ *
+ * <p>The log lives in a directory holding at most one snapshot file and one or more log generations:<br />
+ * - each write is framed with its length and a CRC32, so a torn record at the tail is detected and dropped on recovery<br />
+ * - a transaction's changes to a namespace are written as one record, so recovery applies all of them or none<br />
+ * - writes are buffered and made durable in batches: concurrent writers waiting on sync() share one write() and one fsync (group commit)<br />
+ * - compaction rolls to a new log generation, writes the owner's live state to a new snapshot, then deletes the old generations.
+ *   Recovery loads the snapshot and replays only the generations written since, so replay time does not grow with the store<br />
+ * </p>
+ *
+ * <p>If syncEveryWrite is false, writers do not wait for the disk. A background thread syncs the log every
+ * flushIntervalMillis instead, and a crash loses at most that much. The same thread compacts the log once
+ * the current generation grows past compactAfterBytes. If the background thread cannot write, the failure is kept
+ * and thrown from the next commit by an owner, or from close().</p>
+ *
+ * MT-safety: this class is safe for use from multiple concurrent threads.
+ *
+ * @author jim
+ *
+ */
+public class PropertyLog {
+
+	static final byte OP_PUT = 1;
+	static final byte OP_REMOVE = 2;
+	static final byte OP_BATCH = 3;
+
+	private static final int SNAPSHOT_MAGIC = 0x50544c53; // "PTLS"
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	private static final String SNAPSHOT_NAME = "snapshot";
+	private static final String LOG_PREFIX = "log.";
+
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+	public static final long DEFAULT_COMPACT_AFTER_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Receives the records of a log or a snapshot, in order.
+	 * Owners implement this to replay a log into their store on recovery.
+	 */
+	interface Receiver {
+		void put(String namespace, String key, byte type, long bits, String string);
+		void remove(String namespace, String key);
+	}
+
+	/**
+	 * Supplies an owner's live state when the log is compacted.
+	 * Implementations call receiver.put() once for every property in every namespace.
+	 */
+	interface Source {
+		void writeTo(Receiver receiver);
+	}
+
+
+	private final File directory;
+	private final boolean syncEveryWrite;
+	private final long flushIntervalMillis;
+	private final long compactAfterBytes;
+
+	// guarded by 'this': records appended but not yet written to the channel
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appendedSeq = 0;
+	private long generationBytes = 0;
+	private FileChannel channel;
+	private long generation;
+
+	// guarded by syncLock
+	private final Object syncLock = new Object();
+	private long syncedSeq = 0;
+	private long written = 0;	// length of the current generation on disk: where the next batch starts
+	private boolean closed = false;
+
+	private final Object compactLock = new Object();
+	private volatile Source source;
+	private volatile boolean open;
+	private Thread worker;
+	private volatile IOException failure; // from the background thread, not yet thrown to a caller. Taken under 'this'
+
+
+	/**
+	 * Create a log in 'directory' that waits for the disk on every write, with the default compaction threshold
+	 * @param directory the directory holding the log files. Created if it does not exist
+	 */
+	public PropertyLog(File directory) {
+		this(directory, true, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_COMPACT_AFTER_BYTES);
+	}
+
+	/**
+	 * @param directory the directory holding the log files. Created if it does not exist
+	 * @param syncEveryWrite if true, each write returns only once it is on disk. If false, writes are synced in the background every flushIntervalMillis
+	 * @param flushIntervalMillis how often the background thread syncs the log and checks whether it should compact
+	 * @param compactAfterBytes compact the log once the current generation grows past this many bytes. 0 or less disables background compaction
+	 */
+	public PropertyLog(File directory, boolean syncEveryWrite, long flushIntervalMillis, long compactAfterBytes) {
+		this.directory = directory;
+		this.syncEveryWrite = syncEveryWrite;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.compactAfterBytes = compactAfterBytes;
+	}
+
+
+	/**
+	 * Replay the snapshot and the log generations written since into 'receiver', then open the log for writing.
+	 * A torn or corrupt record ends the replay of its generation, and is cut off so new records follow the last good one.
+	 * Must be called once, before anything is written.
+	 * @param receiver gets every recovered record, in order
+	 * @param source supplies the owner's live state when the log is compacted
+	 * @throws IOException if the log files cannot be read or the log cannot be opened
+	 * @throws IllegalStateException if the log is already open
+	 */
+	synchronized void open(Receiver receiver, Source source)
+	throws IOException {
+		if (open)
+			throw new IllegalStateException("PropertyLog in "+directory+" is already open");
+		if ((! directory.isDirectory()) && (! directory.mkdirs()))
+			throw new IOException("cannot create log directory "+directory);
+
+		long firstGeneration = 0;
+		File snapshot = new File(directory, SNAPSHOT_NAME);
+		if (snapshot.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+			try {
+				if (in.readInt() != SNAPSHOT_MAGIC)
+					throw new IOException("not a property log snapshot: "+snapshot);
+				firstGeneration = in.readLong();
+				replay(in, receiver);
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		long[] generations = generations();
+		long lastGeneration = firstGeneration;
+		long lastGoodLength = 0;
+		for (int i = 0; i < generations.length; i++) {
+			File f = logFile(generations[i]);
+			if (generations[i] < firstGeneration) { // already in the snapshot, left behind by an interrupted compaction
+				f.delete();
+				continue;
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				lastGeneration = generations[i];
+				lastGoodLength = replay(in, receiver);
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		this.generation = lastGeneration;
+		this.channel = openChannel(lastGeneration);
+		this.channel.truncate(lastGoodLength);
+		this.channel.position(lastGoodLength);
+		this.generationBytes = lastGoodLength;
+		this.written = lastGoodLength;
+		this.source = source;
+		this.open = true;
+
+		worker = new Thread("PropertyLog "+directory) {
+			public void run() {
+				background();
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+
+	/**
+	 * Append a put record
+	 * @return the sequence number of the record, to pass to sync(long)
+	 */
+	long appendPut(String namespace, String key, byte type, long bits, String string) {
+		return append(encode(OP_PUT, namespace, key, type, bits, string));
+	}
+
+	/**
+	 * Append a remove record
+	 * @return the sequence number of the record, to pass to sync(long)
+	 */
+	long appendRemove(String namespace, String key) {
+		return append(encode(OP_REMOVE, namespace, key, (byte) 0, 0L, null));
+	}
+
+	/**
+	 * Append several String puts and removes in one namespace as a single record, so recovery applies all of them or none
+	 * @param keys the keys changed
+	 * @param values the new value of each key, or null where the key was removed
+	 * @return the sequence number of the record, to pass to sync(long)
+	 */
+	long appendBatch(String namespace, List <String> keys, List <String> values) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0); // length and crc, filled in by frame()
+			out.writeInt(0);
+			out.writeByte(OP_BATCH);
+			writeString(out, namespace);
+			out.writeInt(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				String value = values.get(i);
+				out.writeByte((value == null) ? OP_REMOVE : OP_PUT);
+				writeString(out, keys.get(i));
+				if (value != null)
+					writeString(out, value);
+			}
+			out.flush();
+			return append(frame(bytes.toByteArray()));
+		}
+		catch (IOException e) { // cannot happen writing to memory
+			throw new RuntimeException(e.toString());
+		}
+	}
+
+	private synchronized long append(byte[] record) {
+		if (! open)
+			throw new IllegalStateException("PropertyLog in "+directory+" is not open");
+		pending.write(record, 0, record.length);
+		generationBytes += record.length;
+		return ++appendedSeq;
+	}
+
+	/**
+	 * Called by owners after appending. Waits for the record to reach the disk if this log syncs every write
+	 * @param seq the sequence number returned by an append call
+	 * @throws RuntimeException if the log cannot be written, or the background thread failed to write it since the last commit
+	 */
+	void commit(long seq) {
+		try {
+			throwFailure();
+			if (syncEveryWrite)
+				sync(seq);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("cannot write property log in "+directory+": "+e.toString());
+		}
+	}
+
+
+	/**
+	 * Throw, once, the failure the background thread kept, if there is one
+	 */
+	private void throwFailure()
+	throws IOException {
+		if (failure == null)
+			return;
+		IOException e;
+		synchronized (this) {
+			e = failure;
+			failure = null;
+		}
+		if (e != null)
+			throw e;
+	}
+
+
+	/**
+	 * Force everything appended so far onto the disk
+	 * @throws IOException if the log cannot be written
+	 */
+	public void sync()
+	throws IOException {
+		long seq;
+		synchronized (this) {
+			seq = appendedSeq;
+		}
+		sync(seq);
+	}
+
+	/**
+	 * Make every record up to 'seq' durable. Threads arriving while another thread is forcing the log
+	 * queue on syncLock, and the first of them to get it writes and forces everything they appended in one batch.
+	 */
+	private void sync(long seq)
+	throws IOException {
+		synchronized (syncLock) {
+			if (syncedSeq >= seq)
+				return; // an earlier batch already covered this record
+			byte[] batch;
+			long target;
+			synchronized (this) {
+				batch = pending.toByteArray();
+				pending.reset();
+				target = appendedSeq;
+			}
+			writeBatch(batch);
+			syncedSeq = target;
+		}
+	}
+
+	/**
+	 * Write 'batch' at the end of the current generation and force it onto the disk. Holds syncLock.
+	 * If that fails, the batch is put back in front of 'pending' and the generation is cut back to where the batch
+	 * began, so the next sync writes the batch again whole.
+	 */
+	private void writeBatch(byte[] batch)
+	throws IOException {
+		try {
+			FileChannel ch = usableChannel();
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(batch);
+				while (buf.hasRemaining())
+					ch.write(buf);
+				ch.force(false);
+			}
+			catch (IOException e) {
+				if (ch.isOpen()) { // if the failure closed it, usableChannel() cuts it back when it reopens it
+					try {
+						ch.truncate(written);
+						ch.position(written);
+					}
+					catch (IOException ignored) {
+					}
+				}
+				throw e;
+			}
+			written += batch.length;
+		}
+		catch (IOException e) {
+			synchronized (this) {
+				ByteArrayOutputStream restored = new ByteArrayOutputStream(batch.length + pending.size());
+				restored.write(batch, 0, batch.length);
+				pending.writeTo(restored);
+				pending = restored;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the current generation's channel, positioned after the last batch written. If a failed write closed it
+	 * (ClosedByInterruptException, for one) the file is opened again and cut back to that point. Holds syncLock
+	 * @throws ClosedChannelException once close() has closed the log
+	 */
+	private FileChannel usableChannel()
+	throws IOException {
+		FileChannel ch;
+		long gen;
+		synchronized (this) {
+			ch = channel;
+			gen = generation;
+		}
+		if (ch.isOpen())
+			return ch;
+		if (closed)
+			throw new ClosedChannelException();
+		ch = new RandomAccessFile(logFile(gen), "rw").getChannel();
+		ch.truncate(written);
+		ch.position(written);
+		synchronized (this) {
+			channel = ch;
+		}
+		return ch;
+	}
+
+
+	/**
+	 * Roll to a new log generation, write the owner's current state to a new snapshot, and delete the
+	 * generations the snapshot replaces. Writers are only held up while the generation is rolled.
+	 * @throws IOException if the snapshot cannot be written. The previous snapshot and logs are left intact
+	 */
+	public void compact()
+	throws IOException {
+		synchronized (compactLock) {
+			Source src = source;
+			if ((src == null) || (! open))
+				return;
+
+			// roll to a new generation. Every record from here on lands in it, so the snapshot
+			// (taken after this point) plus the new generation always recovers the current state
+			long newGeneration;
+			synchronized (syncLock) {
+				FileChannel next = openChannel(generation+1);
+				byte[] batch;
+				long target;
+				synchronized (this) {
+					batch = pending.toByteArray();
+					pending.reset();
+					target = appendedSeq;
+				}
+				try {
+					writeBatch(batch);
+				}
+				catch (IOException e) {
+					next.close();
+					logFile(generation+1).delete();
+					throw e;
+				}
+				FileChannel previous;
+				synchronized (this) {
+					previous = channel;
+					channel = next;
+					generation++;
+					generationBytes = pending.size();
+					newGeneration = generation;
+				}
+				previous.close();
+				written = 0;
+				syncedSeq = target;
+			}
+
+			File tmp = new File(directory, SNAPSHOT_NAME+".tmp");
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeLong(newGeneration);
+				final IOException[] failure = new IOException[1];
+				src.writeTo(new Receiver() {
+					public void put(String namespace, String key, byte type, long bits, String string) {
+						if (failure[0] != null)
+							return;
+						try {
+							out.write(encode(OP_PUT, namespace, key, type, bits, string));
+						}
+						catch (IOException e) {
+							failure[0] = e;
+						}
+					}
+					public void remove(String namespace, String key) {
+					}
+				});
+				if (failure[0] != null)
+					throw failure[0];
+				out.flush();
+				fos.getFD().sync();
+			}
+			finally {
+				fos.close();
+			}
+			Files.move(tmp.toPath(), new File(directory, SNAPSHOT_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			long[] generations = generations();
+			for (int i = 0; i < generations.length; i++)
+				if (generations[i] < newGeneration)
+					logFile(generations[i]).delete();
+		}
+	}
+
+
+	/**
+	 * Sync the log, stop the background thread and close the log file
+	 * @throws IOException if the final sync fails, or the background thread failed to write since the last commit
+	 */
+	public void close()
+	throws IOException {
+		synchronized (this) {
+			if (! open)
+				return;
+			open = false;
+			notifyAll(); // wake the background thread, which sees 'open' false and ends
+		}
+		// never interrupt it: an interrupt in the middle of a write closes the channel under the batch being written
+		boolean interrupted = false;
+		while (true) {
+			try {
+				worker.join();
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		try {
+			synchronized (compactLock) {
+				try {
+					sync();
+				}
+				finally {
+					synchronized (syncLock) {
+						closed = true;
+						synchronized (this) {
+							channel.close();
+						}
+					}
+				}
+			}
+			throwFailure();
+		}
+		finally {
+			if (interrupted) // only now, or the interrupt would close the channel under the final sync
+				Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * The background thread: sync periodically when writers don't, and compact when the log has grown large
+	 */
+	private void background() {
+		while (true) {
+			synchronized (this) {
+				try {
+					if (open)
+						wait(flushIntervalMillis);
+				}
+				catch (InterruptedException e) { // only close() stops this thread
+				}
+				if (! open)
+					return;
+			}
+			try {
+				if (! syncEveryWrite)
+					sync();
+				long size;
+				synchronized (this) {
+					size = generationBytes;
+				}
+				if ((compactAfterBytes > 0) && (size > compactAfterBytes))
+					compact();
+			}
+			catch (IOException e) {
+				synchronized (this) {
+					if (failure == null) // the first is the one to report
+						failure = e;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Read framed records from 'in' into 'receiver' until the end of the stream or the first bad record
+	 * @return the number of bytes of good records read
+	 */
+	private static long replay(DataInputStream in, Receiver receiver)
+	throws IOException {
+		long good = 0;
+		CRC32 crc = new CRC32();
+		while (true) {
+			int length;
+			int checksum;
+			byte[] payload;
+			try {
+				length = in.readInt();
+				checksum = in.readInt();
+				if ((length < 0) || (length > MAX_RECORD_SIZE))
+					return good;
+				payload = new byte[length];
+				in.readFully(payload);
+			}
+			catch (EOFException e) {
+				return good;
+			}
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != checksum)
+				return good;
+
+			DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+			byte op = rec.readByte();
+			String namespace = readString(rec);
+			if (op == OP_BATCH) {
+				int n = rec.readInt();
+				for (int i = 0; i < n; i++) {
+					byte itemOp = rec.readByte();
+					String key = readString(rec);
+					if (itemOp == OP_PUT)
+						receiver.put(namespace, key, PropertyValue.STRING, 0L, readString(rec));
+					else
+						receiver.remove(namespace, key);
+				}
+				good += 8 + length;
+				continue;
+			}
+			String key = readString(rec);
+			if (op == OP_PUT) {
+				byte type = rec.readByte();
+				if (type == PropertyValue.STRING)
+					receiver.put(namespace, key, type, 0L, readString(rec));
+				else
+					receiver.put(namespace, key, type, rec.readLong(), null);
+			}
+			else if (op == OP_REMOVE)
+				receiver.remove(namespace, key);
+			good += 8 + length;
+		}
+	}
+
+
+	/**
+	 * Encode one framed record: length, CRC32 of the payload, payload
+	 */
+	static byte[] encode(byte op, String namespace, String key, byte type, long bits, String string) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0); // length and crc, filled in by frame()
+			out.writeInt(0);
+			out.writeByte(op);
+			writeString(out, namespace);
+			writeString(out, key);
+			if (op == OP_PUT) {
+				out.writeByte(type);
+				if (type == PropertyValue.STRING)
+					writeString(out, string);
+				else
+					out.writeLong(bits);
+			}
+			out.flush();
+			return frame(bytes.toByteArray());
+		}
+		catch (IOException e) { // cannot happen writing to memory
+			throw new RuntimeException(e.toString());
+		}
+	}
+
+	/**
+	 * Fill in the length and CRC32 of a record whose payload follows 8 reserved bytes
+	 */
+	private static byte[] frame(byte[] record) {
+		int length = record.length - 8;
+		CRC32 crc = new CRC32();
+		crc.update(record, 8, length);
+		ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+		return record;
+	}
+
+	/** Strings are written as a length and UTF-8 bytes, so unlike writeUTF they have no 64K limit */
+	static void writeString(DataOutputStream out, String s)
+	throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	static String readString(DataInputStream in)
+	throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+
+	private File logFile(long gen) {
+		return new File(directory, LOG_PREFIX+gen);
+	}
+
+	private FileChannel openChannel(long gen)
+	throws IOException {
+		FileChannel ch = new RandomAccessFile(logFile(gen), "rw").getChannel();
+		ch.position(ch.size());
+		return ch;
+	}
+
+	/**
+	 * @return the generation numbers of the log files in the directory, in ascending order
+	 */
+	private long[] generations() {
+		String[] names = directory.list();
+		if (names == null)
+			return new long[0];
+		long[] gens = new long[names.length];
+		int n = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (! names[i].startsWith(LOG_PREFIX))
+				continue;
+			try {
+				gens[n++] = Long.parseLong(names[i].substring(LOG_PREFIX.length()));
+			}
+			catch (NumberFormatException e) {
+				n--;
+			}
+		}
+		long[] result = Arrays.copyOf(gens, n);
+		Arrays.sort(result);
+		return result;
+	}
+
+}
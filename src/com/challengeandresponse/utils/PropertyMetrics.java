@@ -0,0 +1,112 @@
+package com.challengeandresponse.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and gauges for one PropertyThang2, registered with JMX by PropertyThang2.registerMBean().
+ *
+ * Counters are LongAdders, so counting from many threads at once does not contend, and a counter that is switched
+ * off costs one volatile read. Gauges (namespace and entry counts, estimated bytes) are only computed when they are read.
+ * Counters are on unless the system property "com.challengeandresponse.utils.metrics" is "false".
+ *
+ * @author jim
+ *
+ */
+public class PropertyMetrics implements PropertyMetricsMBean {
+
+	private final PropertyThang2 owner;
+	volatile boolean enabled = ! "false".equals(System.getProperty("com.challengeandresponse.utils.metrics"));
+
+	final LongAdder claims = new LongAdder();
+	final LongAdder claimRejections = new LongAdder();
+	final LongAdder claimWaits = new LongAdder();
+	final LongAdder claimWaitNanos = new LongAdder();
+	final LongAdder gets = new LongAdder();
+	final LongAdder puts = new LongAdder();
+	final LongAdder removes = new LongAdder();
+	final LongAdder dictionaryRejections = new LongAdder();
+
+	PropertyMetrics(PropertyThang2 owner) {
+		this.owner = owner;
+	}
+
+
+	void claimWaited(long nanos) {
+		if (enabled) {
+			claimWaits.increment();
+			claimWaitNanos.add(nanos);
+		}
+	}
+
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public long getClaims() {
+		return claims.sum();
+	}
+
+	public long getClaimRejections() {
+		return claimRejections.sum();
+	}
+
+	public long getClaimWaits() {
+		return claimWaits.sum();
+	}
+
+	public long getClaimWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(claimWaitNanos.sum());
+	}
+
+	public long getGets() {
+		return gets.sum();
+	}
+
+	public long getPuts() {
+		return puts.sum();
+	}
+
+	public long getRemoves() {
+		return removes.sum();
+	}
+
+	public long getDictionaryRejections() {
+		return dictionaryRejections.sum();
+	}
+
+	public int getNamespaceCount() {
+		return owner.namespaceCount();
+	}
+
+	public int getClaimedCount() {
+		return owner.claimedCount();
+	}
+
+	public int getEntryCount(String namespace) {
+		KeyValueProperties kvp = owner.loadedProperties(namespace);
+		return (kvp == null) ? 0 : kvp.size();
+	}
+
+	public long getEstimatedBytes(String namespace) {
+		KeyValueProperties kvp = owner.loadedProperties(namespace);
+		return (kvp == null) ? 0 : kvp.estimatedBytes();
+	}
+
+	public void reset() {
+		claims.reset();
+		claimRejections.reset();
+		claimWaits.reset();
+		claimWaitNanos.reset();
+		gets.reset();
+		puts.reset();
+		removes.reset();
+		dictionaryRejections.reset();
+	}
+
+}
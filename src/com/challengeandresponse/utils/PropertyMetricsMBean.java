@@ -0,0 +1,47 @@
+package com.challengeandresponse.utils;
+
+/**
+ * The JMX view of a PropertyMetrics: counters and gauges for one PropertyThang2 and the KeyValueProperties it hands out.
+ * Counters count from when the PropertyThang2 was made, or from the last reset().
+ *
+ * @author jim
+ *
+ */
+public interface PropertyMetricsMBean {
+
+	/** @return true if counters are being kept */
+	public boolean isEnabled();
+	/** Turn the counters on or off. Gauges are computed when read, so they work either way */
+	public void setEnabled(boolean enabled);
+
+	/** @return successful claims of a namespace, by getProperties(), tryClaim(), claimAsync() or hand-off */
+	public long getClaims();
+	/** @return claims refused because the namespace was held */
+	public long getClaimRejections();
+	/** @return claimAsync() calls that had to wait for the namespace */
+	public long getClaimWaits();
+	/** @return total time, in milliseconds, that claimAsync() callers waited for their namespace */
+	public long getClaimWaitMillis();
+
+	/** @return reads of a property from any namespace */
+	public long getGets();
+	/** @return writes of a value to a property of any namespace, counting each key a transaction sets */
+	public long getPuts();
+	/** @return properties removed from any namespace, counting each key a transaction or clear() removes */
+	public long getRemoves();
+	/** @return puts refused because the key was not in the dictionary */
+	public long getDictionaryRejections();
+
+	/** @return the number of namespaces in memory */
+	public int getNamespaceCount();
+	/** @return the number of namespaces claimed now */
+	public int getClaimedCount();
+	/** @return the number of properties in 'namespace', 0 if it is not in memory */
+	public int getEntryCount(String namespace);
+	/** @return a rough size, in bytes, of the properties in 'namespace', 0 if it is not in memory */
+	public long getEstimatedBytes(String namespace);
+
+	/** Set every counter back to 0 */
+	public void reset();
+
+}
@@ -0,0 +1,379 @@
+package com.challengeandresponse.utils;
+
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The store shared by a PropertyThang and all its namespace views: one concurrent table per namespace,
+ * plus the optional log, size limits and time-to-live bookkeeping that apply to them.
+ *
+ * <p>Limits are by entry count and by estimated bytes, per namespace and for the whole store. When a put takes
+ * a namespace or the store over a limit, entries are evicted by sampled LRU: a few entries are read from a random
+ * part of a table and the least recently used of them goes, so each eviction costs O(1) no matter how large the
+ * table is. Access times are only recorded while some limit is set.</p>
+ *
+ * <p>Expired entries are removed when they are next read, and puts into a namespace with expiring entries
+ * also sample and remove a few expired ones, so expiry needs no sweeps and no timer thread.</p>
+ *
+ * @author jim
+ *
+ */
+final class PropertyStore {
+
+	/** how many entries an eviction or expiry pass looks at */
+	private static final int SAMPLES = 5;
+	/** most evictions one put will do to get back under a limit */
+	private static final int MAX_EVICTIONS_PER_PUT = 8;
+
+	final ConcurrentHashMap <String,Namespace> namespaces = new ConcurrentHashMap <String,Namespace> ();
+	final Limits limits = new Limits();
+	/** if set, every put and remove in every namespace is written here before it returns */
+	volatile PropertyLog log;
+
+
+	/**
+	 * @return the namespace called 'name', created if it does not exist yet. Callers asking for the same name always get the same Namespace
+	 */
+	Namespace namespace(String name) {
+		Namespace result = namespaces.get(name);
+		if (result == null) {
+			Namespace created = new Namespace(this, name);
+			result = namespaces.putIfAbsent(name, created);
+			if (result == null)
+				result = created;
+		}
+		return result;
+	}
+
+	/**
+	 * Evict from 'ns' until it is within its own limits, then from sampled namespaces until the store is within its limits
+	 */
+	private void enforce(Namespace ns) {
+		for (int i = 0; (i < MAX_EVICTIONS_PER_PUT) && ns.limits.exceeded(); i++)
+			if (! ns.evictOne())
+				break;
+		for (int i = 0; (i < MAX_EVICTIONS_PER_PUT) && limits.exceeded(); i++) {
+			Namespace victim = sample(namespaces.values().spliterator());
+			if ((victim == null) || (! victim.evictOne())) {
+				if (! ns.evictOne()) // sampled an empty namespace: take from the one that grew
+					break;
+			}
+		}
+	}
+
+	/**
+	 * @return one element from a random part of 'source', found by splitting it at random, or null if it is empty
+	 */
+	private static <T> T sample(Spliterator <T> source) {
+		final Object[] found = new Object[1];
+		Spliterator <T> part = randomPart(source);
+		part.tryAdvance(new Consumer <T> () {
+			public void accept(T t) {
+				found[0] = t;
+			}
+		});
+		@SuppressWarnings("unchecked")
+		T result = (T) found[0];
+		return result;
+	}
+
+	/**
+	 * Split 'source' at random until the piece left is a few times SAMPLES long.
+	 * ConcurrentHashMap spliterators split by table range in constant time, so this lands on a random region of the table
+	 */
+	private static <T> Spliterator <T> randomPart(Spliterator <T> source) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Spliterator <T> part = source;
+		for (int depth = 0; (depth < 32) && (part.estimateSize() > 4*SAMPLES); depth++) {
+			Spliterator <T> other = part.trySplit();
+			if (other == null)
+				break;
+			if (random.nextBoolean())
+				part = other;
+		}
+		return part;
+	}
+
+	/**
+	 * Hand up to SAMPLES entries of 'table', from random regions of it, to 'action'.
+	 * Size estimates of split pieces are rough and a piece may turn out empty, so this tries a few regions
+	 */
+	private static void sampleEntries(ConcurrentHashMap <String,PropertyValue> table, final Consumer <Map.Entry<String,PropertyValue>> action) {
+		final int[] seen = new int[1];
+		Consumer <Map.Entry<String,PropertyValue>> counting = new Consumer <Map.Entry<String,PropertyValue>> () {
+			public void accept(Map.Entry <String,PropertyValue> e) {
+				seen[0]++;
+				action.accept(e);
+			}
+		};
+		for (int attempt = 0; (attempt < 4) && (seen[0] < SAMPLES); attempt++) {
+			Spliterator <Map.Entry<String,PropertyValue>> part = randomPart(table.entrySet().spliterator());
+			while ((seen[0] < SAMPLES) && part.tryAdvance(counting))
+				;
+		}
+	}
+
+	static long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @return a rough size in bytes of one entry: the key, the slot, the table node and any String value
+	 */
+	static long estimateBytes(String key, PropertyValue value) {
+		String s = value.string;
+		return 120 + 2L*key.length() + ((s == null) ? 0 : 40 + 2L*s.length());
+	}
+
+
+
+	/**
+	 * Entry count and estimated size, and the limits on them. A limit of 0 or less means no limit
+	 */
+	static final class Limits {
+		volatile int maxEntries;
+		volatile long maxBytes;
+		final LongAdder entries = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+
+		boolean active() {
+			return (maxEntries > 0) || (maxBytes > 0);
+		}
+
+		boolean exceeded() {
+			return ((maxEntries > 0) && (entries.sum() > maxEntries))
+				|| ((maxBytes > 0) && (bytes.sum() > maxBytes));
+		}
+
+		void add(long entryDelta, long byteDelta) {
+			if (entryDelta != 0)
+				entries.add(entryDelta);
+			bytes.add(byteDelta);
+		}
+	}
+
+
+
+	/**
+	 * One namespace's table. All changes to the table go through here so the counts, the log and the limits stay in step
+	 */
+	static final class Namespace {
+		final PropertyStore store;
+		final String name;
+		final ConcurrentHashMap <String,PropertyValue> properties = new ConcurrentHashMap <String,PropertyValue> ();
+		final Limits limits = new Limits();
+		/** time-to-live given to values put into this namespace, 0 for none */
+		volatile long defaultTimeToLive;
+		/** set once any value in this namespace has been given an expiry time */
+		volatile boolean expiring;
+
+		Namespace(PropertyStore store, String name) {
+			this.store = store;
+			this.name = name;
+		}
+
+		private boolean tracking() {
+			return limits.active() || store.limits.active();
+		}
+
+
+		/**
+		 * @return the live slot for 'key', or null if there is none or it has expired (in which case it is removed)
+		 */
+		PropertyValue get(String key) {
+			PropertyValue slot = properties.get(key);
+			if (slot == null)
+				return null;
+			long expires = slot.expires;
+			if ((expires != 0) && (now() >= expires)) {
+				removeExpired(key, slot, expires);
+				return null;
+			}
+			if (tracking())
+				slot.accessed = System.nanoTime();
+			return slot;
+		}
+
+
+		/**
+		 * Store a typed value. A live slot of the same type is overwritten in place, so re-setting an existing
+		 * property allocates nothing. A slot of a different type, or one that has expired, is replaced: a reader may
+		 * be removing the expired one, and must not take the new value with it.
+		 */
+		void put(String key, byte type, long bits, String string) {
+			PropertyLog log = store.log;
+			if (log == null)
+				apply(key, type, bits, string);
+			else {
+				// logged: the namespace lock keeps log order the same as apply order. Waiting for the disk happens outside it
+				long seq;
+				synchronized (properties) {
+					apply(key, type, bits, string);
+					seq = log.appendPut(name, key, type, bits, string);
+				}
+				log.commit(seq);
+			}
+			if (expiring)
+				expireSome();
+			if (tracking())
+				store.enforce(this);
+		}
+
+		private void apply(String key, byte type, long bits, String string) {
+			long ttl = defaultTimeToLive;
+			long expires = (ttl > 0) ? now()+ttl : 0;
+			PropertyValue slot = properties.get(key);
+			if ((slot != null) && (slot.type == type) && renew(slot, expires)) {
+				if (type == PropertyValue.STRING) {
+					String old = slot.swapString(string); // unlogged puts hold no lock: charge only the delta from the String actually replaced
+					limits.add(0, 2L*(string.length()-old.length()));
+					store.limits.add(0, 2L*(string.length()-old.length()));
+				}
+				else
+					slot.bits = bits;
+				slot.accessed = System.nanoTime();
+			}
+			else {
+				PropertyValue created = new PropertyValue(type,bits,string);
+				created.expires = expires;
+				created.accessed = System.nanoTime();
+				PropertyValue previous = properties.put(key,created);
+				long entryDelta = (previous == null) ? 1 : 0;
+				long byteDelta = estimateBytes(key,created) - ((previous == null) ? 0 : estimateBytes(key,previous));
+				limits.add(entryDelta, byteDelta);
+				store.limits.add(entryDelta, byteDelta);
+			}
+		}
+
+
+		/**
+		 * Give a live slot the expiry time 'expires'
+		 * @return false if the slot has expired, or is being removed, so it must not be overwritten in place
+		 */
+		private static boolean renew(PropertyValue slot, long expires) {
+			for (;;) {
+				long old = slot.expires;
+				if ((old != 0) && (now() >= old))
+					return false;
+				if (slot.casExpires(old, expires))
+					return true;
+			}
+		}
+
+		/**
+		 * Remove 'key' if it still holds 'slot', which was seen to expire at 'expires', and nothing has renewed
+		 * it since. Claiming the expiry first keeps a put that renews the slot in place from being undone
+		 * @return true if it was removed
+		 */
+		private boolean removeExpired(String key, PropertyValue slot, long expires) {
+			if ((expires != PropertyValue.DEAD) && (! slot.casExpires(expires, PropertyValue.DEAD)))
+				return false;
+			return removeSlot(key, slot);
+		}
+
+		/**
+		 * @return true if 'key' existed and was removed
+		 */
+		boolean remove(String key) {
+			PropertyValue slot = properties.get(key);
+			return (slot != null) && removeSlot(key, slot);
+		}
+
+		/**
+		 * Remove 'key' only if it still holds 'slot'
+		 * @return true if it was removed
+		 */
+		private boolean removeSlot(String key, PropertyValue slot) {
+			PropertyLog log = store.log;
+			if (log == null) {
+				if (! properties.remove(key, slot))
+					return false;
+			}
+			else {
+				long seq;
+				synchronized (properties) {
+					if (! properties.remove(key, slot))
+						return false;
+					seq = log.appendRemove(name, key);
+				}
+				log.commit(seq);
+			}
+			long bytes = estimateBytes(key, slot);
+			limits.add(-1, -bytes);
+			store.limits.add(-1, -bytes);
+			return true;
+		}
+
+
+		/**
+		 * Give 'key' a new time-to-live
+		 * @param millis how long from now the value lives, 0 or less to make it live forever
+		 * @return false if 'key' does not exist
+		 */
+		boolean setTimeToLive(String key, long millis) {
+			PropertyValue slot = get(key);
+			if (slot == null)
+				return false;
+			if (millis > 0)
+				expiring = true;
+			return renew(slot, (millis > 0) ? now()+millis : 0);
+		}
+
+		void setDefaultTimeToLive(long millis) {
+			if (millis > 0)
+				expiring = true;
+			defaultTimeToLive = millis;
+		}
+
+
+		/**
+		 * Sample a few entries and remove the expired ones, or failing that the least recently used one
+		 * @return false if nothing could be removed
+		 */
+		boolean evictOne() {
+			final String[] victimKey = new String[1];
+			final PropertyValue[] victim = new PropertyValue[1];
+			final long now = now();
+			final boolean[] expiredAny = new boolean[1];
+			Consumer <Map.Entry<String,PropertyValue>> pick = new Consumer <Map.Entry<String,PropertyValue>> () {
+				public void accept(Map.Entry <String,PropertyValue> e) {
+					PropertyValue slot = e.getValue();
+					long expires = slot.expires;
+					if ((expires != 0) && (now >= expires)) {
+						expiredAny[0] |= removeExpired(e.getKey(), slot, expires);
+						return;
+					}
+					if ((victim[0] == null) || (slot.accessed < victim[0].accessed)) {
+						victim[0] = slot;
+						victimKey[0] = e.getKey();
+					}
+				}
+			};
+			sampleEntries(properties, pick);
+			if (expiredAny[0])
+				return true;
+			return (victim[0] != null) && removeSlot(victimKey[0], victim[0]);
+		}
+
+		/**
+		 * Sample a few entries and remove the ones that have expired
+		 */
+		private void expireSome() {
+			final long now = now();
+			Consumer <Map.Entry<String,PropertyValue>> check = new Consumer <Map.Entry<String,PropertyValue>> () {
+				public void accept(Map.Entry <String,PropertyValue> e) {
+					PropertyValue slot = e.getValue();
+					long expires = slot.expires;
+					if ((expires != 0) && (now >= expires))
+						removeExpired(e.getKey(), slot, expires);
+				}
+			};
+			sampleEntries(properties, check);
+		}
+	}
+
+}
@@ -1,6 +1,11 @@
 package com.challengeandresponse.utils;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * PropertyThang encapsulate a set of named properties in (key,value) form
@@ -14,8 +19,17 @@ import java.util.*;
  */
 public class PropertyThang {
 
-	/** A variable set of named properties  */
-	private Hashtable <String,Object> properties;
+	/**
+	 * All namespaces sharing this store, each with its own concurrent table, so views on different
+	 * namespaces never contend, and reads within a namespace never block.
+	 */
+	private PropertyStore store;
+	
+	/** This namespace in the store, resolved once so that lookups are a single probe with no key building */
+	private PropertyStore.Namespace space;
+	
+	/** The table of 'space'. Values are unboxed typed slots */
+	private ConcurrentHashMap <String,PropertyValue> properties;
 	
 	/**
 	 * If a dictionary is initialized, only keys listed in the dictionary
@@ -24,20 +38,21 @@ public class PropertyThang {
 	 */
 	private HashSet <String> dictionary;
 	
-	private static final String NS_DELIMITER = ":";
 	private String namespace;
  	
 
 	/**
 	 * Create a propertythang, and access it via the namespace 'namespace'
-	 * Namespacing is a rudimentary filter - keys are prefixed with the namespace,
+	 * Namespacing is a rudimentary filter - each namespace has its own table in the store,
 	 * and this PropertyThang can contain objects in other namespaces - they won't
 	 * be seen my set/get calls, which confine the view to the configured namespace
 	 */
 	public PropertyThang(String namespace) {
-		this.properties = new Hashtable <String, Object> ();
+		this.store = new PropertyStore();
 		this.dictionary = null;
 		this.namespace = namespace;
+		this.space = store.namespace(namespace);
+		this.properties = space.properties;
 	}
 	
 	
@@ -53,34 +68,15 @@ public class PropertyThang {
 	 * Access an existing PropertyThang, filtering it with a different namespace prefix
 	 */
 	public PropertyThang(PropertyThang pt, String namespace) {
-		this.properties = pt.properties;
+		this.store = pt.store;
 		this.dictionary = pt.dictionary;
 		this.namespace = namespace;
+		this.space = store.namespace(namespace);
+		this.properties = space.properties;
 	}
 	
 	
 
-	/**
-	 * Return a key with current namespace prefixed
-	 * @param key add namespace to this key
-	 * @return
-	 */
-	private String namespacedKey(String key) {
-		return namespace+NS_DELIMITER+key;
-	}
-	
-	/**
-	 * Remove the namespace from a key
-	 * @param key add namespace to this key
-	 * @return
-	 */
-	private String denamespacedKey(String key) {
-		return (key.replace(namespace+NS_DELIMITER,""));
-	}
-
-	
-	
-	
 	/**
 	 * A dictionary is optional. If one is set, only key values from the dictionary
 	 * are permitted as keys. The dictionary is case and white-space sensitive.
@@ -97,11 +93,14 @@ public class PropertyThang {
 	 * @return the contents of the current dictionary, as a Vector of Strings
 	 */
 	public Vector <String> getDictionary() {
-		Vector <String> v = new Vector<String>();
-		Iterator <String> it = this.dictionary.iterator();
-		while (it.hasNext())
-			v.add(it.next());
-		return v;
+		return new Vector <String> (this.dictionary);
+	}
+	
+	/**
+	 * @return a live, read-only view of the current dictionary, or null if there is none. Nothing is copied
+	 */
+	public Set <String> getDictionarySet() {
+		return (dictionary == null) ? null : new ReadonlySet <String> (dictionary);
 	}
 	
 	
@@ -115,35 +114,238 @@ public class PropertyThang {
 //	}
 	
 	/**
-	 * @return all the property keys for the current namespace as a vector of strings
+	 * @return all the unexpired property keys for the current namespace as a vector of strings. This is a copy; see getPropertyKeySet() for a live view
 	 */
 	public Vector <String> getPropertyKeys() {
-		Enumeration <String> en = properties.keys();
-		Vector <String> keys = new Vector <String> ();
-		while (en.hasMoreElements()) {
-			String key = en.nextElement();
-			if (key.startsWith(namespace+NS_DELIMITER))
-				keys.add(denamespacedKey(key));
-		}
-		return keys;
+		Vector <String> result = new Vector <String> ();
+		long now = PropertyStore.now();
+		for (Map.Entry <String,PropertyValue> e : properties.entrySet())
+			if (live(e.getValue(), now))
+				result.add(e.getKey());
+		return result;
 	}
 	
 	/**
-	 * @return all the property keys and values for the current namespace
+	 * @return all the unexpired property keys and values for the current namespace. This is a copy; see getPropertyMap() for a live view
 	 */
 	public Hashtable <String,Object> getPropertyKeysAndValues() {
-		Enumeration <String> en = properties.keys();
 		Hashtable <String,Object> result = new Hashtable <String,Object> ();
-		while (en.hasMoreElements()) {
-			String key = en.nextElement();
-			if (key.startsWith(namespace+NS_DELIMITER))
-				result.put(denamespacedKey(key),properties.get(key));
-		}
+		long now = PropertyStore.now();
+		for (Map.Entry <String,PropertyValue> e : properties.entrySet())
+			if (live(e.getValue(), now))
+				result.put(e.getKey(), e.getValue().toObject());
 		return result;
 	}
 	
+	/**
+	 * @return a live, read-only view of the property keys in the current namespace. Nothing is copied, and
+	 * iterating it walks the store itself, seeing concurrent changes as ConcurrentHashMap iterators do.
+	 * Expired properties are left out, as getProperty() leaves them out; size() counts by walking the namespace
+	 */
+	public Set <String> getPropertyKeySet() {
+		return new ReadonlySet <String> (new NamespaceMap(properties).keySet());
+	}
+	
+	/**
+	 * @return a live, read-only view of the unexpired properties in the current namespace. Nothing is copied;
+	 * primitive values are boxed one at a time as they are read
+	 */
+	public Map <String,Object> getPropertyMap() {
+		return new ReadonlyMap <String,Object> (new NamespaceMap(properties));
+	}
+	
+	/**
+	 * Stream the properties of the current namespace straight from the store. The spliterator is the store's own,
+	 * so it splits evenly for parallel() streams and reports its size estimate. Expired properties are skipped
+	 * @return a sequential stream of (key,value) entries; call parallel() on it for a parallel one
+	 */
+	public Stream <Map.Entry<String,Object>> stream() {
+		return StreamSupport.stream(new EntrySpliterator(properties.entrySet().spliterator()), false);
+	}
+	
+	
+	/**
+	 * Read-only Map view over one namespace's table, leaving out expired properties
+	 */
+	private static final class NamespaceMap extends AbstractMap <String,Object> {
+		private final ConcurrentHashMap <String,PropertyValue> properties;
+		
+		NamespaceMap(ConcurrentHashMap <String,PropertyValue> properties) {
+			this.properties = properties;
+		}
+		
+		public Object get(Object key) {
+			PropertyValue slot = properties.get(key);
+			return live(slot, PropertyStore.now()) ? slot.toObject() : null;
+		}
+		
+		public boolean containsKey(Object key) {
+			return live(properties.get(key), PropertyStore.now());
+		}
+		
+		public int size() {
+			int n = 0;
+			long now = PropertyStore.now();
+			for (PropertyValue slot : properties.values())
+				if (live(slot, now))
+					n++;
+			return n;
+		}
+		
+		public boolean isEmpty() {
+			return ! entrySet().iterator().hasNext();
+		}
+		
+		public Set <String> keySet() {
+			return new AbstractSet <String> () {
+				public int size() {
+					return NamespaceMap.this.size();
+				}
+				public boolean isEmpty() {
+					return NamespaceMap.this.isEmpty();
+				}
+				public boolean contains(Object key) {
+					return containsKey(key);
+				}
+				public Iterator <String> iterator() {
+					return new LiveIterator <String> (properties.entrySet().iterator()) {
+						String map(Map.Entry <String,PropertyValue> e) {
+							return e.getKey();
+						}
+					};
+				}
+			};
+		}
+		
+		public Set <Map.Entry<String,Object>> entrySet() {
+			return new AbstractSet <Map.Entry<String,Object>> () {
+				public int size() {
+					return NamespaceMap.this.size();
+				}
+				public Iterator <Map.Entry<String,Object>> iterator() {
+					return new LiveIterator <Map.Entry<String,Object>> (properties.entrySet().iterator()) {
+						Map.Entry <String,Object> map(Map.Entry <String,PropertyValue> e) {
+							return entry(e);
+						}
+					};
+				}
+				public Spliterator <Map.Entry<String,Object>> spliterator() {
+					return new EntrySpliterator(properties.entrySet().spliterator());
+				}
+			};
+		}
+	}
+	
+	/**
+	 * Iterates the unexpired entries of a namespace's table, handing out what map() makes of each
+	 */
+	private abstract static class LiveIterator <T> implements Iterator <T> {
+		private final Iterator <Map.Entry<String,PropertyValue>> it;
+		private final long now = PropertyStore.now();
+		private Map.Entry <String,PropertyValue> next;
+		
+		LiveIterator(Iterator <Map.Entry<String,PropertyValue>> it) {
+			this.it = it;
+			advance();
+		}
+		
+		abstract T map(Map.Entry <String,PropertyValue> e);
+		
+		private void advance() {
+			next = null;
+			while (it.hasNext()) {
+				Map.Entry <String,PropertyValue> e = it.next();
+				if (live(e.getValue(), now)) {
+					next = e;
+					return;
+				}
+			}
+		}
+		
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		public T next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			Map.Entry <String,PropertyValue> e = next;
+			advance();
+			return map(e);
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException("property views are read-only");
+		}
+	}
+	
+	/**
+	 * Wraps the store's own entry spliterator, skipping expired entries and boxing each value as it is handed out
+	 */
+	private static final class EntrySpliterator implements Spliterator <Map.Entry<String,Object>> {
+		private final Spliterator <Map.Entry<String,PropertyValue>> source;
+		
+		EntrySpliterator(Spliterator <Map.Entry<String,PropertyValue>> source) {
+			this.source = source;
+		}
+		
+		public boolean tryAdvance(final Consumer<? super Map.Entry<String,Object>> action) {
+			final long now = PropertyStore.now();
+			final boolean[] handed = new boolean[1];
+			Consumer <Map.Entry<String,PropertyValue>> filter = new Consumer <Map.Entry<String,PropertyValue>> () {
+				public void accept(Map.Entry <String,PropertyValue> e) {
+					if (live(e.getValue(), now)) {
+						handed[0] = true;
+						action.accept(entry(e));
+					}
+				}
+			};
+			while (source.tryAdvance(filter))
+				if (handed[0])
+					return true;
+			return false;
+		}
+		
+		public void forEachRemaining(final Consumer<? super Map.Entry<String,Object>> action) {
+			final long now = PropertyStore.now();
+			source.forEachRemaining(new Consumer <Map.Entry<String,PropertyValue>> () {
+				public void accept(Map.Entry <String,PropertyValue> e) {
+					if (live(e.getValue(), now))
+						action.accept(entry(e));
+				}
+			});
+		}
+		
+		public Spliterator <Map.Entry<String,Object>> trySplit() {
+			Spliterator <Map.Entry<String,PropertyValue>> split = source.trySplit();
+			return (split == null) ? null : new EntrySpliterator(split);
+		}
+		
+		public long estimateSize() {
+			return source.estimateSize();
+		}
+		
+		public int characteristics() {
+			return source.characteristics() & ~(SIZED | SUBSIZED); // skipping expired entries makes the size an estimate
+		}
+	}
+	
+	/**
+	 * @return true if 'slot' is there and has not expired by 'now'. The test PropertyStore.Namespace.get() applies
+	 */
+	private static boolean live(PropertyValue slot, long now) {
+		if (slot == null)
+			return false;
+		long expires = slot.expires;
+		return (expires == 0) || (now < expires);
+	}
 	
-	private void internalPut(String key, Object value)
+	private static Map.Entry <String,Object> entry(Map.Entry <String,PropertyValue> e) {
+		return new AbstractMap.SimpleImmutableEntry <String,Object> (e.getKey(), e.getValue().toObject());
+	}
+	
+	
+	private void internalPut(String key, byte type, long bits, String string)
 	throws IllegalArgumentException {
 		if (key == null)
 			return;		
@@ -151,7 +353,7 @@ public class PropertyThang {
 			if (! dictionary.contains(key))
 				throw new IllegalArgumentException("Key not in dictionary: "+key);
 		}
-		properties.put(namespace+":"+key,value);
+		space.put(key, type, bits, string);
 	}
 	
 	
@@ -161,7 +363,7 @@ public class PropertyThang {
 	 * @param value
 	 */
 	public void setProperty(String key, int value) {
-		internalPut(key,new Integer(value));
+		internalPut(key,PropertyValue.INT,value,null);
 	}
 
 	
@@ -171,7 +373,7 @@ public class PropertyThang {
 	 * @param value
 	 */
 	public void setProperty(String key, long value) {
-		internalPut(key,new Long(value));
+		internalPut(key,PropertyValue.LONG,value,null);
 	}
 
 	
@@ -181,16 +383,19 @@ public class PropertyThang {
 	 * @param value
 	 */
 	public void setProperty(String key, double value) {
-		internalPut(key,new Double(value));
+		internalPut(key,PropertyValue.DOUBLE,PropertyValue.bits(value),null);
 	}
 
 	/**
 	 * Set a named String property. if key is null, the method will silently do nothing
 	 * @param key
 	 * @param value
+	 * @throws NullPointerException if value is null
 	 */
 	public void setProperty(String key, String value) {
-		internalPut(key,value);
+		if (value == null)
+			throw new NullPointerException("value cannot be null");
+		internalPut(key,PropertyValue.STRING,0L,value);
 	}
 
 	/**
@@ -199,12 +404,12 @@ public class PropertyThang {
 	 * @param value
 	 */
 	public void setProperty(String key, boolean value) {
-		internalPut(key,value);
+		internalPut(key,PropertyValue.BOOLEAN,PropertyValue.bits(value),null);
 	}
 
 	
 	/**
-	 * Get a property object. 
+	 * Get a property object. Primitive properties are boxed on the way out.
 	 * @param key The name of the desired property
 	 * @param dflt the default value to return if the property is not set
 	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
@@ -212,27 +417,22 @@ public class PropertyThang {
 	public Object getProperty(String key, Object dflt) {
 		if (key == null)
 			return dflt;
-		if (properties.containsKey(namespacedKey(key)))
-			return properties.get(namespacedKey(key));
-		else
-			return dflt;
+		PropertyValue slot = space.get(key);
+		return (slot != null) ? slot.toObject() : dflt;
 	}
 	
 	/**
 	 * Get a property object as a String
 	 * @param key The name of the desired property
 	 * @param dflt the default value to return if the property is not set
-	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
+	 * @return The property object, or 'dflt' if it was not found, was not a String, or if 'key' was null
 	 */
 	public String getStringProperty(String key, String dflt) {
 		if (key == null)
 			return dflt;
-		try {
-			if (properties.containsKey(namespacedKey(key)))
-				return (String) properties.get(namespacedKey(key));
-		}
-		catch (Exception e) {
-		}
+		PropertyValue slot = space.get(key);
+		if ((slot != null) && (slot.type == PropertyValue.STRING))
+			return slot.string;
 		return dflt;
 	}
 
@@ -240,17 +440,14 @@ public class PropertyThang {
 	 * Get a property object as a primitive int
 	 * @param key The name of the desired property
 	 * @param dflt the default value to return if the property is not set
-	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
+	 * @return The property object, or 'dflt' if it was not found, was not an int, or if 'key' was null
 	 */
 	public int getIntProperty(String key, int dflt) {
 		if (key == null)
 			return dflt;
-		try {
-			if (properties.containsKey(namespacedKey(key)))
-				return ((Integer) properties.get(namespacedKey(key))).intValue();
-		}
-		catch (Exception e) { // class cast exception (wrong type), or null pointer exception (not there)			
-		}
+		PropertyValue slot = space.get(key);
+		if ((slot != null) && (slot.type == PropertyValue.INT))
+			return slot.intValue();
 		return dflt;
 	}
 
@@ -258,17 +455,14 @@ public class PropertyThang {
 	 * Get a property object as a primitive long
 	 * @param key The name of the desired property
 	 * @param dflt the default value to return if the property is not set
-	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
+	 * @return The property object, or 'dflt' if it was not found, was not a long, or if 'key' was null
 	 */
 	public long getLongProperty(String key, long dflt) {
 		if (key == null)
 			return dflt;
-		try {
-			if (properties.containsKey(namespacedKey(key)))
-				return ((Long) properties.get(namespacedKey(key))).longValue();
-		}
-		catch (Exception e) { // class cast exception (wrong type), or null pointer exception (not there)			
-		}
+		PropertyValue slot = space.get(key);
+		if ((slot != null) && (slot.type == PropertyValue.LONG))
+			return slot.longValue();
 		return dflt;
 	}
 
@@ -276,17 +470,14 @@ public class PropertyThang {
 	 * Get a property object as a primitive double
 	 * @param key The name of the desired property
 	 * @param dflt the default value to return if the property is not set
-	 * @return The key object, or 'dflt' if it was not found or if 'key' was null
+	 * @return The key object, or 'dflt' if it was not found, was not a double, or if 'key' was null
 	 */
 	public double getDoubleProperty(String key, double dflt) {
 		if (key == null)
 			return dflt;
-		try {
-			if (properties.containsKey(namespacedKey(key)))
-				return ((Double) properties.get(namespacedKey(key))).doubleValue();
-		}
-		catch (Exception e) { // class cast exception (wrong type), or null pointer exception (not there)
-		}
+		PropertyValue slot = space.get(key);
+		if ((slot != null) && (slot.type == PropertyValue.DOUBLE))
+			return slot.doubleValue();
 		return dflt;
 	}
 
@@ -294,17 +485,14 @@ public class PropertyThang {
 	 * Get a property object as a primitive boolean
 	 * @param key The name of the desired property
 	 * @param dflt the default value to return if the property is not set
-	 * @return The property object, or 'dflt' if it was not found or if 'key' was null
+	 * @return The property object, or 'dflt' if it was not found, was not a boolean, or if 'key' was null
 	 */
 	public boolean getBooleanProperty(String key, boolean dflt) {
 		if (key == null)
 			return dflt;
-		try {
-			if (properties.containsKey(namespacedKey(key)))
-				return ((Boolean) properties.get(namespacedKey(key))).booleanValue();
-		}
-		catch (Exception e) { // class cast exception (wrong type), or null pointer exception (not there)
-		}
+		PropertyValue slot = space.get(key);
+		if ((slot != null) && (slot.type == PropertyValue.BOOLEAN))
+			return slot.booleanValue();
 		return dflt;
 	}
 	
@@ -314,7 +502,108 @@ public class PropertyThang {
 	public boolean hasProperty(String key) {
 		if (key == null)
 			return false;
-		return properties.containsKey(namespacedKey(key));
+		return (space.get(key) != null);
+	}
+	
+	/**
+	 * Remove a property. if key is null, the method will silently do nothing
+	 * @param key The name of the property to remove
+	 * @return true if the property existed and was removed, false otherwise
+	 */
+	public boolean removeProperty(String key) {
+		if (key == null)
+			return false;
+		return space.remove(key);
+	}
+	
+	
+	/**
+	 * Make the whole store (every namespace, not just this one) durable in 'log'.
+	 * Whatever the log already holds is replayed into the store first, so this is also how a store is restored after a restart.
+	 * From then on every put and remove in any view of the store is logged before it returns.
+	 * Times-to-live are not logged: replayed values live forever unless given a new one.
+	 * @param log a PropertyLog that has not been opened yet
+	 * @throws IOException if the log cannot be read or opened
+	 */
+	public void setLog(PropertyLog log)
+	throws IOException {
+		final PropertyStore store = this.store;
+		log.open(
+				new PropertyLog.Receiver() {
+					public void put(String namespace, String key, byte type, long bits, String string) {
+						store.namespace(namespace).put(key, type, bits, string);
+					}
+					public void remove(String namespace, String key) {
+						store.namespace(namespace).remove(key);
+					}
+				},
+				new PropertyLog.Source() {
+					public void writeTo(PropertyLog.Receiver receiver) {
+						for (PropertyStore.Namespace ns : store.namespaces.values())
+							for (Map.Entry <String,PropertyValue> e : ns.properties.entrySet()) {
+								PropertyValue slot = e.getValue();
+								receiver.put(ns.name, e.getKey(), slot.type, slot.bits, slot.string);
+							}
+					}
+				});
+		store.log = log;
+	}
+	
+	
+	/**
+	 * Bound the current namespace. When a put takes it over either limit, its least recently used
+	 * properties are evicted until it is back within both. Applies to every view of this namespace.
+	 * @param maxEntries most properties the namespace may hold, 0 for no limit
+	 * @param maxBytes most estimated bytes the namespace may take up, 0 for no limit
+	 */
+	public void setNamespaceLimits(int maxEntries, long maxBytes) {
+		space.limits.maxEntries = maxEntries;
+		space.limits.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Bound the whole store (all namespaces together). When a put takes the store over either limit,
+	 * least recently used properties are evicted from sampled namespaces until it is back within both.
+	 * @param maxEntries most properties the store may hold, 0 for no limit
+	 * @param maxBytes most estimated bytes the store may take up, 0 for no limit
+	 */
+	public void setStoreLimits(int maxEntries, long maxBytes) {
+		store.limits.maxEntries = maxEntries;
+		store.limits.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Give every property set in the current namespace from now on a time-to-live. Setting a property again restarts it
+	 * @param millis how long properties live after they are set, 0 for forever
+	 */
+	public void setDefaultTimeToLive(long millis) {
+		space.setDefaultTimeToLive(millis);
+	}
+	
+	/**
+	 * Give an existing property a new time-to-live, starting now
+	 * @param key The name of the property
+	 * @param millis how long the property lives from now, 0 for forever
+	 * @return false if there is no property named 'key'
+	 */
+	public boolean setTimeToLive(String key, long millis) {
+		if (key == null)
+			return false;
+		return space.setTimeToLive(key, millis);
+	}
+	
+	/**
+	 * @return the number of properties in the current namespace, including expired ones not yet removed
+	 */
+	public int getPropertyCount() {
+		return properties.size();
+	}
+	
+	/**
+	 * @return a rough estimate of the heap taken up by the current namespace's properties
+	 */
+	public long getEstimatedBytes() {
+		return space.limits.bytes.sum();
 	}
 	
 	
@@ -324,6 +613,12 @@ public class PropertyThang {
 		PropertyThang pt = new PropertyThang("NS1");
 		pt.setProperty("INT", 132);
 		System.out.println(pt.getIntProperty("INT",-1));
+		pt.setProperty("INT", 133);
+		System.out.println("int overwritten in place, should be 133: "+pt.getIntProperty("INT",-1));
+		System.out.println("wrong type returns the default, should be -1: "+pt.getLongProperty("INT",-1L));
+		pt.setProperty("INT", "now a string");
+		System.out.println("retyped, should be 'now a string': "+pt.getProperty("INT",null));
+		pt.setProperty("INT", 132);
 		
 		
 		PropertyThang pt2 = new PropertyThang(pt,"NS2");
@@ -339,6 +634,130 @@ public class PropertyThang {
 		System.out.println(pt2.getIntProperty("whee",-1));
 		System.out.println(pt2.getPropertyKeys());
 		
+		Set <String> liveKeys = pt2.getPropertyKeySet();
+		pt2.setProperty("later", 1);
+		System.out.println(liveKeys.contains("later") ? "OK: key view is live" : "FAIL: key view missed a later put");
+		System.out.println("Map view, should be {eep=1000, kaboom=12, later=1} in some order: "+pt2.getPropertyMap());
+		for (int i = 0; i < 10000; i++)
+			pt2.setProperty("n"+i, i);
+		long streamed = pt2.stream().parallel().count();
+		System.out.println((streamed == 10003) ? "OK: parallel stream saw every entry" : "FAIL: parallel stream counted "+streamed);
+		
+		System.out.println("Bounded namespace");
+		PropertyThang cache = new PropertyThang(pt,"CACHE");
+		cache.setNamespaceLimits(100, 0);
+		for (int i = 0; i < 1000; i++) {
+			cache.setProperty("k"+i, i);
+			cache.getIntProperty("k0",-1); // keep k0 hot
+		}
+		System.out.println((cache.getPropertyCount() <= 100) ? "OK: namespace held to "+cache.getPropertyCount()+" entries" : "FAIL: namespace grew to "+cache.getPropertyCount());
+		System.out.println(cache.hasProperty("k0") ? "OK: recently used k0 survived" : "FAIL: recently used k0 was evicted");
+		final PropertyThang raced = new PropertyThang(pt,"RACED");
+		Thread[] racers = new Thread[4];
+		for (int t = 0; t < racers.length; t++) {
+			final String value = "v"+new String(new char[t*10]).replace('\0', 'x');
+			racers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 100000; i++)
+						raced.setProperty("same", value);
+				}
+			};
+			racers[t].start();
+		}
+		for (Thread racer : racers) {
+			try {
+				racer.join();
+			}
+			catch (InterruptedException e) {
+			}
+		}
+		raced.setProperty("same", "v");
+		PropertyThang single = new PropertyThang(pt,"SINGLE");
+		single.setProperty("same", "v");
+		System.out.println((raced.getEstimatedBytes() == single.getEstimatedBytes()) ? "OK: byte count kept through racing puts" : "FAIL: byte count drifted to "+raced.getEstimatedBytes()+", not "+single.getEstimatedBytes());
+		cache.setProperty("short", 1);
+		cache.setTimeToLive("short", 1);
+		try {
+			Thread.sleep(5);
+		}
+		catch (InterruptedException e) {
+		}
+		System.out.println((! cache.hasProperty("short")) ? "OK: expired property is gone" : "FAIL: expired property still there");
+		PropertyThang ttl = new PropertyThang(pt,"TTL");
+		ttl.setProperty("keep", 1);
+		ttl.setDefaultTimeToLive(1);
+		ttl.setProperty("gone", 2);
+		try {
+			Thread.sleep(5);
+		}
+		catch (InterruptedException e) {
+		}
+		boolean hidden = ttl.getPropertyKeys().equals(Arrays.asList("keep")) && ttl.getPropertyKeysAndValues().keySet().equals(Collections.singleton("keep"))
+				&& ttl.getPropertyKeySet().equals(Collections.singleton("keep")) && (! ttl.getPropertyMap().containsKey("gone"))
+				&& (ttl.getPropertyMap().size() == 1) && (ttl.stream().count() == 1) && (ttl.stream().parallel().count() == 1);
+		System.out.println(hidden ? "OK: views leave out expired properties" : "FAIL: views show expired properties: "+ttl.getPropertyMap());
+		// a reader removing an expired value must not remove the value a put has just written over it
+		final PropertyThang revived = new PropertyThang(pt,"REVIVED");
+		final String[] keys = new String[20000];
+		revived.setDefaultTimeToLive(1);
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = "r"+i;
+			revived.setProperty(keys[i], i);
+		}
+		try {
+			Thread.sleep(5);
+		}
+		catch (InterruptedException e) {
+		}
+		revived.setDefaultTimeToLive(0);
+		final int[] current = new int[] {0};
+		final boolean[] writing = new boolean[] {true};
+		Thread[] readers = new Thread[3];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread() {
+				public void run() {
+					while (writing[0])
+						revived.hasProperty(keys[current[0]]);
+				}
+			};
+			readers[t].setDaemon(true);
+			readers[t].start();
+		}
+		int lost = 0;
+		for (int i = 0; i < keys.length; i++) {
+			current[0] = i;
+			if ((i % 64) == 0) // let the readers reach the expired value, even on one CPU
+				Thread.yield();
+			revived.setProperty(keys[i], -i);
+		}
+		writing[0] = false;
+		for (int i = 0; i < keys.length; i++)
+			if (revived.getIntProperty(keys[i], 1) != -i)
+				lost++;
+		System.out.println((lost == 0) ? "OK: no put lost to a reader removing the expired value" : "FAIL: "+lost+" puts lost");
+		
+		System.out.println("One namespace per thread");
+		final PropertyThang shared = new PropertyThang("MAIN");
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final PropertyThang view = new PropertyThang(shared,"T"+i);
+			threads[i] = new Thread() {
+				public void run() {
+					for (int n = 0; n < 100000; n++)
+						view.setProperty("COUNT", view.getIntProperty("COUNT",0)+1);
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join();
+			}
+			catch (InterruptedException e) {
+			}
+			int count = new PropertyThang(shared,"T"+i).getIntProperty("COUNT",-1);
+			System.out.println((count == 100000 ? "OK: " : "FAIL: ")+"T"+i+" COUNT="+count);
+		}
 	
 	}
 
@@ -1,76 +1,829 @@
 package com.challengeandresponse.utils;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * <p>PropertyThang stores sets of key:value pairs. Each collection represents the content of a namespace.
  * PropertyThang is fundamentally just a big collection of KeyValeProperties objects.</p>
  * 
  * 
- * TODO Add some atomic operation functionality so that, for example, an agent could stash its entire state in PropertyThang key:value pairs, prior to a shutdown or suspend call.
+ * <p>getProperties() claims a namespace or fails at once. To wait for a namespace instead, or to hold it only while
+ * the holder keeps renewing its claim, use tryClaim() and claimAsync(), which give out a Lease.</p>
+ *
+ * <p>For a fast start with many namespaces, save them with writeSnapshot() and start from openSnapshot(): the
+ * snapshot is memory-mapped and each namespace is only decoded when it is first asked for.</p>
+ *
+ * <p>To change several keys of a namespace atomically, for example so an agent can stash its entire state prior to a
+ * shutdown or suspend call, use a KeyValueProperties.Transaction. With a log set, a committed transaction is also
+ * written to disk as a single record.</p>
  * @author jim
  *
  */
 public class PropertyThang2 {
 	private static final long serialVersionUID = 1L;
 
-	private Properties namespacedProperties; // top level, is a collection of Properties objects whose keys are the namespaces. Key is namespace, object is a KeyValueProperties object
-	private CopyOnWriteArrayList <String> allocatedNamespaces;
+	/** Separates namespace from key in the flattened XML form. Namespaces saved to XML must not contain it */
+	private static final String NS_DELIMITER = ":";
+
+	private ConcurrentHashMap <String,KeyValueProperties> namespacedProperties; // key is namespace, object is that namespace's KeyValueProperties
+	private ConcurrentHashMap <String,Lease> claims; // the claimed namespaces and who holds them. Claiming is one atomic putIfAbsent, so there is no global lock
+	private ConcurrentHashMap <String,Waiters> waiters; // callers of claimAsync() waiting for a namespace, only while a namespace is contended
+	private volatile PropertyLog log; // if set, every namespace's puts and removes are logged here
+	private final PropertyMetrics metrics = new PropertyMetrics(this);
+	private ObjectName mbeanName; // set while the metrics are registered with JMX
+	private volatile NamespaceSnapshot snapshot; // if set, namespaces not yet in namespacedProperties are decoded from here on first use
+
+	private static final int MANIFEST_MAGIC = 0x50544d46; // "PTMF"
+	private static final int SEGMENT_MAGIC = 0x50545347; // "PTSG"
+	private static final String MANIFEST_NAME = "manifest";
+
+	// incremental checkpoints, see setCheckpointDirectory(). Guarded by 'this'
+	private File checkpointDirectory;
+	private long checkpointSeq;
+	private int nextSegmentId;
+
+	/**
+	 * daemon threads that write checkpoint segments, one per processor at most, gone when idle. Segment writes block on
+	 * the disk, so they are kept off the common pool, where they would stall unrelated parallel streams and tasks
+	 */
+	private static final ThreadPoolExecutor CHECKPOINT_WRITERS;
+	static {
+		int n = Runtime.getRuntime().availableProcessors();
+		CHECKPOINT_WRITERS = new ThreadPoolExecutor(n, n, 30, TimeUnit.SECONDS, new LinkedBlockingQueue <Runnable> (), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PropertyThang2 checkpoint writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		CHECKPOINT_WRITERS.allowCoreThreadTimeOut(true);
+	}
 
 	/**
 	 */
 	public PropertyThang2() {
-		this.namespacedProperties = new Properties();
-		this.allocatedNamespaces = new CopyOnWriteArrayList<String> ();
+		this.namespacedProperties = new ConcurrentHashMap <String,KeyValueProperties> ();
+		this.claims = new ConcurrentHashMap <String,Lease> ();
+		this.waiters = new ConcurrentHashMap <String,Waiters> ();
 	}
 
 	/**
 	 * When a request is made for a namespaced kvp, if it exists, then return it and mark it "in use".
-	 * Only the first request for a namespaced set of properties gets it. Any subsequent caller throws an exception.
+	 * Only the first request for a namespaced set of properties gets it. Any subsequent caller throws an exception,
+	 * until the namespace is released with releaseProperties().
+	 * Claiming takes constant time and no global lock, however many namespaces there are.
 	 * @param namespace
 	 * @throws UnsupportedOperationException if the namespace has already been claimed
 	 * @return the KeyValueProperties object for the given namespace
 	 */
-
-	public synchronized KeyValueProperties getProperties(String namespace)
+	public KeyValueProperties getProperties(String namespace)
 	throws UnsupportedOperationException {
-		if (namespacedProperties.containsKey(namespace)) {
-			if (allocatedNamespaces.addIfAbsent(namespace)) // if true, we've got a lock on it
-				return (KeyValueProperties) namespacedProperties.get(namespace);
-			else
-				throw new UnsupportedOperationException("Namespace: "+namespace+" has already been allocated to another caller.");
+		if (tryClaim(namespace, 0, true) == null)
+			throw new UnsupportedOperationException("Namespace: "+namespace+" has already been allocated to another caller.");
+		return unclaimedProperties(namespace);
+	}
+
+	/**
+	 * Return a namespace claimed with getProperties(), so that the next claim on it succeeds. Its properties are kept.
+	 * If callers of claimAsync() are waiting for it, it goes straight to the first of them.
+	 * The caller must not use the KeyValueProperties it was given after releasing it.
+	 * A namespace held by a Lease from tryClaim() or claimAsync() is not released: only Lease.release() gives it up.
+	 * @param namespace
+	 * @return true if the namespace was claimed with getProperties() and this call released it, false otherwise
+	 */
+	public boolean releaseProperties(String namespace) {
+		Lease lease = claims.get(namespace);
+		return (lease != null) && lease.byName && lease.release();
+	}
+
+	/**
+	 * @return true if 'namespace' is currently claimed by an unexpired lease
+	 */
+	public boolean isClaimed(String namespace) {
+		Lease lease = claims.get(namespace);
+		return (lease != null) && (! lease.expired());
+	}
+
+
+	/**
+	 * Claim a namespace if it is free, without waiting. A namespace with callers of claimAsync() waiting for it is not free.
+	 * @param namespace
+	 * @param leaseMillis how long the lease lasts without a heartbeat(), 0 or less for a lease that lasts until it is released
+	 * @return the lease, or null if the namespace is claimed
+	 */
+	public Lease tryClaim(String namespace, long leaseMillis) {
+		return tryClaim(namespace, leaseMillis, false);
+	}
+
+	private Lease tryClaim(String namespace, long leaseMillis, boolean byName) {
+		Lease lease = claim(namespace, leaseMillis, byName);
+		if ((lease == null) && metrics.enabled)
+			metrics.claimRejections.increment();
+		return lease;
+	}
+
+	private Lease claim(String namespace, long leaseMillis, boolean byName) {
+		Waiters w = waiters.get(namespace);
+		if ((w != null) && (! w.queue.isEmpty())) // first come first served
+			return null;
+		return acquire(namespace, leaseMillis, byName);
+	}
+
+	/**
+	 * Claim a namespace as soon as it is free. Waiters are served in the order they asked, each handed the namespace
+	 * by the release (or lease expiry) before it, so nobody polls and no thread is blocked while waiting.
+	 * Cancelling the future gives up the place in the queue.
+	 * @param namespace
+	 * @param leaseMillis how long the lease lasts without a heartbeat(), 0 or less for a lease that lasts until it is released
+	 * @return a future that completes with the lease
+	 */
+	public CompletableFuture <Lease> claimAsync(String namespace, long leaseMillis) {
+		CompletableFuture <Lease> future = new CompletableFuture <Lease> ();
+		Lease lease = claim(namespace, leaseMillis, false);
+		while (lease == null) {
+			Waiters w = waiters.get(namespace);
+			if (w == null) {
+				Waiters created = new Waiters();
+				w = waiters.putIfAbsent(namespace, created);
+				if (w == null)
+					w = created;
+			}
+			synchronized (w) { // a release that happens before this sees the waiter, or this sees the namespace free
+				if (w.removed)
+					continue; // drained and dropped from the map meanwhile: use the one now there
+				if (w.queue.isEmpty()) {
+					lease = acquire(namespace, leaseMillis, false);
+					if (lease != null) {
+						w.drained(waiters, namespace);
+						break;
+					}
+				}
+				w.queue.add(new Waiter(future, leaseMillis));
+				break;
+			}
 		}
-		else {
-			if (allocatedNamespaces.addIfAbsent(namespace)) {
-				KeyValueProperties kvp = new KeyValueProperties();
-				namespacedProperties.put(namespace, kvp);
-				return kvp;			
+		if ((lease != null) && (! future.complete(lease)))
+			lease.release();
+		return future;
+	}
+
+	/**
+	 * Take 'namespace' if nobody holds it or its lease has expired
+	 * @param byName true for a claim by getProperties(), which releaseProperties() may release
+	 * @return the new lease, or null if the namespace is held
+	 */
+	private Lease acquire(String namespace, long leaseMillis, boolean byName) {
+		for (;;) {
+			Lease current = claims.get(namespace);
+			if (current == null) {
+				Lease lease = new Lease(this, namespace, leaseMillis, byName);
+				if (claims.putIfAbsent(namespace, lease) == null) {
+					if (metrics.enabled)
+						metrics.claims.increment();
+					lease.start();
+					return lease;
+				}
 			}
+			else if (current.expired())
+				current.release(); // hands it to a waiter, if there is one, before this caller can take it
 			else
-				throw new UnsupportedOperationException("Namespace: "+namespace+" has already been allocated to another caller.");
+				return null;
+		}
+	}
+
+	/**
+	 * 'lease' has been released or has expired: give up its claim, and hand the namespace to the first waiter still waiting
+	 * @return true if 'lease' held the namespace until now. Removing the claim is atomic, so of several callers ending
+	 * the same lease only one gets true
+	 */
+	private boolean end(Lease lease) {
+		if (! claims.remove(lease.namespace, lease))
+			return false;
+		Waiter next;
+		Lease handed;
+		for (;;) {
+			Waiters w = waiters.get(lease.namespace);
+			if (w == null)
+				return true;
+			synchronized (w) {
+				if (w.removed)
+					continue;
+				for (;;) {
+					next = w.queue.peek();
+					if (next == null) {
+						w.drained(waiters, lease.namespace);
+						return true;
+					}
+					if (! next.future.isDone())
+						break;
+					w.queue.poll(); // cancelled
+				}
+				handed = new Lease(this, lease.namespace, next.leaseMillis, false);
+				if (claims.putIfAbsent(lease.namespace, handed) != null)
+					return true; // claimed by getProperties() meanwhile: its release will hand the namespace on
+				w.queue.poll();
+				if (w.queue.isEmpty())
+					w.drained(waiters, lease.namespace);
+				break;
+			}
+		}
+		if (metrics.enabled) {
+			metrics.claims.increment();
+			metrics.claimWaited(System.nanoTime()-next.since);
 		}
+		handed.start();
+		if (! next.future.complete(handed)) // completed outside the lock, as it runs the waiter's continuations
+			handed.release();
+		return true;
 	}
 
 
+	/**
+	 * A claim on one namespace. A lease with a duration expires unless it is renewed by heartbeat() within that duration;
+	 * once it has expired the namespace can be claimed by someone else, and the holder must stop using its properties.
+	 */
+	public static final class Lease {
+		private final PropertyThang2 owner;
+		private final String namespace;
+		private final long leaseMillis;
+		private final boolean byName; // claimed by getProperties(), so releaseProperties() may release it
+		private volatile long expires; // System.nanoTime() at which the lease expires, if leaseMillis > 0
+		private volatile boolean ended;
 
+		private Lease(PropertyThang2 owner, String namespace, long leaseMillis, boolean byName) {
+			this.owner = owner;
+			this.namespace = namespace;
+			this.leaseMillis = leaseMillis;
+			this.byName = byName;
+		}
+
+		/**
+		 * Start the clock once the lease is published, and check it again when it is due to run out
+		 */
+		private void start() {
+			if (leaseMillis <= 0)
+				return;
+			expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+			schedule();
+		}
+
+		private void schedule() {
+			LEASE_TIMER.schedule(new Runnable() {
+				public void run() {
+					if (ended)
+						return;
+					if (expired())
+						release();
+					else
+						schedule(); // renewed since: check again at the new expiry time
+				}
+			}, Math.max(0, expires-System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+
+		public String getNamespace() {
+			return namespace;
+		}
+
+		/**
+		 * @return the namespace's properties, to be used only while this lease is valid
+		 */
+		public KeyValueProperties getProperties() {
+			return owner.unclaimedProperties(namespace);
+		}
+
+		boolean expired() {
+			return ended || ((leaseMillis > 0) && (System.nanoTime()-expires >= 0));
+		}
+
+		/**
+		 * @return true if this lease still holds its namespace
+		 */
+		public boolean isValid() {
+			return (! expired()) && (owner.claims.get(namespace) == this);
+		}
+
+		/**
+		 * Renew the lease for its full duration
+		 * @return true if it was renewed, false if it has already expired or been released
+		 */
+		public boolean heartbeat() {
+			if (! isValid())
+				return false;
+			if (leaseMillis > 0)
+				expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+			return isValid(); // may have expired between the check and the renewal
+		}
+
+		/**
+		 * Give up the namespace, handing it to the first waiter if there is one
+		 * @return true if this lease held the namespace until now and this call released it. If several threads
+		 * release the same lease at once, only one gets true
+		 */
+		public boolean release() {
+			if (owner.claims.get(namespace) != this)
+				return false;
+			ended = true; // before the claim goes, so the lease is never seen valid without it
+			return owner.end(this);
+		}
+	}
+
+	/** one daemon thread that expires leases nobody has renewed, and hands their namespaces on */
+	private static final ScheduledThreadPoolExecutor LEASE_TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "PropertyThang2 lease timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	static {
+		LEASE_TIMER.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * the callers of claimAsync() waiting for one namespace, first come first served. Changed only under its own lock.
+	 * It is dropped from the map once its queue drains, so the map holds only contended namespaces; whoever finds it
+	 * removed under the lock fetches the one now in the map
+	 */
+	private static final class Waiters {
+		final Queue <Waiter> queue = new ConcurrentLinkedQueue <Waiter> (); // read without the lock by tryClaim()
+		boolean removed;
+
+		/** call with this locked and the queue empty */
+		void drained(ConcurrentHashMap <String,Waiters> map, String namespace) {
+			map.remove(namespace, this);
+			removed = true;
+		}
+	}
+
+	private static final class Waiter {
+		final CompletableFuture <Lease> future;
+		final long leaseMillis;
+		final long since = System.nanoTime();
+
+		Waiter(CompletableFuture <Lease> future, long leaseMillis) {
+			this.future = future;
+			this.leaseMillis = leaseMillis;
+		}
+	}
+
+
+
+
+	/**
+	 * Make every namespace durable in 'log'. Whatever the log already holds is replayed first, so this is also
+	 * how the namespaces are restored after a restart. Replayed namespaces are not claimed.
+	 * From then on every put and remove in every namespace is logged before it returns.
+	 * Call this before any namespace is claimed.
+	 * @param log a PropertyLog that has not been opened yet
+	 * @throws IOException if the log cannot be read or opened
+	 */
+	public synchronized void setLog(PropertyLog log)
+	throws IOException {
+		if (snapshot != null)
+			throw new IllegalStateException("cannot log namespaces read from a snapshot");
+		log.open(
+				new PropertyLog.Receiver() {
+					public void put(String namespace, String key, byte type, long bits, String string) {
+						unclaimedProperties(namespace).setProperty(key, string);
+					}
+					public void remove(String namespace, String key) {
+						unclaimedProperties(namespace).remove(key);
+					}
+				},
+				new PropertyLog.Source() {
+					public void writeTo(PropertyLog.Receiver receiver) {
+						for (Map.Entry <String,KeyValueProperties> ns : namespacedProperties.entrySet()) {
+							KeyValueProperties kvp = ns.getValue();
+							synchronized (kvp) { // Hashtable iterators are fail-fast
+								for (Map.Entry <Object,Object> e : kvp.entrySet())
+									receiver.put(ns.getKey(), (String) e.getKey(), PropertyValue.STRING, 0L, (String) e.getValue());
+							}
+						}
+					}
+				});
+		this.log = log;
+		for (Map.Entry <String,KeyValueProperties> e : namespacedProperties.entrySet())
+			e.getValue().setLog(log, e.getKey());
+	}
+
+	/**
+	 * @return the namespace's properties, created (or decoded from the snapshot) if needed, without claiming it
+	 */
+	private KeyValueProperties unclaimedProperties(String namespace) {
+		KeyValueProperties kvp = namespacedProperties.get(namespace);
+		if (kvp == null) {
+			KeyValueProperties created = new KeyValueProperties();
+			created.metrics = metrics;
+			NamespaceSnapshot snapshot = this.snapshot;
+			if (snapshot != null)
+				decode(snapshot, namespace, created);
+			PropertyLog log = this.log;
+			if (log != null)
+				created.setLog(log, namespace);
+			kvp = namespacedProperties.putIfAbsent(namespace, created);
+			if (kvp == null)
+				kvp = created;
+		}
+		return kvp;
+	}
+
+
+
+	/**
+	 * @return the namespace's properties if they are in memory, without creating, decoding or claiming them
+	 */
+	KeyValueProperties loadedProperties(String namespace) {
+		return namespacedProperties.get(namespace);
+	}
+
+	int namespaceCount() {
+		return namespacedProperties.size();
+	}
+
+	int claimedCount() {
+		int n = 0;
+		for (Lease lease : claims.values())
+			if (! lease.expired())
+				n++;
+		return n;
+	}
+
+
+	/**
+	 * @return the counters and gauges of this PropertyThang2
+	 */
+	public PropertyMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Register the metrics with the platform MBeanServer, as com.challengeandresponse.utils:type=PropertyThang2,name='name'
+	 * @return the name registered
+	 * @throws JMException if the name is not valid or is already registered
+	 */
+	public synchronized ObjectName registerMBean(String name)
+	throws JMException {
+		ObjectName objectName = new ObjectName("com.challengeandresponse.utils:type=PropertyThang2,name="+ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+		mbeanName = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Remove the metrics from the platform MBeanServer, if they were registered
+	 * @throws JMException if they cannot be removed
+	 */
+	public synchronized void unregisterMBean()
+	throws JMException {
+		if (mbeanName != null)
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		mbeanName = null;
+	}
+
+
+	/**
+	 * Add the properties 'snapshot' holds for 'namespace', if any, to 'kvp'
+	 */
+	private static void decode(NamespaceSnapshot snapshot, String namespace, KeyValueProperties kvp) {
+		int i = snapshot.find(namespace);
+		if (i < 0)
+			return;
+		try {
+			snapshot.decode(i, kvp);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("cannot decode namespace ["+namespace+"] from snapshot: "+e.toString());
+		}
+	}
+
+
+
+	/**
+	 * Start from the namespaces saved in 'file' by writeSnapshot(). The file is memory-mapped and only its header is read
+	 * now; each namespace is decoded when it is first asked for, so namespaces that are never asked for cost no heap.
+	 * A snapshot is a starting point instead of a log or checkpoint directory, not as well as one.
+	 * Call this before any namespace is claimed.
+	 * @throws IOException if the file cannot be mapped or is not a snapshot
+	 * @throws IllegalStateException if a log or checkpoint directory has been set
+	 */
+	public synchronized void openSnapshot(File file)
+	throws IOException {
+		if ((log != null) || (checkpointDirectory != null))
+			throw new IllegalStateException("cannot open a snapshot under a log or checkpoint directory");
+		NamespaceSnapshot previous = snapshot;
+		snapshot = new NamespaceSnapshot(file);
+		if (previous != null)
+			previous.closeFile(); // not close(): threads that read the old snapshot field may still be decoding from it
+	}
 
+	/**
+	 * Save every namespace to 'file', for a later openSnapshot(). Namespaces of an open snapshot that have not been
+	 * decoded are copied across as they are. 'file' is replaced in one atomic rename, so it may be the open snapshot itself.
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void writeSnapshot(File file)
+	throws IOException {
+		NamespaceSnapshot.write(file, namespacedProperties, snapshot);
+	}
+
+
+
+	/**
+	 * Keep checkpoints of the namespaces in 'directory', loading the last checkpoint found there.
+	 * Segments the manifest does not name, left by a checkpoint that did not finish, are deleted.
+	 * Loaded namespaces are not claimed. Call this before any namespace is claimed.
+	 * @param directory holds one segment file per namespace, plus a manifest naming the current segment of each. Created if it does not exist
+	 * @throws IOException if the checkpoint cannot be read
+	 */
+	public synchronized void setCheckpointDirectory(File directory)
+	throws IOException {
+		if (snapshot != null)
+			throw new IllegalStateException("cannot checkpoint namespaces read from a snapshot");
+		if ((! directory.isDirectory()) && (! directory.mkdirs()))
+			throw new IOException("cannot create checkpoint directory "+directory);
+		File manifest = new File(directory, MANIFEST_NAME);
+		Set <String> named = new HashSet <String> ();
+		if (manifest.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+			try {
+				if (in.readInt() != MANIFEST_MAGIC)
+					throw new IOException("not a checkpoint manifest: "+manifest);
+				checkpointSeq = in.readLong();
+				nextSegmentId = in.readInt();
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					String namespace = PropertyLog.readString(in);
+					int id = in.readInt();
+					String segment = PropertyLog.readString(in);
+					named.add(segment);
+					KeyValueProperties kvp = unclaimedProperties(namespace);
+					readSegment(new File(directory, segment), kvp);
+					kvp.segmentId = id;
+					kvp.segmentFile = segment;
+					kvp.savedChanges = kvp.changes();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		new File(directory, MANIFEST_NAME+".tmp").delete();
+		for (File f : directory.listFiles())
+			if (f.getName().endsWith(".seg") && (! named.contains(f.getName())))
+				f.delete();
+		this.checkpointDirectory = directory;
+	}
+
+	/**
+	 * Save the namespaces that changed since the last checkpoint. Each is written to a new segment file of its own, in
+	 * parallel on the checkpoint writer threads, and then the manifest is replaced in one atomic rename and the directory
+	 * is forced to disk, so a crash at any point leaves the previous checkpoint intact. The cost grows with the number
+	 * of namespaces changed, not with the size of the store.
+	 * @throws IOException if a segment or the manifest cannot be written
+	 * @throws IllegalStateException if no checkpoint directory has been set
+	 */
+	public synchronized void checkpoint()
+	throws IOException {
+		if (checkpointDirectory == null)
+			throw new IllegalStateException("no checkpoint directory set");
+		final File directory = checkpointDirectory;
+		final long seq = ++checkpointSeq;
+
+		List <KeyValueProperties> dirty = new ArrayList <KeyValueProperties> ();
+		Map <KeyValueProperties,String> newSegments = new IdentityHashMap <KeyValueProperties,String> (); // Hashtables compare by content, so by identity here
+		List <Callable<Long>> writes = new ArrayList <Callable<Long>> ();
+		for (final KeyValueProperties kvp : namespacedProperties.values()) {
+			if ((kvp.segmentFile != null) && (kvp.changes() == kvp.savedChanges))
+				continue;
+			if (kvp.segmentId < 0)
+				kvp.segmentId = nextSegmentId++;
+			final File segment = new File(directory, kvp.segmentId+"-"+seq+".seg");
+			dirty.add(kvp);
+			newSegments.put(kvp, segment.getName());
+			writes.add(new Callable <Long> () {
+				public Long call()
+				throws IOException {
+					return writeSegment(segment, kvp);
+				}
+			});
+		}
+
+		long[] written = new long[writes.size()];
+		boolean published = false;
+		try {
+			List <Future<Long>> results = CHECKPOINT_WRITERS.invokeAll(writes);
+			for (int i = 0; i < written.length; i++) {
+				try {
+					written[i] = results.get(i).get();
+				}
+				catch (ExecutionException e) {
+					throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause().toString());
+				}
+			}
+			writeManifest(directory, seq, newSegments);
+			published = true;
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("checkpoint interrupted");
+		}
+		finally {
+			if (! published) // the previous checkpoint stands, and these segments belong to nothing
+				for (String segment : newSegments.values())
+					new File(directory, segment).delete();
+		}
+
+		for (int i = 0; i < dirty.size(); i++) {
+			KeyValueProperties kvp = dirty.get(i);
+			if (kvp.segmentFile != null)
+				new File(directory, kvp.segmentFile).delete();
+			kvp.segmentFile = newSegments.get(kvp);
+			kvp.savedChanges = written[i];
+		}
+	}
+
+	/**
+	 * Replace the manifest with one naming the new segments of the dirty namespaces and the old segments of the rest,
+	 * and force the rename to disk
+	 */
+	private void writeManifest(File directory, long seq, Map <KeyValueProperties,String> newSegments)
+	throws IOException {
+		File tmp = new File(directory, MANIFEST_NAME+".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			List <String> names = new ArrayList <String> ();
+			List <KeyValueProperties> saved = new ArrayList <KeyValueProperties> ();
+			for (Map.Entry <String,KeyValueProperties> e : namespacedProperties.entrySet()) {
+				KeyValueProperties kvp = e.getValue();
+				if (newSegments.containsKey(kvp) || (kvp.segmentFile != null)) { // namespaces created during this checkpoint wait for the next one
+					names.add(e.getKey());
+					saved.add(kvp);
+				}
+			}
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeLong(seq);
+			out.writeInt(nextSegmentId);
+			out.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				KeyValueProperties kvp = saved.get(i);
+				String segment = newSegments.get(kvp);
+				PropertyLog.writeString(out, names.get(i));
+				out.writeInt(kvp.segmentId);
+				PropertyLog.writeString(out, (segment != null) ? segment : kvp.segmentFile);
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), new File(directory, MANIFEST_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(directory);
+	}
+
+	/**
+	 * Force a directory's entries to disk, so a rename in it survives a crash. Some platforms (Windows) cannot open a
+	 * directory to force it; there the rename is left to the file system
+	 */
+	private static void syncDirectory(File directory)
+	throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		}
+		catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write one namespace's properties to 'file' and force them to disk
+	 * @return the change count of the properties written
+	 */
+	private static long writeSegment(File file, KeyValueProperties kvp)
+	throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(SEGMENT_MAGIC);
+		long changes = kvp.writeTo(data); // copies under the namespace's lock, the file is written outside it
+		data.flush();
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			bytes.writeTo(fos);
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+		return changes;
+	}
+
+	private static void readSegment(File file, KeyValueProperties kvp)
+	throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != SEGMENT_MAGIC)
+				throw new IOException("not a checkpoint segment: "+file);
+			kvp.readFrom(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+
+	/**
+	 * Load namespaces saved by storeToXML(). Loaded namespaces are not claimed
+	 */
 	public void loadFromXML(InputStream in) throws IOException,
 	InvalidPropertiesFormatException {
-		namespacedProperties.loadFromXML(in);
+		Properties flat = new Properties();
+		flat.loadFromXML(in);
+		for (String name : flat.stringPropertyNames()) {
+			int split = name.indexOf(NS_DELIMITER);
+			if (split < 0)
+				throw new InvalidPropertiesFormatException("Key without a namespace: "+name);
+			unclaimedProperties(name.substring(0, split)).setProperty(name.substring(split+NS_DELIMITER.length()), flat.getProperty(name));
+		}
 	}
 
+	/**
+	 * Save every namespace as one XML properties document, with each key written as namespace:key.
+	 * loadFromXML() splits at the first ':', so keys may contain one but namespaces may not
+	 * @throws IllegalArgumentException if a namespace contains ':'. Nothing is written
+	 */
 	public void storeToXML(OutputStream os, String comment, String encoding)
 	throws IOException {
-		namespacedProperties.storeToXML(os, comment, encoding);
+		flatten().storeToXML(os, comment, encoding);
 	}
 
 
+	/**
+	 * @throws IllegalArgumentException if a namespace contains ':'. Nothing is written
+	 */
 	public void storeToXML(OutputStream os, String comment) throws IOException {
-		namespacedProperties.storeToXML(os, comment);
+		flatten().storeToXML(os, comment);
+	}
+
+	private static void checkFlattenable(String namespace) {
+		if (namespace.contains(NS_DELIMITER))
+			throw new IllegalArgumentException("cannot store namespace "+namespace+" to XML: it contains \""+NS_DELIMITER+"\"");
 	}
 
+	private Properties flatten() {
+		Properties flat = new Properties();
+		NamespaceSnapshot snapshot = this.snapshot;
+		if (snapshot != null) { // namespaces not decoded yet are decoded for the copy only
+			for (int i = 0; i < snapshot.size(); i++) {
+				String namespace = snapshot.name(i);
+				if (namespacedProperties.containsKey(namespace))
+					continue;
+				checkFlattenable(namespace);
+				KeyValueProperties kvp = new KeyValueProperties();
+				decode(snapshot, namespace, kvp);
+				for (Map.Entry <Object,Object> e : kvp.entrySet())
+					flat.put(namespace+NS_DELIMITER+e.getKey(), e.getValue());
+			}
+		}
+		for (Map.Entry <String,KeyValueProperties> ns : namespacedProperties.entrySet()) {
+			KeyValueProperties kvp = ns.getValue();
+			checkFlattenable(ns.getKey());
+			synchronized (kvp) {
+				for (Map.Entry <Object,Object> e : kvp.entrySet())
+					flat.put(ns.getKey()+NS_DELIMITER+e.getKey(), e.getValue());
+			}
+		}
+		return flat;
+	}
+
+
 
 
 
@@ -114,6 +867,309 @@ public class PropertyThang2 {
 		System.out.println("should return -1:"+kvp2.getIntProperty("whee",-1));
 		System.out.println("should return [kaboom, eep]:"+kvp2.keySet());
 
+		pt.releaseProperties("NS1");
+		System.out.println((pt.getProperties("NS1") == kvp1) ? "OK: released namespace can be claimed again, with its properties" : "FAIL: released namespace came back different");
+
+		System.out.println("Leases");
+		try {
+			Lease first = pt.tryClaim("NS5", 0);
+			System.out.println((pt.tryClaim("NS5", 0) == null) ? "OK: tryClaim of a claimed namespace gives null" : "FAIL: namespace claimed twice");
+			CompletableFuture <Lease> second = pt.claimAsync("NS5", 0);
+			CompletableFuture <Lease> third = pt.claimAsync("NS5", 0);
+			System.out.println((! second.isDone()) ? "OK: claimAsync waits while the namespace is held" : "FAIL: claimAsync did not wait");
+			first.release();
+			System.out.println((second.isDone() && (! third.isDone())) ? "OK: release hands the namespace to the first waiter" : "FAIL: hand-off out of order");
+			second.get().release();
+			System.out.println(third.get(1, TimeUnit.SECONDS).isValid() ? "OK: then to the next" : "FAIL: third waiter not served");
+			third.get().release();
+			System.out.println((! pt.waiters.containsKey("NS5")) ? "OK: drained waiters are dropped" : "FAIL: waiters kept after the queue drained");
+			CompletableFuture <Lease> uncontended = pt.claimAsync("NS5", 0);
+			System.out.println((uncontended.isDone() && (! pt.waiters.containsKey("NS5"))) ? "OK: an uncontended claimAsync leaves no waiters" : "FAIL: uncontended claimAsync left waiters");
+			uncontended.get().release();
+
+			Lease shortLease = pt.tryClaim("NS6", 50);
+			CompletableFuture <Lease> waiting = pt.claimAsync("NS6", 0);
+			for (int i = 0; i < 4; i++) {
+				Thread.sleep(20);
+				shortLease.heartbeat();
+			}
+			System.out.println((shortLease.isValid() && (! waiting.isDone())) ? "OK: heartbeats keep a lease alive" : "FAIL: lease lapsed despite heartbeats");
+			Lease taken = waiting.get(1, TimeUnit.SECONDS); // no more heartbeats, so the lease runs out and is handed on
+			System.out.println(((! shortLease.isValid()) && taken.isValid() && (! shortLease.heartbeat())) ? "OK: expired lease handed to the waiter" : "FAIL: expired lease not handed on");
+
+			System.out.println(((! pt.releaseProperties("NS6")) && taken.isValid()) ? "OK: releaseProperties leaves a lease holder alone" : "FAIL: releaseProperties released someone's lease");
+			for (int round = 0; round < 1000; round++) {
+				final Lease contested = pt.tryClaim("NS7", 0);
+				final boolean[] won = new boolean[2];
+				Thread other = new Thread() {
+					public void run() {
+						won[1] = contested.release();
+					}
+				};
+				other.start();
+				won[0] = contested.release();
+				other.join();
+				if (won[0] == won[1]) {
+					System.out.println("FAIL: two releases of one lease both returned "+won[0]);
+					break;
+				}
+				if (round == 999)
+					System.out.println("OK: only one of two concurrent releases wins");
+			}
+		}
+		catch (Exception e) {
+			System.out.println("FAIL: "+e);
+		}
+
+		System.out.println("Metrics");
+		try {
+			PropertyThang2 measured = new PropertyThang2();
+			ObjectName name = measured.registerMBean("test");
+			KeyValueProperties kvp = measured.getProperties("M1");
+			kvp.addToDictionary("a");
+			kvp.setProperty("a", 1);
+			kvp.getIntProperty("a", -1);
+			try {
+				kvp.setProperty("b", 2);
+			}
+			catch (IllegalArgumentException e) {
+			}
+			try {
+				measured.getProperties("M1");
+			}
+			catch (UnsupportedOperationException e) {
+			}
+			javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			boolean counted = ((Long) server.getAttribute(name, "Claims") == 1) && ((Long) server.getAttribute(name, "ClaimRejections") == 1)
+				&& ((Long) server.getAttribute(name, "Puts") == 1) && ((Long) server.getAttribute(name, "Gets") == 1)
+				&& ((Long) server.getAttribute(name, "DictionaryRejections") == 1);
+			System.out.println(counted ? "OK: claims, rejections, puts, gets and dictionary rejections counted over JMX" : "FAIL: counts "+measured.getMetrics().getClaims()+" "+measured.getMetrics().getClaimRejections()+" "+measured.getMetrics().getPuts()+" "+measured.getMetrics().getGets()+" "+measured.getMetrics().getDictionaryRejections());
+			Object entries = server.invoke(name, "getEntryCount", new Object[] {"M1"}, new String[] {String.class.getName()});
+			System.out.println(Integer.valueOf(1).equals(entries) ? "OK: M1 has 1 entry" : "FAIL: M1 has "+entries+" entries");
+			KeyValueProperties.Transaction clearing = kvp.begin();
+			clearing.clear();
+			clearing.remove("absent");
+			clearing.commit();
+			System.out.println((measured.getMetrics().getPuts() == 1) && (measured.getMetrics().getRemoves() == 1) ? "OK: a transaction's removes counted as removes" : "FAIL: puts "+measured.getMetrics().getPuts()+", removes "+measured.getMetrics().getRemoves());
+			measured.getMetrics().setEnabled(false);
+			kvp.setProperty("a", 3);
+			System.out.println((measured.getMetrics().getPuts() == 1) ? "OK: nothing counted while switched off" : "FAIL: counted while switched off");
+			measured.unregisterMBean();
+		}
+		catch (JMException e) {
+			System.out.println("FAIL: "+e);
+		}
+
+		System.out.println("XML round trip");
+		try {
+			ByteArrayOutputStream xml = new ByteArrayOutputStream();
+			pt.storeToXML(xml, "test");
+			PropertyThang2 loaded = new PropertyThang2();
+			loaded.loadFromXML(new ByteArrayInputStream(xml.toByteArray()));
+			System.out.println((loaded.getProperties("NS2").getIntProperty("eep",-1) == 1000) ? "OK: NS2 eep=1000 after reload" : "FAIL: NS2 eep lost in reload");
+			PropertyThang2 colons = new PropertyThang2();
+			colons.getProperties("a").setProperty("b:c", 1);
+			xml.reset();
+			colons.storeToXML(xml, "test");
+			loaded = new PropertyThang2();
+			loaded.loadFromXML(new ByteArrayInputStream(xml.toByteArray()));
+			System.out.println((loaded.getProperties("a").getIntProperty("b:c",-1) == 1) ? "OK: key a:b:c loads as namespace a, key b:c" : "FAIL: key with ':' lost in reload");
+			colons.getProperties("a:b").setProperty("c", 2);
+			xml.reset();
+			try {
+				colons.storeToXML(xml, "test");
+				System.out.println("FAIL: namespace with ':' was stored");
+			}
+			catch (IllegalArgumentException e) {
+				System.out.println((xml.size() == 0) ? "OK: namespace with ':' rejected, nothing written" : "FAIL: partial XML written");
+			}
+		}
+		catch (IOException e) {
+			System.out.println("FAIL: "+e);
+		}
+
+		System.out.println("Snapshots decode namespaces on first use");
+		try {
+			File file = new File(System.getProperty("java.io.tmpdir"), "PropertyThang2-snapshot-"+System.nanoTime());
+			PropertyThang2 big = new PropertyThang2();
+			for (int i = 0; i < 1000; i++)
+				big.getProperties("agent"+i).setProperty("id", i);
+			big.writeSnapshot(file);
+
+			PropertyThang2 started = new PropertyThang2();
+			started.openSnapshot(file);
+			System.out.println((started.namespacedProperties.size() == 0) ? "OK: nothing decoded at open" : "FAIL: "+started.namespacedProperties.size()+" namespaces decoded at open");
+			System.out.println((started.getProperties("agent567").getIntProperty("id",-1) == 567) ? "OK: agent567 id=567" : "FAIL: agent567 id lost");
+			System.out.println((started.namespacedProperties.size() == 1) ? "OK: only the claimed namespace was decoded" : "FAIL: "+started.namespacedProperties.size()+" namespaces decoded");
+			System.out.println((started.getProperties("nosuch").size() == 0) ? "OK: unknown namespace is empty" : "FAIL: unknown namespace has properties");
+
+			started.getProperties("agent1").setProperty("id", 11);
+			started.writeSnapshot(file); // replaces the open snapshot, copying the undecoded namespaces
+			PropertyThang2 restarted = new PropertyThang2();
+			restarted.openSnapshot(file);
+			System.out.println((restarted.getProperties("agent1").getIntProperty("id",-1) == 11) ? "OK: agent1 id=11 after rewrite" : "FAIL: agent1 id="+restarted.getProperties("agent1").getProperty("id"));
+			System.out.println((restarted.getProperties("agent999").getIntProperty("id",-1) == 999) ? "OK: copied namespace agent999 id=999" : "FAIL: agent999 lost in rewrite");
+
+			NamespaceSnapshot inFlight = restarted.snapshot; // as a decode that read the field before the reopen would hold it
+			restarted.openSnapshot(file);
+			KeyValueProperties late = new KeyValueProperties();
+			decode(inFlight, "agent42", late);
+			System.out.println((late.getIntProperty("id",-1) == 42) ? "OK: the replaced snapshot can still be decoded from" : "FAIL: the replaced snapshot was unmapped under a decode");
+			file.delete();
+		}
+		catch (IOException e) {
+			System.out.println("FAIL: "+e);
+		}
+
+		System.out.println("Incremental checkpoints");
+		try {
+			File dir = new File(System.getProperty("java.io.tmpdir"), "PropertyThang2-checkpoint-"+System.nanoTime());
+			PropertyThang2 saved = new PropertyThang2();
+			saved.setCheckpointDirectory(dir);
+			KeyValueProperties[] agents = new KeyValueProperties[10];
+			for (int i = 0; i < agents.length; i++) {
+				agents[i] = saved.getProperties("agent"+i);
+				agents[i].setProperty("id", i);
+			}
+			saved.checkpoint();
+			agents[3].setProperty("id", 33);
+			saved.checkpoint();
+			int rewritten = 0;
+			for (String name : dir.list())
+				if (name.endsWith("-2.seg"))
+					rewritten++;
+			System.out.println((rewritten == 1) ? "OK: second checkpoint rewrote only the changed namespace" : "FAIL: second checkpoint rewrote "+rewritten+" namespaces");
+			agents[4].putAll(Collections.singletonMap("name", "four"));
+			agents[5].putIfAbsent("name", "five");
+			saved.checkpoint();
+			rewritten = 0;
+			for (String name : dir.list())
+				if (name.endsWith("-3.seg"))
+					rewritten++;
+			System.out.println((rewritten == 2) ? "OK: putAll and putIfAbsent mark their namespaces changed" : "FAIL: third checkpoint rewrote "+rewritten+" namespaces");
+
+			PropertyThang2 reloaded = new PropertyThang2();
+			reloaded.setCheckpointDirectory(dir);
+			System.out.println((reloaded.getProperties("agent3").getIntProperty("id",-1) == 33) ? "OK: agent3 id=33 after reload" : "FAIL: agent3 id lost");
+			System.out.println((reloaded.getProperties("agent7").getIntProperty("id",-1) == 7) ? "OK: agent7 id=7 after reload" : "FAIL: agent7 id lost");
+			System.out.println("five".equals(reloaded.getProperties("agent5").getProperty("name")) ? "OK: agent5 name=five after reload" : "FAIL: agent5 name lost");
+			File orphan = new File(dir, "99-99.seg"); // as left by a crash before the manifest was replaced
+			new FileOutputStream(orphan).close();
+			new PropertyThang2().setCheckpointDirectory(dir);
+			System.out.println((! orphan.exists()) ? "OK: orphaned segment deleted" : "FAIL: orphaned segment left behind");
+			System.out.println((dir.list().length == 11) ? "OK: manifest and 10 segments left" : "FAIL: "+Arrays.asList(dir.list()));
+		}
+		catch (IOException e) {
+			System.out.println("FAIL: "+e);
+		}
+
+		System.out.println("Logged namespaces survive a restart");
+		try {
+			File dir = new File(System.getProperty("java.io.tmpdir"), "PropertyThang2-log-"+System.nanoTime());
+			PropertyThang2 logged = new PropertyThang2();
+			PropertyLog log = new PropertyLog(dir);
+			logged.setLog(log);
+			KeyValueProperties kvp3 = logged.getProperties("NS3");
+			kvp3.setProperty("kept", 42);
+			kvp3.setProperty("gone", 1);
+			kvp3.remove("gone");
+			log.compact();
+			kvp3.setProperty("afterCompaction", true);
+			KeyValueProperties.Transaction t = kvp3.begin();
+			t.setProperty("stash1", "a");
+			t.setProperty("stash2", "b");
+			t.commit();
+			log.close();
+
+			PropertyThang2 restored = new PropertyThang2();
+			PropertyLog log2 = new PropertyLog(dir);
+			restored.setLog(log2);
+			KeyValueProperties kvp4 = restored.getProperties("NS3");
+			System.out.println((kvp4.getIntProperty("kept",-1) == 42) ? "OK: kept=42" : "FAIL: kept="+kvp4.getProperty("kept"));
+			System.out.println((! kvp4.containsKey("gone")) ? "OK: removed key stays removed" : "FAIL: removed key came back");
+			System.out.println(kvp4.getBooleanProperty("afterCompaction",false) ? "OK: tail after the snapshot was replayed" : "FAIL: tail after the snapshot was lost");
+			System.out.println("b".equals(kvp4.getStringProperty("stash2",null)) ? "OK: committed transaction was replayed" : "FAIL: committed transaction was lost");
+			log2.close();
+
+			File mutated = new File(System.getProperty("java.io.tmpdir"), "PropertyThang2-log-"+System.nanoTime());
+			PropertyThang2 mapped = new PropertyThang2();
+			PropertyLog log4 = new PropertyLog(mutated);
+			mapped.setLog(log4);
+			KeyValueProperties kvp6 = mapped.getProperties("NS6");
+			kvp6.setProperty("a", 1);
+			kvp6.setProperty("b", 2);
+			kvp6.clear();
+			kvp6.putAll(Collections.singletonMap("c", "3"));
+			kvp6.putIfAbsent("d", "4");
+			kvp6.merge("d", "0", new java.util.function.BiFunction <Object,Object,Object> () {
+				public Object apply(Object x, Object y) {
+					return x.toString()+y;
+				}
+			});
+			kvp6.compute("e", new java.util.function.BiFunction <Object,Object,Object> () {
+				public Object apply(Object k, Object v) {
+					return "5";
+				}
+			});
+			kvp6.computeIfPresent("e", new java.util.function.BiFunction <Object,Object,Object> () {
+				public Object apply(Object k, Object v) {
+					return null;
+				}
+			});
+			log4.close();
+			PropertyThang2 remapped = new PropertyThang2();
+			PropertyLog log5 = new PropertyLog(mutated);
+			remapped.setLog(log5);
+			Map <Object,Object> recovered = new TreeMap <Object,Object> (remapped.getProperties("NS6"));
+			System.out.println(recovered.equals(new TreeMap <Object,Object> (kvp6)) && "{c=3, d=40}".equals(recovered.toString())
+					? "OK: clear, putAll, putIfAbsent, merge and compute replayed" : "FAIL: recovered "+recovered+", memory held "+kvp6);
+			log5.close();
+
+			File interrupting = new File(System.getProperty("java.io.tmpdir"), "PropertyThang2-log-"+System.nanoTime());
+			PropertyThang2 interrupted = new PropertyThang2();
+			PropertyLog log6 = new PropertyLog(interrupting);
+			interrupted.setLog(log6);
+			KeyValueProperties kvp7 = interrupted.getProperties("NS7");
+			Thread.currentThread().interrupt(); // closes the channel in the middle of the commit's write
+			try {
+				kvp7.setProperty("survivor", 7);
+			}
+			catch (RuntimeException e) {
+			}
+			Thread.interrupted();
+			log6.close();
+			PropertyThang2 reread = new PropertyThang2();
+			PropertyLog log7 = new PropertyLog(interrupting);
+			reread.setLog(log7);
+			System.out.println((reread.getProperties("NS7").getIntProperty("survivor",-1) == 7) ? "OK: record kept through an interrupted write" : "FAIL: interrupted write lost the record");
+			log7.close();
+
+			File failing = new File(System.getProperty("java.io.tmpdir"), "PropertyThang2-log-"+System.nanoTime());
+			PropertyThang2 unlucky = new PropertyThang2();
+			PropertyLog log3 = new PropertyLog(failing, false, 10, 1);
+			unlucky.setLog(log3);
+			new File(failing, "snapshot.tmp").mkdir(); // so every background compaction fails
+			KeyValueProperties kvp5 = unlucky.getProperties("NS5");
+			kvp5.setProperty("first", 1);
+			Thread.sleep(100);
+			try {
+				kvp5.setProperty("second", 2);
+				System.out.println("FAIL: background failure not reported");
+			}
+			catch (RuntimeException e) {
+				System.out.println("OK: background failure thrown from the next commit");
+			}
+			new File(failing, "snapshot.tmp").delete();
+			try {
+				log3.close();
+			}
+			catch (IOException e) { // a compaction that failed before snapshot.tmp was removed
+			}
+		}
+		catch (IOException | InterruptedException e) {
+			System.out.println("FAIL: "+e);
+		}
+
 	}
 
 }
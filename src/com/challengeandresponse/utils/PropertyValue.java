@@ -0,0 +1,104 @@
+package com.challengeandresponse.utils;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A tagged slot holding one property value without boxing it.
+ * ints, longs, doubles and booleans are kept as raw bits in a long, Strings are kept by reference.
+ *
+ * The type of a slot never changes. Setting a value of the same type overwrites the slot in place,
+ * setting a value of a different type replaces the slot, so a reader that has checked the type
+ * can always read the bits that go with it.
+ *
+ * @author jim
+ *
+ */
+final class PropertyValue {
+
+	static final byte INT = 1;
+	static final byte LONG = 2;
+	static final byte DOUBLE = 3;
+	static final byte BOOLEAN = 4;
+	static final byte STRING = 5;
+
+	/** 'expires' of a slot whose expiry has been claimed by the thread removing it */
+	static final long DEAD = -1;
+
+	private static final AtomicLongFieldUpdater <PropertyValue> EXPIRES = AtomicLongFieldUpdater.newUpdater(PropertyValue.class, "expires");
+	private static final AtomicReferenceFieldUpdater <PropertyValue,String> STRINGS = AtomicReferenceFieldUpdater.newUpdater(PropertyValue.class, String.class, "string");
+
+	final byte type;
+	volatile long bits;
+	volatile String string;
+	volatile long expires;		// System.currentTimeMillis() after which the value is gone, 0 for never, DEAD once being removed
+	volatile long accessed;		// System.nanoTime() of the last read or write, only kept up when the store is bounded
+
+	PropertyValue(byte type, long bits, String string) {
+		this.type = type;
+		this.bits = bits;
+		this.string = string;
+	}
+
+
+	/**
+	 * @return true if 'expires' was 'from' and is now 'to'. Puts that overwrite the slot and removers of expired
+	 * slots both change 'expires' this way, so only one of them wins
+	 */
+	boolean casExpires(long from, long to) {
+		return EXPIRES.compareAndSet(this, from, to);
+	}
+
+	/**
+	 * @return the String the slot held, replaced with 'to' in one step, so concurrent puts to a STRING slot each
+	 * account for the value they actually replaced
+	 */
+	String swapString(String to) {
+		return STRINGS.getAndSet(this, to);
+	}
+
+
+	static long bits(double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	static long bits(boolean value) {
+		return value ? 1L : 0L;
+	}
+
+
+	int intValue() {
+		return (int) bits;
+	}
+
+	long longValue() {
+		return bits;
+	}
+
+	double doubleValue() {
+		return Double.longBitsToDouble(bits);
+	}
+
+	boolean booleanValue() {
+		return bits != 0L;
+	}
+
+
+	/**
+	 * @return the value as the Object the caller originally set (boxing primitives on the way out)
+	 */
+	Object toObject() {
+		switch (type) {
+		case INT: 		return Integer.valueOf(intValue());
+		case LONG: 		return Long.valueOf(longValue());
+		case DOUBLE: 	return Double.valueOf(doubleValue());
+		case BOOLEAN: 	return Boolean.valueOf(booleanValue());
+		default: 		return string;
+		}
+	}
+
+	public String toString() {
+		return String.valueOf(toObject());
+	}
+
+}
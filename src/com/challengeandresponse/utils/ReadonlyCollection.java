@@ -0,0 +1,130 @@
+package com.challengeandresponse.utils;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Provides a shielded view of a collection allowing read access but no writing.
+ * All methods that would alter the collection are NO-OPs, including remove() on its iterators.
+ * Reads go straight to the wrapped collection, so the view allocates nothing per access and shows later changes to it.
+ * 
+ * @author jim
+ *
+ */
+public class ReadonlyCollection <E> extends Object implements Collection <E> {
+
+	private final Collection <E> collection;
+	
+	public ReadonlyCollection(Collection <E> collection) {
+		this.collection = collection;
+	}
+	
+	/** Does nothing, always returns false  **/
+	public boolean add(E o) {
+		return false;
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean addAll(Collection<? extends E> c) {
+		return false;
+	}
+
+	/** Does nothing **/
+	public void clear() {
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean remove(Object o) {
+		return false;
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean removeAll(Collection<?> c) {
+		return false;
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean removeIf(Predicate<? super E> filter) {
+		return false;
+	}
+
+	/** Does nothing, always returns false */
+	public boolean retainAll(Collection<?> c) {
+		return false;
+	}
+
+	
+	public boolean contains(Object o) {
+		return collection.contains(o);
+	}
+
+	public boolean containsAll(Collection<?> c) {
+		return collection.containsAll(c);
+	}
+
+	public boolean isEmpty() {
+		return collection.isEmpty();
+	}
+
+	public int size() {
+		return collection.size();
+	}
+
+	/**
+	 * @return an iterator over the wrapped collection whose remove() does nothing
+	 */
+	public Iterator <E> iterator() {
+		return new ReadonlyIterator <E> (collection.iterator());
+	}
+
+	public Spliterator <E> spliterator() {
+		return collection.spliterator();
+	}
+
+	public void forEach(Consumer<? super E> action) {
+		collection.forEach(action);
+	}
+
+	public Object[] toArray() {
+		return collection.toArray();
+	}
+
+	public <T> T[] toArray(T[] a) {
+		return collection.toArray(a);
+	}
+
+	public String toString() {
+		return collection.toString();
+	}
+
+	
+
+	/**
+	 * An iterator whose remove() does nothing
+	 */
+	static class ReadonlyIterator <E> implements Iterator <E> {
+		private final Iterator <? extends E> it;
+
+		ReadonlyIterator(Iterator <? extends E> it) {
+			this.it = it;
+		}
+
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		public E next() {
+			return it.next();
+		}
+
+		/** Does nothing */
+		public void remove() {
+		}
+
+		public void forEachRemaining(Consumer<? super E> action) {
+			it.forEachRemaining(action);
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.challengeandresponse.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A read-only list of doubles, kept unboxed in a DoubleBuffer: a wrapped double[] on the heap, or a view of a direct or
+ * memory-mapped ByteBuffer off it. Each element costs 8 bytes instead of a boxed Double and a reference, and scans
+ * read memory in order.
+ * 
+ * getDouble(), copyTo() and doubleStream() never box; the List&lt;Double&gt; methods box on the way out.
+ * All methods that would alter the list are NO-OPs, and the list never writes to its buffer.
+ * The list reads whatever is in the buffer, so a change made to the buffer elsewhere shows through.
+ * 
+ * MT-safety: safe for any number of concurrent readers.
+ * 
+ * @author jim
+ *
+ */
+public class ReadonlyDoubleList extends ReadonlyPrimitiveList <Double,DoubleBuffer> {
+
+	/**
+	 * A list of 'values'. The array is not copied
+	 */
+	public ReadonlyDoubleList(double[] values) {
+		this(DoubleBuffer.wrap(values));
+	}
+
+	/**
+	 * A list of the elements of 'buffer' from its position to its limit. The buffer is not copied, and later changes to
+	 * its position and limit do not affect the list
+	 */
+	public ReadonlyDoubleList(DoubleBuffer buffer) {
+		super(buffer.asReadOnlyBuffer().slice());
+	}
+
+	/**
+	 * A list of the doubles in 'bytes' from its position to its limit, in the byte order of 'bytes'.
+	 * Pass a direct or memory-mapped ByteBuffer to keep the list off the heap
+	 */
+	public static ReadonlyDoubleList of(ByteBuffer bytes) {
+		return new ReadonlyDoubleList(bytes.asDoubleBuffer());
+	}
+
+	/**
+	 * A list of 'n' doubles at 'offset' in 'bytes', in native byte order
+	 */
+	public static ReadonlyDoubleList of(ByteBuffer bytes, int offset, int n) {
+		return new ReadonlyDoubleList(slice(bytes, offset, n, 8).asDoubleBuffer());
+	}
+
+	ReadonlyDoubleList newList(DoubleBuffer b) {
+		return new ReadonlyDoubleList(b);
+	}
+
+	DoubleBuffer duplicate() {
+		return buffer.duplicate();
+	}
+
+
+	/**
+	 * @return the element at 'index', boxed. Prefer getDouble()
+	 */
+	public Double get(int index) {
+		return Double.valueOf(buffer.get(index));
+	}
+
+	/**
+	 * @return the element at 'index'
+	 * @throws IndexOutOfBoundsException if index is not in [0,size)
+	 */
+	public double getDouble(int index) {
+		return buffer.get(index);
+	}
+
+	/**
+	 * Copy 'length' elements, starting at 'fromIndex', into 'dst' at 'offset'
+	 * @throws IndexOutOfBoundsException if either range is out of bounds
+	 */
+	public void copyTo(int fromIndex, double[] dst, int offset, int length) {
+		at(fromIndex, length).get(dst, offset, length);
+	}
+
+	/**
+	 * @return a new array holding every element
+	 */
+	public double[] toDoubleArray() {
+		double[] result = new double[size()];
+		copyTo(0, result, 0, result.length);
+		return result;
+	}
+
+	public ReadonlyDoubleList subList(int fromIndex, int toIndex) {
+		return (ReadonlyDoubleList) super.subList(fromIndex, toIndex);
+	}
+
+	public int indexOf(Object o) {
+		if (o instanceof Double) {
+			double x = ((Double) o).doubleValue();
+			for (int i = 0, n = size(); i < n; i++)
+				if (Double.doubleToLongBits(buffer.get(i)) == Double.doubleToLongBits(x))
+					return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a sequential stream of the elements, unboxed
+	 */
+	public DoubleStream doubleStream() {
+		return StreamSupport.doubleStream(spliterator(), false);
+	}
+
+	public Spliterator.OfDouble spliterator() {
+		return new DoubleSpliterator(buffer, 0, size());
+	}
+
+
+	private static final class DoubleSpliterator extends BufferSpliterator <Double,DoubleConsumer,Spliterator.OfDouble,DoubleBuffer> implements Spliterator.OfDouble {
+		DoubleSpliterator(DoubleBuffer buffer, int origin, int fence) {
+			super(buffer, origin, fence);
+		}
+
+		void accept(DoubleConsumer action, int i) {
+			action.accept(buffer.get(i));
+		}
+
+		Spliterator.OfDouble split(int origin, int fence) {
+			return new DoubleSpliterator(buffer, origin, fence);
+		}
+	}
+
+
+
+	// for testing
+	public static void main(String[] args) {
+		double[] values = new double[100000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i*1.5;
+		ReadonlyDoubleList heap = new ReadonlyDoubleList(values);
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(values.length*8).order(ByteOrder.nativeOrder());
+		direct.asDoubleBuffer().put(values);
+		ReadonlyDoubleList offHeap = ReadonlyDoubleList.of(direct, 0, values.length);
+
+		System.out.println((heap.getDouble(777) == values[777]) && (offHeap.getDouble(777) == values[777]) ? "OK: getDouble on heap and off heap" : "FAIL: getDouble");
+		double[] copy = new double[10];
+		offHeap.copyTo(50, copy, 0, 10);
+		System.out.println((copy[9] == values[59]) && (offHeap.toDoubleArray()[99999] == values[99999]) ? "OK: copyTo" : "FAIL: copyTo");
+		double expected = 0;
+		for (double x : values)
+			expected += x;
+		double sum = offHeap.doubleStream().parallel().sum();
+		System.out.println((sum == expected) ? "OK: parallel sum over the off-heap list" : "FAIL: sum="+sum+" expected "+expected);
+		System.out.println((heap.subList(10, 20).getDouble(0) == values[10]) ? "OK: typed subList" : "FAIL: typed subList");
+		check(heap, offHeap);
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.challengeandresponse.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A read-only list of ints, kept unboxed in a IntBuffer: a wrapped int[] on the heap, or a view of a direct or
+ * memory-mapped ByteBuffer off it. Each element costs 4 bytes instead of a boxed Integer and a reference, and scans
+ * read memory in order.
+ * 
+ * getInt(), copyTo() and intStream() never box; the List&lt;Integer&gt; methods box on the way out.
+ * All methods that would alter the list are NO-OPs, and the list never writes to its buffer.
+ * The list reads whatever is in the buffer, so a change made to the buffer elsewhere shows through.
+ * 
+ * MT-safety: safe for any number of concurrent readers.
+ * 
+ * @author jim
+ *
+ */
+public class ReadonlyIntList extends ReadonlyPrimitiveList <Integer,IntBuffer> {
+
+	/**
+	 * A list of 'values'. The array is not copied
+	 */
+	public ReadonlyIntList(int[] values) {
+		this(IntBuffer.wrap(values));
+	}
+
+	/**
+	 * A list of the elements of 'buffer' from its position to its limit. The buffer is not copied, and later changes to
+	 * its position and limit do not affect the list
+	 */
+	public ReadonlyIntList(IntBuffer buffer) {
+		super(buffer.asReadOnlyBuffer().slice());
+	}
+
+	/**
+	 * A list of the ints in 'bytes' from its position to its limit, in the byte order of 'bytes'.
+	 * Pass a direct or memory-mapped ByteBuffer to keep the list off the heap
+	 */
+	public static ReadonlyIntList of(ByteBuffer bytes) {
+		return new ReadonlyIntList(bytes.asIntBuffer());
+	}
+
+	/**
+	 * A list of 'n' ints at 'offset' in 'bytes', in native byte order
+	 */
+	public static ReadonlyIntList of(ByteBuffer bytes, int offset, int n) {
+		return new ReadonlyIntList(slice(bytes, offset, n, 4).asIntBuffer());
+	}
+
+	ReadonlyIntList newList(IntBuffer b) {
+		return new ReadonlyIntList(b);
+	}
+
+	IntBuffer duplicate() {
+		return buffer.duplicate();
+	}
+
+
+	/**
+	 * @return the element at 'index', boxed. Prefer getInt()
+	 */
+	public Integer get(int index) {
+		return Integer.valueOf(buffer.get(index));
+	}
+
+	/**
+	 * @return the element at 'index'
+	 * @throws IndexOutOfBoundsException if index is not in [0,size)
+	 */
+	public int getInt(int index) {
+		return buffer.get(index);
+	}
+
+	/**
+	 * Copy 'length' elements, starting at 'fromIndex', into 'dst' at 'offset'
+	 * @throws IndexOutOfBoundsException if either range is out of bounds
+	 */
+	public void copyTo(int fromIndex, int[] dst, int offset, int length) {
+		at(fromIndex, length).get(dst, offset, length);
+	}
+
+	/**
+	 * @return a new array holding every element
+	 */
+	public int[] toIntArray() {
+		int[] result = new int[size()];
+		copyTo(0, result, 0, result.length);
+		return result;
+	}
+
+	public ReadonlyIntList subList(int fromIndex, int toIndex) {
+		return (ReadonlyIntList) super.subList(fromIndex, toIndex);
+	}
+
+	public int indexOf(Object o) {
+		if (o instanceof Integer) {
+			int x = ((Integer) o).intValue();
+			for (int i = 0, n = size(); i < n; i++)
+				if (buffer.get(i) == x)
+					return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a sequential stream of the elements, unboxed
+	 */
+	public IntStream intStream() {
+		return StreamSupport.intStream(spliterator(), false);
+	}
+
+	public Spliterator.OfInt spliterator() {
+		return new IntSpliterator(buffer, 0, size());
+	}
+
+
+	private static final class IntSpliterator extends BufferSpliterator <Integer,IntConsumer,Spliterator.OfInt,IntBuffer> implements Spliterator.OfInt {
+		IntSpliterator(IntBuffer buffer, int origin, int fence) {
+			super(buffer, origin, fence);
+		}
+
+		void accept(IntConsumer action, int i) {
+			action.accept(buffer.get(i));
+		}
+
+		Spliterator.OfInt split(int origin, int fence) {
+			return new IntSpliterator(buffer, origin, fence);
+		}
+	}
+
+
+
+	// for testing
+	public static void main(String[] args) {
+		int[] values = new int[100000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i*3;
+		ReadonlyIntList heap = new ReadonlyIntList(values);
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(values.length*4).order(ByteOrder.nativeOrder());
+		direct.asIntBuffer().put(values);
+		ReadonlyIntList offHeap = ReadonlyIntList.of(direct, 0, values.length);
+
+		System.out.println((heap.getInt(777) == values[777]) && (offHeap.getInt(777) == values[777]) ? "OK: getInt on heap and off heap" : "FAIL: getInt");
+		int[] copy = new int[10];
+		offHeap.copyTo(50, copy, 0, 10);
+		System.out.println((copy[9] == values[59]) && (offHeap.toIntArray()[99999] == values[99999]) ? "OK: copyTo" : "FAIL: copyTo");
+		long expected = 0;
+		for (int x : values)
+			expected += (long) x;
+		long sum = offHeap.intStream().parallel().asLongStream().sum();
+		System.out.println((sum == expected) ? "OK: parallel sum over the off-heap list" : "FAIL: sum="+sum+" expected "+expected);
+		System.out.println((heap.subList(10, 20).getInt(0) == values[10]) ? "OK: typed subList" : "FAIL: typed subList");
+		check(heap, offHeap);
+	}
+
+}
@@ -1,12 +1,17 @@
 package com.challengeandresponse.utils;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 /**
  * Provides a shielded view of a list allowing read access but no writing.
- * All methods that would alter the list are NO-OPs.
+ * All methods that would alter the list are NO-OPs, including those of its iterators and subLists.
+ * 
+ * Reads go straight to the wrapped list. Use of() to get a view that is RandomAccess whenever the wrapped list is,
+ * so algorithms that check for RandomAccess (Collections.binarySearch and the like) keep their indexed fast paths.
  * 
- * TODO The returned iterator may allow removal operations on the iterated objects, so it's not completely isolated yet
  * @author jim
  *
  */
@@ -18,6 +23,15 @@ public class ReadonlyList <E> extends Object implements List <E> {
 		this.list = list;
 	}
 	
+	/**
+	 * @return a read-only view of 'list' that implements RandomAccess if 'list' does
+	 */
+	public static <E> ReadonlyList <E> of(List <E> list) {
+		if (list instanceof RandomAccess)
+			return new RandomAccessList <E> (list);
+		return new ReadonlyList <E> (list);
+	}
+	
 	/** Does nothing, always returns false  **/
 	public boolean add(E o) {
 		return false;
@@ -62,20 +76,37 @@ public class ReadonlyList <E> extends Object implements List <E> {
 		return list.isEmpty();
 	}
 
+	/**
+	 * @return an iterator whose remove() does nothing. For a RandomAccess list it reads by index, as fast as the
+	 * list's own iterator, instead of wrapping that iterator
+	 */
 	public Iterator <E> iterator() {
-		return list.iterator();
+		if (list instanceof RandomAccess)
+			return new IndexIterator <E> (list, 0);
+		return new ReadonlyCollection.ReadonlyIterator <E> (list.iterator());
 	}
 
 	public int lastIndexOf(Object o) {
 		return list.lastIndexOf(o);
 	}
 
+	/**
+	 * @return a list iterator whose add(), remove() and set() do nothing
+	 */
 	public ListIterator <E> listIterator() {
-		return list.listIterator();
+		return listIterator(0);
 	}
 
+	/**
+	 * @return a list iterator whose add(), remove() and set() do nothing
+	 */
 	public ListIterator <E> listIterator(int index) {
-		return list.listIterator(index);
+		if (list instanceof RandomAccess) {
+			if ((index < 0) || (index > list.size()))
+				throw new IndexOutOfBoundsException("Index: "+index+", Size: "+list.size());
+			return new IndexIterator <E> (list, index);
+		}
+		return new ReadonlyListIterator <E> (list.listIterator(index));
 	}
 
 	/** Does nothing, always returns false  */
@@ -93,11 +124,24 @@ public class ReadonlyList <E> extends Object implements List <E> {
 		return false;
 	}
 
+	/** Does nothing, always returns false  */
+	public boolean removeIf(Predicate<? super E> filter) {
+		return false;
+	}
+
 	/** Does nothing, always returns false */
 	public boolean retainAll(Collection<?> c) {
 		return false;
 	}
 
+	/** Does nothing */
+	public void replaceAll(UnaryOperator<E> operator) {
+	}
+
+	/** Does nothing */
+	public void sort(Comparator<? super E> c) {
+	}
+
 	/** Does nothing, always returns null */
 	public E set(int index, E element) {
 		return null;
@@ -107,20 +151,234 @@ public class ReadonlyList <E> extends Object implements List <E> {
 		return list.size();
 	}
 
+	/**
+	 * @return a read-only view of part of the list
+	 */
 	public List <E> subList(int fromIndex, int toIndex) {
-		return list.subList(fromIndex, toIndex);
+		return of(list.subList(fromIndex, toIndex));
 	}
 
 	public Object[] toArray() {
-		return null;
+		return list.toArray();
 	}
 
 	public <T> T[] toArray(T[] a) {
-		return null;
+		return list.toArray(a);
+	}
+
+	public void forEach(Consumer<? super E> action) {
+		list.forEach(action);
+	}
+
+	/**
+	 * For a RandomAccess list, a spliterator that reads by index and splits exactly in half, reporting
+	 * SIZED, SUBSIZED and ORDERED, so parallel streams split evenly. It assumes the wrapped list
+	 * does not change while it is in use, but does not report IMMUTABLE, since the list may still change through its owner.
+	 * For any other list, the wrapped list's own spliterator.
+	 */
+	public Spliterator <E> spliterator() {
+		if (list instanceof RandomAccess)
+			return new IndexSpliterator <E> (list, 0, list.size());
+		return list.spliterator();
+	}
+
+	public boolean equals(Object o) {
+		return (o == this) || list.equals(o);
+	}
+
+	public int hashCode() {
+		return list.hashCode();
+	}
+
+	public String toString() {
+		return list.toString();
 	}
 
 	
 
+	/**
+	 * The view of(List) gives out for RandomAccess lists
+	 */
+	public static class RandomAccessList <E> extends ReadonlyList <E> implements RandomAccess {
+		public RandomAccessList(List <E> list) {
+			super(list);
+		}
+	}
+
+
+	/**
+	 * A list iterator whose add(), remove() and set() do nothing
+	 */
+	private static final class ReadonlyListIterator <E> extends ReadonlyCollection.ReadonlyIterator <E> implements ListIterator <E> {
+		private final ListIterator <E> it;
+
+		ReadonlyListIterator(ListIterator <E> it) {
+			super(it);
+			this.it = it;
+		}
+
+		public boolean hasPrevious() {
+			return it.hasPrevious();
+		}
+
+		public E previous() {
+			return it.previous();
+		}
 
+		public int nextIndex() {
+			return it.nextIndex();
+		}
+
+		public int previousIndex() {
+			return it.previousIndex();
+		}
+
+		/** Does nothing */
+		public void set(E e) {
+		}
+
+		/** Does nothing */
+		public void add(E e) {
+		}
+	}
+
+
+	/**
+	 * A list iterator over a RandomAccess list that reads by index, and whose add(), remove() and set() do nothing.
+	 * Like AbstractList's, it reads the list's size afresh on each step
+	 */
+	static final class IndexIterator <E> implements ListIterator <E> {
+		private final List <E> list;
+		private int cursor;
+
+		IndexIterator(List <E> list, int index) {
+			this.list = list;
+			this.cursor = index;
+		}
+
+		public boolean hasNext() {
+			return cursor < list.size();
+		}
+
+		public E next() {
+			int i = cursor;
+			if (i >= list.size())
+				throw new NoSuchElementException();
+			cursor = i+1;
+			return list.get(i);
+		}
+
+		public boolean hasPrevious() {
+			return cursor > 0;
+		}
+
+		public E previous() {
+			int i = cursor-1;
+			if (i < 0)
+				throw new NoSuchElementException();
+			cursor = i;
+			return list.get(i);
+		}
+
+		public int nextIndex() {
+			return cursor;
+		}
+
+		public int previousIndex() {
+			return cursor-1;
+		}
+
+		public void forEachRemaining(Consumer<? super E> action) {
+			List <E> l = list;
+			for (int i = cursor, n = l.size(); i < n; i++)
+				action.accept(l.get(i));
+			cursor = Math.max(cursor, l.size());
+		}
+
+		/** Does nothing */
+		public void remove() {
+		}
+
+		/** Does nothing */
+		public void set(E e) {
+		}
+
+		/** Does nothing */
+		public void add(E e) {
+		}
+	}
+
+
+	/**
+	 * Reads elements [index,fence) of a RandomAccess list by index
+	 */
+	private static final class IndexSpliterator <E> implements Spliterator <E> {
+		private final List <E> list;
+		private int index;
+		private final int fence;
+
+		IndexSpliterator(List <E> list, int origin, int fence) {
+			this.list = list;
+			this.index = origin;
+			this.fence = fence;
+		}
+
+		public boolean tryAdvance(Consumer<? super E> action) {
+			if (index >= fence)
+				return false;
+			action.accept(list.get(index++));
+			return true;
+		}
+
+		public void forEachRemaining(Consumer<? super E> action) {
+			List <E> l = list;
+			for (int i = index, n = fence; i < n; i++)
+				action.accept(l.get(i));
+			index = fence;
+		}
+
+		public Spliterator <E> trySplit() {
+			int mid = (index + fence) >>> 1;
+			if (mid <= index)
+				return null;
+			Spliterator <E> prefix = new IndexSpliterator <E> (list, index, mid);
+			index = mid;
+			return prefix;
+		}
+
+		public long estimateSize() {
+			return fence - index;
+		}
+
+		public int characteristics() {
+			return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED; // not IMMUTABLE: the wrapped list is live
+		}
+	}
+
+
+
+	// for testing
+	public static void main(String[] args) {
+		ArrayList <Integer> backing = new ArrayList <Integer> ();
+		for (int i = 0; i < 100000; i++)
+			backing.add(Integer.valueOf(i));
+		ReadonlyList <Integer> ro = ReadonlyList.of(backing);
+		System.out.println((ro instanceof RandomAccess) ? "OK: RandomAccess propagated" : "FAIL: not RandomAccess");
+		System.out.println((! (ReadonlyList.of(new LinkedList <Integer> (backing)) instanceof RandomAccess)) ? "OK: LinkedList view is not RandomAccess" : "FAIL: LinkedList view claims RandomAccess");
+		System.out.println((ro.toArray().length == 100000) && (ro.toArray(new Integer[0])[99999].intValue() == 99999) ? "OK: toArray copies the list" : "FAIL: toArray");
+		long sum = ro.parallelStream().mapToLong(Integer::longValue).sum();
+		System.out.println((sum == 4999950000L) ? "OK: parallel sum over the spliterator" : "FAIL: parallel sum="+sum);
+		System.out.println(ro.spliterator().hasCharacteristics(Spliterator.SUBSIZED) && (! ro.spliterator().hasCharacteristics(Spliterator.IMMUTABLE)) ? "OK: spliterator is SUBSIZED and not IMMUTABLE" : "FAIL: spliterator characteristics "+ro.spliterator().characteristics());
+		System.out.println((Collections.binarySearch(ro, Integer.valueOf(77777)) == 77777) ? "OK: binarySearch" : "FAIL: binarySearch");
+		System.out.println(ro.equals(backing) && (ro.hashCode() == backing.hashCode()) ? "OK: equals and hashCode follow the list" : "FAIL: equals or hashCode");
+		int n = 0;
+		for (Iterator <Integer> it = ro.iterator(); it.hasNext() && (n <= 100000); n++) {
+			it.next();
+			it.remove();
+		}
+		System.out.println((n == 100000) && (backing.size() == 100000) ? "OK: iterator remove() does nothing and iteration ends" : "FAIL: iterated "+n);
+		ListIterator <Integer> li = ro.listIterator(100000);
+		System.out.println(li.hasPrevious() && (li.previous().intValue() == 99999) && (li.nextIndex() == 99999) ? "OK: listIterator from the end" : "FAIL: listIterator");
+	}
 
 }
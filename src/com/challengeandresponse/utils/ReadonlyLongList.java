@@ -0,0 +1,164 @@
+package com.challengeandresponse.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A read-only list of longs, kept unboxed in a LongBuffer: a wrapped long[] on the heap, or a view of a direct or
+ * memory-mapped ByteBuffer off it. Each element costs 8 bytes instead of a boxed Long and a reference, and scans
+ * read memory in order.
+ * 
+ * getLong(), copyTo() and longStream() never box; the List&lt;Long&gt; methods box on the way out.
+ * All methods that would alter the list are NO-OPs, and the list never writes to its buffer.
+ * The list reads whatever is in the buffer, so a change made to the buffer elsewhere shows through.
+ * 
+ * MT-safety: safe for any number of concurrent readers.
+ * 
+ * @author jim
+ *
+ */
+public class ReadonlyLongList extends ReadonlyPrimitiveList <Long,LongBuffer> {
+
+	/**
+	 * A list of 'values'. The array is not copied
+	 */
+	public ReadonlyLongList(long[] values) {
+		this(LongBuffer.wrap(values));
+	}
+
+	/**
+	 * A list of the elements of 'buffer' from its position to its limit. The buffer is not copied, and later changes to
+	 * its position and limit do not affect the list
+	 */
+	public ReadonlyLongList(LongBuffer buffer) {
+		super(buffer.asReadOnlyBuffer().slice());
+	}
+
+	/**
+	 * A list of the longs in 'bytes' from its position to its limit, in the byte order of 'bytes'.
+	 * Pass a direct or memory-mapped ByteBuffer to keep the list off the heap
+	 */
+	public static ReadonlyLongList of(ByteBuffer bytes) {
+		return new ReadonlyLongList(bytes.asLongBuffer());
+	}
+
+	/**
+	 * A list of 'n' longs at 'offset' in 'bytes', in native byte order
+	 */
+	public static ReadonlyLongList of(ByteBuffer bytes, int offset, int n) {
+		return new ReadonlyLongList(slice(bytes, offset, n, 8).asLongBuffer());
+	}
+
+	ReadonlyLongList newList(LongBuffer b) {
+		return new ReadonlyLongList(b);
+	}
+
+	LongBuffer duplicate() {
+		return buffer.duplicate();
+	}
+
+
+	/**
+	 * @return the element at 'index', boxed. Prefer getLong()
+	 */
+	public Long get(int index) {
+		return Long.valueOf(buffer.get(index));
+	}
+
+	/**
+	 * @return the element at 'index'
+	 * @throws IndexOutOfBoundsException if index is not in [0,size)
+	 */
+	public long getLong(int index) {
+		return buffer.get(index);
+	}
+
+	/**
+	 * Copy 'length' elements, starting at 'fromIndex', into 'dst' at 'offset'
+	 * @throws IndexOutOfBoundsException if either range is out of bounds
+	 */
+	public void copyTo(int fromIndex, long[] dst, int offset, int length) {
+		at(fromIndex, length).get(dst, offset, length);
+	}
+
+	/**
+	 * @return a new array holding every element
+	 */
+	public long[] toLongArray() {
+		long[] result = new long[size()];
+		copyTo(0, result, 0, result.length);
+		return result;
+	}
+
+	public ReadonlyLongList subList(int fromIndex, int toIndex) {
+		return (ReadonlyLongList) super.subList(fromIndex, toIndex);
+	}
+
+	public int indexOf(Object o) {
+		if (o instanceof Long) {
+			long x = ((Long) o).longValue();
+			for (int i = 0, n = size(); i < n; i++)
+				if (buffer.get(i) == x)
+					return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a sequential stream of the elements, unboxed
+	 */
+	public LongStream longStream() {
+		return StreamSupport.longStream(spliterator(), false);
+	}
+
+	public Spliterator.OfLong spliterator() {
+		return new LongSpliterator(buffer, 0, size());
+	}
+
+
+	private static final class LongSpliterator extends BufferSpliterator <Long,LongConsumer,Spliterator.OfLong,LongBuffer> implements Spliterator.OfLong {
+		LongSpliterator(LongBuffer buffer, int origin, int fence) {
+			super(buffer, origin, fence);
+		}
+
+		void accept(LongConsumer action, int i) {
+			action.accept(buffer.get(i));
+		}
+
+		Spliterator.OfLong split(int origin, int fence) {
+			return new LongSpliterator(buffer, origin, fence);
+		}
+	}
+
+
+
+	// for testing
+	public static void main(String[] args) {
+		long[] values = new long[100000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (long) i*3;
+		ReadonlyLongList heap = new ReadonlyLongList(values);
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(values.length*8).order(ByteOrder.nativeOrder());
+		direct.asLongBuffer().put(values);
+		ReadonlyLongList offHeap = ReadonlyLongList.of(direct, 0, values.length);
+
+		System.out.println((heap.getLong(777) == values[777]) && (offHeap.getLong(777) == values[777]) ? "OK: getLong on heap and off heap" : "FAIL: getLong");
+		long[] copy = new long[10];
+		offHeap.copyTo(50, copy, 0, 10);
+		System.out.println((copy[9] == values[59]) && (offHeap.toLongArray()[99999] == values[99999]) ? "OK: copyTo" : "FAIL: copyTo");
+		long expected = 0;
+		for (long x : values)
+			expected += x;
+		long sum = offHeap.longStream().parallel().sum();
+		System.out.println((sum == expected) ? "OK: parallel sum over the off-heap list" : "FAIL: sum="+sum+" expected "+expected);
+		System.out.println((heap.subList(10, 20).getLong(0) == values[10]) ? "OK: typed subList" : "FAIL: typed subList");
+		check(heap, offHeap);
+	}
+
+}
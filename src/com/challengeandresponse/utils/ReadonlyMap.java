@@ -0,0 +1,336 @@
+package com.challengeandresponse.utils;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Provides a shielded view of a map allowing read access but no writing.
+ * All methods that would alter the map are NO-OPs, including those of its key, value and entry views,
+ * their iterators, and setValue() on its entries.
+ * 
+ * Reads go straight to the wrapped map and allocate nothing. The key, value and entry views are made once and kept.
+ * Iterating the entries wraps each entry as it is handed out, since the wrapped map's own entries could change it.
+ * 
+ * @author jim
+ *
+ */
+public class ReadonlyMap <K,V> extends Object implements Map <K,V> {
+
+	private final Map <K,V> map;
+	private transient ReadonlySet <K> keySet;
+	private transient ReadonlyCollection <V> values;
+	private transient EntrySet <K,V> entrySet;
+	
+	public ReadonlyMap(Map <K,V> map) {
+		this.map = map;
+	}
+
+	
+	/** Does nothing, always returns null  **/
+	public V put(K key, V value) {
+		return null;
+	}
+
+	/** Does nothing **/
+	public void putAll(Map<? extends K, ? extends V> m) {
+	}
+
+	/** Does nothing, always returns null  **/
+	public V remove(Object key) {
+		return null;
+	}
+
+	/** Does nothing **/
+	public void clear() {
+	}
+
+	/** Does nothing, always returns null  **/
+	public V putIfAbsent(K key, V value) {
+		return null;
+	}
+
+	/** Does nothing, always returns false  **/
+	public boolean remove(Object key, Object value) {
+		return false;
+	}
+
+	/** Does nothing, always returns false  **/
+	public boolean replace(K key, V oldValue, V newValue) {
+		return false;
+	}
+
+	/** Does nothing, always returns null  **/
+	public V replace(K key, V value) {
+		return null;
+	}
+
+	/** Does nothing **/
+	public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+	}
+
+	/** Does nothing, always returns null  **/
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+		return null;
+	}
+
+	/** Does nothing, always returns null  **/
+	public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return null;
+	}
+
+	/** Does nothing, always returns null  **/
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return null;
+	}
+
+	/** Does nothing, always returns null  **/
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		return null;
+	}
+
+	
+	public boolean containsKey(Object key) {
+		return map.containsKey(key);
+	}
+
+	public boolean containsValue(Object value) {
+		return map.containsValue(value);
+	}
+
+	public V get(Object key) {
+		return map.get(key);
+	}
+
+	public V getOrDefault(Object key, V defaultValue) {
+		return map.getOrDefault(key, defaultValue);
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public void forEach(BiConsumer<? super K, ? super V> action) {
+		map.forEach(action);
+	}
+
+	public Set <K> keySet() {
+		if (keySet == null)
+			keySet = new ReadonlySet <K> (map.keySet());
+		return keySet;
+	}
+
+	public Collection <V> values() {
+		if (values == null)
+			values = new ReadonlyCollection <V> (map.values());
+		return values;
+	}
+
+	public Set <Map.Entry<K,V>> entrySet() {
+		if (entrySet == null)
+			entrySet = new EntrySet <K,V> (map.entrySet());
+		return entrySet;
+	}
+
+	public boolean equals(Object o) {
+		return (o == this) || map.equals(o);
+	}
+
+	public int hashCode() {
+		return map.hashCode();
+	}
+
+	public String toString() {
+		return map.toString();
+	}
+
+
+
+	/**
+	 * An entry whose setValue() does nothing
+	 */
+	static final class ReadonlyEntry <K,V> implements Map.Entry <K,V> {
+		private final Map.Entry <K,V> entry;
+
+		ReadonlyEntry(Map.Entry <K,V> entry) {
+			this.entry = entry;
+		}
+
+		public K getKey() {
+			return entry.getKey();
+		}
+
+		public V getValue() {
+			return entry.getValue();
+		}
+
+		/** Does nothing, always returns null  **/
+		public V setValue(V value) {
+			return null;
+		}
+
+		public boolean equals(Object o) {
+			return (o == this) || entry.equals(o);
+		}
+
+		public int hashCode() {
+			return entry.hashCode();
+		}
+
+		public String toString() {
+			return entry.toString();
+		}
+	}
+
+
+	/**
+	 * The entry set, handing out every entry wrapped in a ReadonlyEntry
+	 */
+	static final class EntrySet <K,V> extends ReadonlySet <Map.Entry<K,V>> {
+		private final Set <Map.Entry<K,V>> entries;
+
+		EntrySet(Set <Map.Entry<K,V>> entries) {
+			super(entries);
+			this.entries = entries;
+		}
+
+		public Iterator <Map.Entry<K,V>> iterator() {
+			final Iterator <Map.Entry<K,V>> it = entries.iterator();
+			return new ReadonlyCollection.ReadonlyIterator <Map.Entry<K,V>> (it) {
+				public Map.Entry <K,V> next() {
+					return new ReadonlyEntry <K,V> (it.next());
+				}
+				public void forEachRemaining(Consumer<? super Map.Entry<K,V>> action) {
+					while (it.hasNext())
+						action.accept(new ReadonlyEntry <K,V> (it.next()));
+				}
+			};
+		}
+
+		public Spliterator <Map.Entry<K,V>> spliterator() {
+			return new EntrySpliterator <K,V> (entries.spliterator());
+		}
+
+		public void forEach(Consumer<? super Map.Entry<K,V>> action) {
+			for (Map.Entry <K,V> e : entries)
+				action.accept(new ReadonlyEntry <K,V> (e));
+		}
+
+		public Object[] toArray() {
+			Object[] result = entries.toArray();
+			for (int i = 0; i < result.length; i++)
+				result[i] = new ReadonlyEntry <Object,Object> (cast(result[i]));
+			return result;
+		}
+
+		public <T> T[] toArray(T[] a) {
+			T[] result = entries.toArray(a);
+			for (int i = 0; (i < result.length) && (result[i] != null); i++) {
+				@SuppressWarnings("unchecked")
+				T wrapped = (T) new ReadonlyEntry <Object,Object> (cast(result[i]));
+				result[i] = wrapped;
+			}
+			return result;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Map.Entry <Object,Object> cast(Object o) {
+			return (Map.Entry <Object,Object>) o;
+		}
+	}
+
+
+
+	/**
+	 * Wraps the entry set's own spliterator, so it splits as well as the wrapped map's does
+	 */
+	private static final class EntrySpliterator <K,V> implements Spliterator <Map.Entry<K,V>> {
+		private final Spliterator <Map.Entry<K,V>> source;
+
+		EntrySpliterator(Spliterator <Map.Entry<K,V>> source) {
+			this.source = source;
+		}
+
+		public boolean tryAdvance(final Consumer<? super Map.Entry<K,V>> action) {
+			return source.tryAdvance(new Consumer <Map.Entry<K,V>> () {
+				public void accept(Map.Entry <K,V> e) {
+					action.accept(new ReadonlyEntry <K,V> (e));
+				}
+			});
+		}
+
+		public void forEachRemaining(final Consumer<? super Map.Entry<K,V>> action) {
+			source.forEachRemaining(new Consumer <Map.Entry<K,V>> () {
+				public void accept(Map.Entry <K,V> e) {
+					action.accept(new ReadonlyEntry <K,V> (e));
+				}
+			});
+		}
+
+		public Spliterator <Map.Entry<K,V>> trySplit() {
+			Spliterator <Map.Entry<K,V>> prefix = source.trySplit();
+			return (prefix == null) ? null : new EntrySpliterator <K,V> (prefix);
+		}
+
+		public long estimateSize() {
+			return source.estimateSize();
+		}
+
+		public int characteristics() {
+			return source.characteristics() & ~(Spliterator.SORTED); // a SORTED source would need its comparator to compare the wrappers
+		}
+	}
+
+
+
+	// for testing
+	public static void main(String[] args) {
+		HashMap <String,Integer> backing = new HashMap <String,Integer> ();
+		backing.put("a", Integer.valueOf(1));
+		backing.put("b", Integer.valueOf(2));
+		ReadonlyMap <String,Integer> ro = new ReadonlyMap <String,Integer> (backing);
+
+		ro.put("c", Integer.valueOf(3));
+		ro.remove("a");
+		ro.computeIfAbsent("d", new Function <String,Integer> () {
+			public Integer apply(String k) {
+				return Integer.valueOf(4);
+			}
+		});
+		ro.keySet().remove("a");
+		ro.values().clear();
+		Iterator <String> keys = ro.keySet().iterator();
+		keys.next();
+		keys.remove();
+		for (Map.Entry <String,Integer> e : ro.entrySet())
+			e.setValue(Integer.valueOf(99));
+		for (Object e : ro.entrySet().toArray())
+			((ReadonlyEntry <?,?>) e).setValue(null);
+		System.out.println(backing.equals(new HashMap <String,Integer> (ro)) && (backing.size() == 2) && (backing.get("a").intValue() == 1) ? "OK: no change got through the map or its views" : "FAIL: backing map changed to "+backing);
+		System.out.println((ro.keySet() == ro.keySet()) ? "OK: views are made once" : "FAIL: a new key set per call");
+		backing.put("z", Integer.valueOf(26));
+		System.out.println(ro.containsKey("z") ? "OK: later changes to the backing map show through" : "FAIL: view is a copy");
+
+		ArrayList <String> list = new ArrayList <String> (Arrays.asList("x","y","z"));
+		ReadonlyList <String> rl = ReadonlyList.of(list);
+		Iterator <String> li = rl.iterator();
+		li.next();
+		li.remove();
+		rl.listIterator().add("w");
+		rl.subList(0, 2).clear();
+		rl.removeIf(new java.util.function.Predicate <String> () {
+			public boolean test(String s) {
+				return true;
+			}
+		});
+		rl.sort(null);
+		System.out.println(list.equals(Arrays.asList("x","y","z")) ? "OK: no change got through the list's iterators or subList" : "FAIL: backing list changed to "+list);
+	}
+
+}
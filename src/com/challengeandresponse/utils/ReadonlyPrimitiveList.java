@@ -0,0 +1,244 @@
+package com.challengeandresponse.utils;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * The common base of ReadonlyIntList, ReadonlyLongList and ReadonlyDoubleList: an indexed list that cannot be changed,
+ * read from a typed Buffer. This holds the buffer, the bounds checks, subList(), the iterators and the spliterator;
+ * the subclasses add only the typed accessors.
+ * As with ReadonlyList, all methods that would alter the list are NO-OPs.
+ * 
+ * @author jim
+ *
+ */
+abstract class ReadonlyPrimitiveList <E, B extends Buffer> extends AbstractList <E> implements RandomAccess {
+
+	/** a read-only slice, read only by absolute index, so concurrent readers never disturb each other */
+	final B buffer;
+
+	/**
+	 * @param buffer a read-only slice holding exactly the elements of the list
+	 */
+	ReadonlyPrimitiveList(B buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @return a list of the same type over 'b'
+	 */
+	abstract ReadonlyPrimitiveList <E,B> newList(B b);
+
+	/**
+	 * @return a duplicate of the buffer. Buffer.duplicate() itself is only in Java 9 and later, so each subclass calls its typed buffer's
+	 */
+	abstract B duplicate();
+
+
+	public int size() {
+		return buffer.limit();
+	}
+
+	/**
+	 * @return a duplicate of the buffer positioned at 'fromIndex', for reading 'length' elements from
+	 * @throws IndexOutOfBoundsException if the range is not within the list
+	 */
+	B at(int fromIndex, int length) {
+		checkRange(fromIndex, fromIndex+length, size());
+		B b = duplicate();
+		b.position(fromIndex);
+		return b;
+	}
+
+	/**
+	 * @return a view of elements [fromIndex,toIndex), sharing this list's buffer
+	 */
+	public ReadonlyPrimitiveList <E,B> subList(int fromIndex, int toIndex) {
+		B b = at(fromIndex, toIndex-fromIndex);
+		b.limit(toIndex);
+		return newList(b);
+	}
+
+	/**
+	 * @return the 'n' elements of 'width' bytes at 'offset' in 'bytes', as a native-order slice
+	 */
+	static ByteBuffer slice(ByteBuffer bytes, int offset, int n, int width) {
+		ByteBuffer b = bytes.duplicate();
+		b.position(offset);
+		b.limit(offset + n*width);
+		return b.slice().order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * @return an iterator that reads by index, and whose remove() does nothing
+	 */
+	public Iterator <E> iterator() {
+		return new ReadonlyList.IndexIterator <E> (this, 0);
+	}
+
+	/**
+	 * @return a list iterator that reads by index, and whose add(), remove() and set() do nothing
+	 */
+	public ListIterator <E> listIterator(int index) {
+		checkRange(index, index, size());
+		return new ReadonlyList.IndexIterator <E> (this, index);
+	}
+
+	/** Does nothing, always returns false  **/
+	public boolean add(E o) {
+		return false;
+	}
+
+	/** Does nothing */
+	public void add(int index, E element) {
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean addAll(Collection<? extends E> c) {
+		return false;
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean addAll(int index, Collection<? extends E> c) {
+		return false;
+	}
+
+	/** Does nothing **/
+	public void clear() {
+	}
+
+	/** Does nothing **/
+	protected void removeRange(int fromIndex, int toIndex) {
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean remove(Object o) {
+		return false;
+	}
+
+	/** Does nothing, always returns null  */
+	public E remove(int index) {
+		return null;
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean removeAll(Collection<?> c) {
+		return false;
+	}
+
+	/** Does nothing, always returns false  */
+	public boolean removeIf(Predicate<? super E> filter) {
+		return false;
+	}
+
+	/** Does nothing, always returns false */
+	public boolean retainAll(Collection<?> c) {
+		return false;
+	}
+
+	/** Does nothing */
+	public void replaceAll(UnaryOperator<E> operator) {
+	}
+
+	/** Does nothing */
+	public void sort(Comparator<? super E> c) {
+	}
+
+	/** Does nothing, always returns null */
+	public E set(int index, E element) {
+		return null;
+	}
+
+	/**
+	 * @throws IndexOutOfBoundsException if the range is not within [0,size]
+	 */
+	static void checkRange(int fromIndex, int toIndex, int size) {
+		if ((fromIndex < 0) || (toIndex > size) || (fromIndex > toIndex))
+			throw new IndexOutOfBoundsException("range ["+fromIndex+","+toIndex+") of a list of size "+size);
+	}
+
+
+	/**
+	 * Reads elements [index,fence) of a buffer by index and splits exactly in half, so parallel streams split evenly.
+	 * Subclasses pass one element to the typed consumer, and make the split-off prefix
+	 */
+	abstract static class BufferSpliterator <T, C, S extends Spliterator.OfPrimitive<T,C,S>, B extends Buffer>
+	implements Spliterator.OfPrimitive <T,C,S> {
+		final B buffer;
+		private int index;
+		private final int fence;
+
+		BufferSpliterator(B buffer, int origin, int fence) {
+			this.buffer = buffer;
+			this.index = origin;
+			this.fence = fence;
+		}
+
+		/** pass element 'i' of the buffer to 'action' */
+		abstract void accept(C action, int i);
+
+		/** @return a spliterator over [origin,fence) of the same buffer */
+		abstract S split(int origin, int fence);
+
+		public boolean tryAdvance(C action) {
+			if (index >= fence)
+				return false;
+			accept(action, index++);
+			return true;
+		}
+
+		public void forEachRemaining(C action) {
+			for (int i = index, n = fence; i < n; i++)
+				accept(action, i);
+			index = fence;
+		}
+
+		public S trySplit() {
+			int mid = (index + fence) >>> 1;
+			if (mid <= index)
+				return null;
+			S prefix = split(index, mid);
+			index = mid;
+			return prefix;
+		}
+
+		public long estimateSize() {
+			return fence - index;
+		}
+
+		public int characteristics() {
+			return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED | Spliterator.NONNULL; // not IMMUTABLE: the buffer may be written through another view
+		}
+	}
+
+
+	/**
+	 * The checks every subclass's main() shares: 'heap' and 'offHeap' hold the same elements, at least 200 of them. For testing
+	 */
+	static void check(ReadonlyPrimitiveList <?,?> heap, ReadonlyPrimitiveList <?,?> offHeap) {
+		int size = heap.size();
+		System.out.println(heap.equals(offHeap) ? "OK: heap and off-heap lists are equal" : "FAIL: heap and off-heap lists differ");
+		System.out.println((offHeap.parallelStream().count() == size) && offHeap.spliterator().hasCharacteristics(Spliterator.SUBSIZED)
+				&& (! offHeap.spliterator().hasCharacteristics(Spliterator.IMMUTABLE))
+				? "OK: parallel stream over the off-heap list" : "FAIL: parallel stream");
+		List <?> sub = heap.subList(10, 20);
+		System.out.println((sub.size() == 10) && sub.get(0).equals(heap.get(10)) && sub.equals(offHeap.subList(10, 20)) ? "OK: subList shares the buffer" : "FAIL: subList");
+		System.out.println((heap.indexOf(heap.get(123)) == 123) && heap.contains(offHeap.get(199)) ? "OK: indexOf" : "FAIL: indexOf");
+		heap.clear();
+		heap.remove(0);
+		System.out.println((heap.size() == size) ? "OK: mutators do nothing" : "FAIL: list changed");
+		int n = 0;
+		for (Iterator <?> it = heap.iterator(); it.hasNext() && (n <= size); n++) {
+			it.next();
+			it.remove();
+		}
+		System.out.println((n == size) ? "OK: iterator remove() does nothing and iteration ends" : "FAIL: iterated "+n);
+		ListIterator <?> li = offHeap.listIterator(size);
+		System.out.println(li.hasPrevious() && li.previous().equals(heap.get(size-1)) ? "OK: listIterator from the end" : "FAIL: listIterator");
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.challengeandresponse.utils;
+
+import java.util.*;
+
+/**
+ * Provides a shielded view of a set allowing read access but no writing.
+ * All methods that would alter the set are NO-OPs, including remove() on its iterators.
+ * Reads go straight to the wrapped set, so the view allocates nothing per access and shows later changes to it.
+ * 
+ * @author jim
+ *
+ */
+public class ReadonlySet <E> extends ReadonlyCollection <E> implements Set <E> {
+
+	private final Set <E> set;
+	
+	public ReadonlySet(Set <E> set) {
+		super(set);
+		this.set = set;
+	}
+
+	public boolean equals(Object o) {
+		return (o == this) || set.equals(o);
+	}
+
+	public int hashCode() {
+		return set.hashCode();
+	}
+
+}
@@ -1,15 +1,19 @@
 package com.challengeandresponse.utils;
 
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.util.IdentityHashMap;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.WeakHashMap;
 
 //----------------------------------------------------------------------------
 /**
@@ -30,6 +34,11 @@ import java.util.Set;
  * implementation is not industrial strength and is provided for demo purposes.
  * <P>
  * 
+ * Classes marked {@link DeepCopyable} are copied by the {@link DeepCopier}
+ * that DeepCopyProcessor generated for them at compile time, without reflection,
+ * so they need none of the above and may have final fields.
+ * <P>
+ * 
  * MT-safety: this class is safe for use from mutliple concurrent threads.
  * 
  * @author (C) <a href="mailto:vroubtsov@illinoisalumni.org">Vlad Roubtsov</a>, 2002
@@ -47,46 +56,58 @@ public abstract class ReflectiveClone
 	 */
 	public static Object clone (final Object obj)
 	{
-		return clone (obj, new IdentityHashMap (), new HashMap ());
+		return cloneObject (obj, new IdentityHashMap <Object,Object> ());
 	}
 
-
-	private ReflectiveClone () {} // prevent subclassing
-
-
-	/*
-	 * Internal class used to cache class metadata information.
+	/**
+	 * Deep-clones 'obj' as one step of a larger copy. This is the hook
+	 * generated DeepCopiers copy their fields through.
+	 * 
+	 * @param obj input object to clone [may be null]
+	 * @param copies maps each source object already cloned in this traversal
+	 * to its clone [must compare keys by identity]; 'obj' and everything cloned
+	 * under it are added, so shared and cyclic references stay so in the copy
+	 * @return obj's deep clone [null if 'obj' is null]
+	 * 
+	 * @throws RuntimeException on any failure
 	 */
-	private static final class ClassMetadata
+	public static Object clone (final Object obj, final Map <Object,Object> copies)
 	{
-		Constructor m_noargConstructor; // cached no-arg constructor
-		Field [] m_declaredFields; // cached declared fields
-		boolean m_noargConstructorAccessible;
-		boolean m_fieldsAccessible;
+		if (obj == null) return null;
+		return cloneObject (obj, copies);
+	}
 
-	} // end of nested class
+
+	private ReflectiveClone () {} // prevent subclassing
 
 
 	/**
 	 * The workhorse behind clone(Object). This method is mutually recursive
-	 * with {@link #setFields(Object, Object, Field[], boolean, Map, Map)}.
+	 * with {@link #setFields(Object, Object, List, Map)}. Class metadata
+	 * comes from {@link ObjectUtils#typeInfo(Class)}, worked out once per class.
 	 * 
 	 * @param obj current source object being cloned
 	 * @param objMap maps a source object to its clone in the current traversal
-	 * @param metadataMap maps a Class object to its ClassMetadata.
 	 */
-	private static Object clone (final Object obj,
-			final Map <Object,Object> objMap, final Map metadataMap)
+	private static Object cloneObject (final Object obj,
+			final Map <Object,Object> objMap)
 	{
 		if (DEBUG) System.out.println ("traversing src obj [" + obj + "]");
 
 		// return 'obj' clone if it has been instantiated already:
-		if (objMap.containsKey (obj)) return objMap.get (obj);
+		if (objMap.containsKey (obj))
+		{
+			final Object done = objMap.get (obj);
+			if (done == DeepCopier.PENDING)
+				throw new RuntimeException ("cannot clone class [" + obj.getClass ().getName () + "]: it refers back to itself through a field its constructor must be given");
+			return done;
+		}
 
-		final Class objClass = obj.getClass ();
+		final Class <?> objClass = obj.getClass ();
+		final ObjectUtils.TypeInfo info = ObjectUtils.typeInfo (objClass);
 		final Object result;
 
-		if (objClass.isArray ())
+		if (info.getCloneKind () == ObjectUtils.TypeInfo.CloneKind.ARRAY)
 		{           
 			final int arrayLength = Array.getLength (obj);
 
@@ -97,7 +118,7 @@ public abstract class ReflectiveClone
 			}
 			else
 			{                      
-				final Class componentType = objClass.getComponentType ();
+				final Class <?> componentType = objClass.getComponentType ();
 
 				// even though arrays implicitly have a public clone(), it
 				// cannot be invoked reflectively, so need to do copy construction:
@@ -105,7 +126,7 @@ public abstract class ReflectiveClone
 				result = Array.newInstance (componentType, arrayLength);
 				objMap.put (obj, result);
 
-				if (componentType.isPrimitive () || FINAL_IMMUTABLE_CLASSES.contains (componentType))
+				if (componentType.isPrimitive () || ObjectUtils.typeInfo (componentType).getCloneKind () == ObjectUtils.TypeInfo.CloneKind.IMMUTABLE)
 				{
 					System.arraycopy (obj, 0, result, 0, arrayLength);
 				}
@@ -117,7 +138,7 @@ public abstract class ReflectiveClone
 							final Object slot = Array.get (obj, i);
 					if (slot != null)
 					{
-						final Object slotClone = clone (slot, objMap, metadataMap);
+						final Object slotClone = cloneObject (slot, objMap);
 						Array.set (result, i, slotClone);
 					}
 					}
@@ -126,50 +147,31 @@ public abstract class ReflectiveClone
 				return result;
 			}
 		}
-		else if (FINAL_IMMUTABLE_CLASSES.contains (objClass))
+		else if (info.getCloneKind () == ObjectUtils.TypeInfo.CloneKind.IMMUTABLE)
 		{
 			objMap.put (obj, obj);
 			return obj;
 		}
 
-		// fall through to reflectively populating an instance created
-		// with a noarg constructor:
-
-		ClassMetadata metadata = (ClassMetadata) metadataMap.get (objClass); 
-		if (metadata == null)
+		// a copier generated at compile time beats reflection:
+		if (info.getCloneKind () == ObjectUtils.TypeInfo.CloneKind.GENERATED)
 		{
-			metadata = new ClassMetadata ();
-			metadataMap.put (objClass, metadata);
+			final DeepCopier <?> copier = COPIERS.get (objClass);
+			if (copier != null)
+			{
+				return copy (copier, obj, objMap);
+			}
 		}
 
+		// fall through to reflectively populating an instance created
+		// with a noarg constructor:
+
 		{ // clone = objClass.newInstance () can't handle private constructors
 
-			Constructor noarg = metadata.m_noargConstructor;
+			final Constructor <?> noarg = info.getNoargConstructor ();
 			if (noarg == null)
 			{
-				try
-				{
-					noarg = objClass.getDeclaredConstructor (EMPTY_CLASS_ARRAY);
-					metadata.m_noargConstructor = noarg;
-				}
-				catch (Exception e)
-				{
-					throw new RuntimeException ("class [" + objClass.getName () + "] has no noarg constructor: " + e.toString ());
-				}
-			}
-
-			if (! metadata.m_noargConstructorAccessible && (Modifier.PUBLIC & noarg.getModifiers ()) == 0)
-			{
-				try
-				{
-					noarg.setAccessible (true);
-				}
-				catch (SecurityException e)
-				{
-					throw new RuntimeException ("cannot access noarg constructor [" + noarg + "] of class [" + objClass.getName () + "]: " + e.toString ());
-				}
-
-				metadata.m_noargConstructorAccessible = true;
+				throw new RuntimeException ("class [" + objClass.getName () + "] has no accessible noarg constructor");
 			}
 
 			try // to create a clone via the no-arg constructor
@@ -183,72 +185,40 @@ public abstract class ReflectiveClone
 			}
 		}        
 
-		for (Class c = objClass; c != Object.class; c = c.getSuperclass ())
+		if (! info.isOpen ())
 		{
-			metadata = (ClassMetadata) metadataMap.get (c); 
-			if (metadata == null)
-			{
-				metadata = new ClassMetadata ();
-				metadataMap.put (c, metadata);
-			}
-
-			Field [] declaredFields = metadata.m_declaredFields;
-			if (declaredFields == null)
-			{
-				declaredFields = c.getDeclaredFields ();
-				metadata.m_declaredFields = declaredFields;
-			}
-
-			setFields (obj, result, declaredFields, metadata.m_fieldsAccessible, objMap, metadataMap);
-			metadata.m_fieldsAccessible = true;
+			throw new RuntimeException ("cannot access the fields of class [" + objClass.getName () + "]");
 		}
+		setFields (obj, result, info.getFields (), objMap);
 
 		return result;
 	}    
 
 
 	/**
-	 * This method sets clones all declared 'fields' from 'src' to 'dest' and
-	 * updates the object and metadata maps accordingly.
+	 * This method sets clones all instance 'fields' from 'src' to 'dest' and
+	 * updates the object map accordingly.
 	 * 
 	 * @param src source object
 	 * @param dest src's clone [not fully populated yet]
-	 * @param fields fields to be populated
-	 * @param accessible 'true' if all 'fields' have been made accessible during
-	 * this traversal
+	 * @param fields fields to be populated [already made accessible]
 	 */
 	private static void setFields (final Object src, final Object dest,
-			final Field [] fields, final boolean accessible,
-			final Map objMap, final Map metadataMap)
+			final List <Field> fields, final Map <Object,Object> objMap)
 	{
-		for (int f = 0, fieldsLength = fields.length; f < fieldsLength; ++ f)
+		for (int f = 0, fieldsLength = fields.size (); f < fieldsLength; ++ f)
 		{            
-			final Field field = fields [f];
+			final Field field = fields.get (f);
 			final int modifiers = field.getModifiers ();
 
 			if (DEBUG) System.out.println ("dest object [" + dest + "]: field #" + f+ ", [" + field + "]");
 
-			if ((Modifier.STATIC & modifiers) != 0) continue;
-
 			// can also skip transient fields here if you want reflective cloning
 			// to be more like serialization
 
 			if ((Modifier.FINAL & modifiers) != 0)
 				throw new RuntimeException ("cannot set final field [" + field.getName () + "] of class [" + src.getClass ().getName () + "]");
 
-			if (! accessible && ((Modifier.PUBLIC & modifiers) == 0))
-			{
-				try
-				{
-					field.setAccessible (true);
-				}
-				catch (SecurityException e)
-				{
-					throw new RuntimeException ("cannot access field [" + field.getName () + "] of class [" + src.getClass ().getName () + "]: " + e.toString ());
-				}
-			}
-
-
 			try // to clone and set the field value: 
 			{
 				Object value = field.get (src);
@@ -260,14 +230,12 @@ public abstract class ReflectiveClone
 				}
 				else
 				{
-					final Class valueType = value.getClass ();
-
-					if (! valueType.isPrimitive () && ! FINAL_IMMUTABLE_CLASSES.contains (valueType))
+					if (ObjectUtils.typeInfo (value.getClass ()).getCloneKind () != ObjectUtils.TypeInfo.CloneKind.IMMUTABLE)
 					{
 						// value is an object reference and it could be either an array
 						// or of some mutable type: try to clone it deeply to be on the safe side
 
-						value = clone (value, objMap, metadataMap);
+						value = cloneObject (value, objMap);
 					}
 
 					field.set (dest, value);
@@ -283,25 +251,77 @@ public abstract class ReflectiveClone
 	}
 
 
-	private static final boolean DEBUG = false;
+	/*
+	 * The generated DeepCopier of each class, from the copiers of its class
+	 * loader. Holds null for classes that are not DeepCopyable, or were compiled
+	 * without the processor.
+	 */
+	private static final ClassValue <DeepCopier <?>> COPIERS = new ClassValue <DeepCopier <?>> ()
+	{
+		protected DeepCopier <?> computeValue (final Class <?> type)
+		{
+			if (ObjectUtils.typeInfo (type).getCloneKind () != ObjectUtils.TypeInfo.CloneKind.GENERATED) return null;
+			return copiers (type.getClassLoader ()).get (type); // null if compiled without the processor: fall back to reflection
+		}
+	};
 
-	private static final Set <Class> FINAL_IMMUTABLE_CLASSES; // set in <clinit>
-	private static final Object [] EMPTY_OBJECT_ARRAY = new Object [0];
-	private static final Class [] EMPTY_CLASS_ARRAY = new Class [0];
+	/*
+	 * The copiers listed in each class loader's META-INF/services entries, which
+	 * DeepCopyProcessor writes, keyed by the class each one copies. Loaded once per
+	 * class loader, with ServiceLoader.iterator(). Held weakly, so the map does not
+	 * keep a class loader alive; COPIERS keeps each class's own copier.
+	 */
+	private static final Map <ClassLoader,WeakReference <Map <Class <?>,DeepCopier <?>>>> LOADED = new WeakHashMap <ClassLoader,WeakReference <Map <Class <?>,DeepCopier <?>>>> ();
 
-	static
+	@SuppressWarnings ("rawtypes") // DeepCopier.class
+	private static Map <Class <?>,DeepCopier <?>> copiers (final ClassLoader loader)
 	{
-		FINAL_IMMUTABLE_CLASSES = new HashSet <Class> (17);
-		// add some common final/immutable classes:
-		FINAL_IMMUTABLE_CLASSES.add (String.class);
-		FINAL_IMMUTABLE_CLASSES.add (Byte.class);
-		FINAL_IMMUTABLE_CLASSES.add (Short.class);
-		FINAL_IMMUTABLE_CLASSES.add (Integer.class);
-		FINAL_IMMUTABLE_CLASSES.add (Long.class);
-		FINAL_IMMUTABLE_CLASSES.add (Float.class);
-		FINAL_IMMUTABLE_CLASSES.add (Double.class);
-		FINAL_IMMUTABLE_CLASSES.add (Character.class);
-		FINAL_IMMUTABLE_CLASSES.add (Boolean.class);
-	} 
+		synchronized (LOADED)
+		{
+			final WeakReference <Map <Class <?>,DeepCopier <?>>> ref = LOADED.get (loader);
+			Map <Class <?>,DeepCopier <?>> copiers = (ref == null) ? null : ref.get ();
+			if (copiers != null) return copiers;
+
+			copiers = new HashMap <Class <?>,DeepCopier <?>> ();
+			try
+			{
+				final Iterator <DeepCopier> i = ServiceLoader.load (DeepCopier.class, loader).iterator ();
+				while (i.hasNext ())
+				{
+					final DeepCopier <?> copier = i.next ();
+					final String name = copier.getClass ().getName ();
+					if (! name.endsWith (DeepCopier.SUFFIX)) continue;
+					try
+					{
+						final Class <?> target = Class.forName (name.substring (0, name.length () - DeepCopier.SUFFIX.length ()), false, copier.getClass ().getClassLoader ());
+						copiers.put (target, copier);
+					}
+					catch (ClassNotFoundException e)
+					{
+						// a copier left behind by a class since removed
+					}
+				}
+			}
+			catch (ServiceConfigurationError e)
+			{
+				throw new RuntimeException ("cannot load the deep copiers of class loader [" + loader + "]: " + e.toString ());
+			}
+			LOADED.put (loader, new WeakReference <Map <Class <?>,DeepCopier <?>>> (copiers));
+			return copiers;
+		}
+	}
+
+	/*
+	 * The copier in COPIERS was generated for obj's own class, so obj is a T.
+	 */
+	@SuppressWarnings ("unchecked")
+	private static <T> T copy (final DeepCopier <T> copier, final Object obj, final Map <Object,Object> objMap)
+	{
+		return copier.copy ((T) obj, objMap);
+	}
+
+	private static final boolean DEBUG = false;
+
+	private static final Object [] EMPTY_OBJECT_ARRAY = new Object [0];
 
 } // end of class
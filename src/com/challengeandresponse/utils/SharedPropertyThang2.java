@@ -0,0 +1,933 @@
+package com.challengeandresponse.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>SharedPropertyThang2 keeps namespaces of key:value pairs, like PropertyThang2, in one memory-mapped file that
+ * several JVMs on the same host open at once. Every JVM sees the same namespaces, the same values and the same claims,
+ * with no sockets and no copying: reads and writes go straight to the shared mapping.</p>
+ *
+ * <p>A claim is a file lock (FileChannel.tryLock) on 8 bytes of the namespace's slot, so the operating system keeps
+ * one claim per namespace across every process. A claim belongs to the process, not the thread, and it ends with
+ * releaseProperties(), close(), or when the process exits: the operating system drops the locks of a process that is
+ * no longer running, so the next process that wants the namespace gets it.</p>
+ *
+ * <p>Writers hold a file lock on 8 bytes of the header, so writes from all processes are serialized, and a writer
+ * that exits frees the lock with it. Readers take no lock: the writer makes a version number odd while it writes,
+ * and a reader that sees the version odd, or changed across its read, reads again.</p>
+ *
+ * <p>File layout: a 64-byte header, a table of namespace slots (name, claiming pid), a table of entry slots (hash of
+ * namespace and key, offset of the record), then records appended to the data area holding the namespace, key and value
+ * as UTF-16 chars. Every put appends a new record and then points the entry slot at it, so a value is never seen half written.
+ * The whole file must be under 2GB.</p>
+ *
+ * <p>The sizes are fixed when the file is created, and the file never grows. When the data area or the entry table fills up,
+ * the writer compacts the store under the write lock: removed entries are dropped from the table and the live records are
+ * copied down to the start of the data area. Compaction takes time and heap in proportion to the live data, and stages
+ * the compacted store in a file beside the store's ("name.compact"), so a process that exits while compacting leaves
+ * it to be finished by the next writer. What compaction cannot make room for is a hard limit:<br />
+ * - namespaces are never removed, so at most 3/4 of the namespace table can ever be created<br />
+ * - at most 3/4 of the entry table can hold keys at once<br />
+ * - the namespace names, keys and values in use must fit in the data area at once<br />
+ * A put past these limits throws IllegalStateException, so size the file for the whole store.</p>
+ *
+ * Values are Strings, converted to and from primitives as KeyValueProperties does.
+ * Open a file once per JVM, and share that SharedPropertyThang2 among threads: the JVM holds file locks per file, not
+ * per channel, and closing any channel on the file can drop this process's claims.
+ *
+ * @author jim
+ *
+ */
+public class SharedPropertyThang2 {
+
+	private static final int MAGIC = 0x50545348; // "PTSH"
+
+	// header: int magic, int namespace capacity, int entry capacity, int compacting (1 while compaction is installed), long data end,
+	// long data top, long lock (only locked by writers, never written), long version (odd while written),
+	// long used entry slots (removed ones included), long namespace count
+	private static final int HEADER = 64;
+	private static final int H_NAMESPACE_CAPACITY = 4;
+	private static final int H_ENTRY_CAPACITY = 8;
+	private static final int H_COMPACTING = 12;
+	private static final int H_END = 16;
+	private static final int H_TOP = 24;
+	private static final int H_LOCK = 32;
+	private static final int H_VERSION = 40;
+	private static final int H_USED = 48;
+	private static final int H_NAMESPACES = 56;
+
+	private static final int NS_SLOT = 32;		// long name record (0 for an empty slot), int hash, unused, long claim (only locked by the claiming process), unused
+	private static final int ENTRY_SLOT = 16;	// int hash, unused, long record (0 for an empty slot, REMOVED)
+	private static final long REMOVED = -1L;
+
+	// record: int namespace length, int key length, int value length, unused, then the chars of namespace, key and value, padded to 8 bytes
+	private static final int REC_CHARS = 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int namespaceCapacity;
+	private final int entryCapacity;
+	private final int namespaceTable;
+	private final int entryTable;
+	private final int end;
+	private final File compactFile;
+	private final ReentrantLock writeLock = new ReentrantLock(); // so one thread per JVM contends for the lock: the JVM lets only one hold it
+	private FileLock writing; // the lock on H_LOCK while this JVM writes. Guarded by writeLock
+	private final Map <String,FileLock> claims = new HashMap <String,FileLock> (); // the claims this process holds
+	private volatile int fence; // written and read to order the plain accesses to the mapping around it
+
+
+	/**
+	 * Open the shared store in 'file', creating it if it does not exist. The sizes are only used to create the file;
+	 * opening an existing file uses the sizes it was created with.
+	 * @param maxNamespaces most namespaces the store will hold
+	 * @param maxEntries most keys, over all namespaces, the store will hold
+	 * @param dataBytes size of the data area, which holds every namespace name, key and value written, at 2 bytes a char plus 16 bytes a record
+	 * @throws IOException if the file cannot be opened or is not a shared property store
+	 * @throws IllegalArgumentException if the file would be 2GB or more
+	 */
+	public SharedPropertyThang2(File file, int maxNamespaces, int maxEntries, long dataBytes)
+	throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		FileLock creating = channel.lock(0, 4, false); // only while the file is created or checked, so two processes do not both create it. The magic word only, which no claim overlaps
+		try {
+			if (channel.size() == 0) {
+				int nsCapacity = tableSize(maxNamespaces);
+				int entCapacity = tableSize(maxEntries);
+				long size = HEADER + (long) nsCapacity*NS_SLOT + (long) entCapacity*ENTRY_SLOT + ((dataBytes+7) & ~7L);
+				if (size >= Integer.MAX_VALUE)
+					throw new IllegalArgumentException("shared property store would be 2GB or more: "+size+" bytes");
+				this.file.setLength(size);
+				MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				b.putInt(H_NAMESPACE_CAPACITY, nsCapacity);
+				b.putInt(H_ENTRY_CAPACITY, entCapacity);
+				b.putLong(H_END, size);
+				b.putLong(H_TOP, HEADER + (long) nsCapacity*NS_SLOT + (long) entCapacity*ENTRY_SLOT);
+				b.putInt(0, MAGIC);
+				b.force();
+			}
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			if ((buffer.capacity() < HEADER) || (buffer.getInt(0) != MAGIC))
+				throw new IOException("not a shared property store: "+file);
+		}
+		catch (IOException | RuntimeException e) {
+			this.file.close();
+			throw e;
+		}
+		finally {
+			if (creating.isValid())
+				creating.release();
+		}
+		this.namespaceCapacity = buffer.getInt(H_NAMESPACE_CAPACITY);
+		this.entryCapacity = buffer.getInt(H_ENTRY_CAPACITY);
+		this.namespaceTable = HEADER;
+		this.entryTable = namespaceTable + namespaceCapacity*NS_SLOT;
+		this.end = (int) buffer.getLong(H_END);
+		this.compactFile = new File(file.getAbsolutePath()+".compact");
+	}
+
+	/**
+	 * @return a power of two with room for 'n' slots at 3/4 full
+	 */
+	private static int tableSize(int n) {
+		int size = 16;
+		while (size*3L < n*4L)
+			size *= 2;
+		return size;
+	}
+
+
+	/**
+	 * Claim a namespace, creating it if it does not exist. Only one claim on a namespace can be held at a time, by any process.
+	 * @param namespace
+	 * @throws UnsupportedOperationException if a running process, this one included, has already claimed the namespace
+	 * @throws IllegalStateException if the namespace table is full
+	 * @return the namespace's properties
+	 */
+	public SharedProperties getProperties(String namespace)
+	throws UnsupportedOperationException {
+		int slot = namespaceSlot(namespace);
+		synchronized (claims) {
+			FileLock claim = claims.containsKey(namespace) ? null : tryLock(slot+16);
+			if (claim == null)
+				throw new UnsupportedOperationException("Namespace: "+namespace+" has already been allocated to another caller.");
+			claims.put(namespace, claim);
+		}
+		return new SharedProperties(this, namespace);
+	}
+
+	/**
+	 * Return a namespace claimed by this process, so that the next call to getProperties() for it, from any process, succeeds.
+	 * @param namespace
+	 * @return true if this process had claimed the namespace, false if it had not
+	 */
+	public boolean releaseProperties(String namespace) {
+		synchronized (claims) {
+			FileLock claim = claims.remove(namespace);
+			if (claim == null)
+				return false;
+			release(claim);
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if 'namespace' is currently claimed by a running process
+	 */
+	public boolean isClaimed(String namespace) {
+		int slot = findNamespace(namespace);
+		if (slot < 0)
+			return false;
+		synchronized (claims) {
+			if (claims.containsKey(namespace))
+				return true;
+			FileLock probe = tryLock(slot+16);
+			if (probe == null)
+				return true;
+			release(probe);
+			return false;
+		}
+	}
+
+	/**
+	 * Try to lock the 8 bytes at 'position'. A FileChannel closes itself when a thread in it is interrupted, which would
+	 * drop every lock this process holds on the file, so the thread's interrupt is held back until the call returns
+	 * @return the lock, or null if another process holds it
+	 */
+	private FileLock tryLock(long position) {
+		boolean interrupted = Thread.interrupted();
+		try {
+			return channel.tryLock(position, 8, false);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("cannot lock shared property store: "+e.toString());
+		}
+		finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void release(FileLock lock) {
+		try {
+			lock.release();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("cannot unlock shared property store: "+e.toString());
+		}
+	}
+
+
+	/**
+	 * Write all changes made so far to disk. Other processes see changes without this
+	 */
+	public void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Close the file. This ends every claim this process holds on it
+	 */
+	public void close()
+	throws IOException {
+		file.close();
+	}
+
+
+
+	//// the write lock and the version readers check
+
+	private void lock() {
+		writeLock.lock();
+		try {
+			for (int spins = 1; (writing = tryLock(H_LOCK)) == null; spins++)
+				pause(spins);
+		}
+		catch (RuntimeException e) {
+			writeLock.unlock();
+			throw e;
+		}
+		// odd: readers wait and retry. It is already odd if the last writer exited part way through a write: records are
+		// complete before they are published, so the store is usable as it is, unless it was compacting (finished below)
+		long v = buffer.getLong(H_VERSION);
+		buffer.putLong(H_VERSION, ((v & 1) == 0) ? v+1 : v+2);
+		fence();
+		if (buffer.getInt(H_COMPACTING) != 0) {
+			try {
+				finishCompaction();
+			}
+			catch (RuntimeException e) {
+				unlock();
+				throw e;
+			}
+		}
+	}
+
+	private void unlock() {
+		fence();
+		buffer.putLong(H_VERSION, buffer.getLong(H_VERSION)+1);
+		fence();
+		try {
+			release(writing);
+		}
+		finally {
+			writing = null;
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the (even) version to validate a read against once it is done
+	 */
+	private long beginRead() {
+		for (int spins = 1; ; spins++) {
+			long v = buffer.getLong(H_VERSION);
+			fence();
+			if ((v & 1) == 0)
+				return v;
+			if ((spins & 65535) == 0) { // a writer may have exited mid-write: taking the lock, once any live writer is done, repairs the version
+				lock();
+				unlock();
+			}
+			pause(spins);
+		}
+	}
+
+	/**
+	 * @return true if no write happened since beginRead() returned 'v', so what was read in between is consistent
+	 */
+	private boolean validate(long v) {
+		fence();
+		return buffer.getLong(H_VERSION) == v;
+	}
+
+	/**
+	 * Keep the plain reads and writes of the mapping before this call ahead of those after it. The volatile write keeps
+	 * earlier accesses before it, and the volatile read of the same field keeps later ones after it
+	 */
+	private int fence() {
+		fence = 0;
+		return fence;
+	}
+
+	private static void pause(int spins) {
+		if (spins >= 100)
+			Thread.yield();
+	}
+
+
+
+	//// tables and records. Readers of these may see a write in progress, so every offset and length is checked
+
+	private int namespaceSlot(String namespace) {
+		int slot = findNamespace(namespace);
+		if (slot >= 0)
+			return slot;
+		lock();
+		try {
+			int hash = namespace.hashCode();
+			int mask = namespaceCapacity-1;
+			for (int i = hash & mask; ; i = (i+1) & mask) {
+				slot = namespaceTable + i*NS_SLOT;
+				long rec = buffer.getLong(slot);
+				if (rec == 0) {
+					long count = buffer.getLong(H_NAMESPACES);
+					if ((count+1)*4 > namespaceCapacity*3L)
+						throw new IllegalStateException("shared property store is full: "+count+" namespaces");
+					makeRoom(recordSize(namespace.length(), 0, 0), false); // namespace slots do not move
+					rec = append(namespace, "", "");
+					buffer.putInt(slot+8, hash);
+					buffer.putLong(slot, rec);
+					buffer.putLong(H_NAMESPACES, count+1);
+					return slot;
+				}
+				if ((buffer.getInt(slot+8) == hash) && matches((int) rec, namespace, ""))
+					return slot; // created by another thread or process since the lookup
+			}
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * @return the slot of 'namespace', or -1 if it does not exist
+	 */
+	private int findNamespace(String namespace) {
+		int hash = namespace.hashCode();
+		int mask = namespaceCapacity-1;
+		for (;;) {
+			long v = beginRead();
+			int found = -1;
+			try {
+				for (int i = hash & mask, n = 0; n < namespaceCapacity; i = (i+1) & mask, n++) {
+					int slot = namespaceTable + i*NS_SLOT;
+					long rec = buffer.getLong(slot);
+					if (rec == 0)
+						break;
+					if ((buffer.getInt(slot+8) == hash) && matches(checked(rec), namespace, "")) {
+						found = slot;
+						break;
+					}
+				}
+			}
+			catch (RuntimeException e) {
+				if (validate(v))
+					throw e;
+				continue;
+			}
+			if (validate(v))
+				return found;
+		}
+	}
+
+	/**
+	 * @return the entry slot of (namespace,key), or -1 if there is none. Caller holds the lock or validates the read
+	 */
+	private int findEntry(String namespace, String key, int hash) {
+		int mask = entryCapacity-1;
+		for (int i = hash & mask, n = 0; n < entryCapacity; i = (i+1) & mask, n++) {
+			int slot = entryTable + i*ENTRY_SLOT;
+			long rec = buffer.getLong(slot+8);
+			if (rec == 0)
+				return -1;
+			if ((rec != REMOVED) && (buffer.getInt(slot) == hash) && matches(checked(rec), namespace, key))
+				return slot;
+		}
+		return -1;
+	}
+
+	private int checked(long rec) {
+		if ((rec < HEADER) || (rec+REC_CHARS > end))
+			throw new IllegalStateException("bad record offset "+rec);
+		return (int) rec;
+	}
+
+	private boolean matches(int rec, String namespace, String key) {
+		if ((buffer.getInt(rec) != namespace.length()) || (buffer.getInt(rec+4) != key.length()))
+			return false;
+		int pos = rec+REC_CHARS;
+		if (pos + 2L*(namespace.length()+key.length()) > end)
+			throw new IllegalStateException("bad record at "+rec);
+		for (int i = 0; i < namespace.length(); i++, pos += 2)
+			if (buffer.getChar(pos) != namespace.charAt(i))
+				return false;
+		for (int i = 0; i < key.length(); i++, pos += 2)
+			if (buffer.getChar(pos) != key.charAt(i))
+				return false;
+		return true;
+	}
+
+	private String chars(int pos, int len) {
+		if ((len < 0) || (pos + 2L*len > end))
+			throw new IllegalStateException("bad string at "+pos);
+		char[] c = new char[len];
+		for (int i = 0; i < len; i++, pos += 2)
+			c[i] = buffer.getChar(pos);
+		return new String(c);
+	}
+
+	private String value(int rec) {
+		return chars(rec+REC_CHARS+2*(buffer.getInt(rec)+buffer.getInt(rec+4)), buffer.getInt(rec+8));
+	}
+
+	private String key(int rec) {
+		return chars(rec+REC_CHARS+2*buffer.getInt(rec), buffer.getInt(rec+4));
+	}
+
+	/**
+	 * Append a record. Caller holds the lock
+	 * @return its offset
+	 */
+	private long append(String namespace, String key, String value) {
+		long top = buffer.getLong(H_TOP);
+		long size = recordSize(namespace.length(), key.length(), value.length());
+		if (top+size > end)
+			throw new IllegalStateException("shared property store is full: no room for "+size+" more bytes");
+		int rec = (int) top;
+		buffer.putInt(rec, namespace.length());
+		buffer.putInt(rec+4, key.length());
+		buffer.putInt(rec+8, value.length());
+		int pos = rec+REC_CHARS;
+		pos = putChars(pos, namespace);
+		pos = putChars(pos, key);
+		putChars(pos, value);
+		buffer.putLong(H_TOP, top+size);
+		return top;
+	}
+
+	private int putChars(int pos, String s) {
+		for (int i = 0; i < s.length(); i++, pos += 2)
+			buffer.putChar(pos, s.charAt(i));
+		return pos;
+	}
+
+	private static long recordSize(int namespaceLength, int keyLength, int valueLength) {
+		return (REC_CHARS + 2L*(namespaceLength+keyLength+valueLength) + 7) & ~7L;
+	}
+
+	private int recordSize(int rec) {
+		return (int) recordSize(buffer.getInt(rec), buffer.getInt(rec+4), buffer.getInt(rec+8));
+	}
+
+	/**
+	 * Compact the store if a record of 'bytes' would not fit in the data area, or if 'newEntry' and the entry table
+	 * is 3/4 full counting removed slots. Caller holds the lock
+	 * @return true if the store was compacted, which moves every entry slot and record
+	 */
+	private boolean makeRoom(long bytes, boolean newEntry) {
+		if ((buffer.getLong(H_TOP)+bytes <= end) && ((! newEntry) || ((buffer.getLong(H_USED)+1)*4 <= entryCapacity*3L)))
+			return false;
+		compact();
+		return true;
+	}
+
+
+	//// compaction. The compacted entry table and data area are built on the heap and written to compactFile before
+	//// they are copied over the store, so a writer that exits part way through is finished by the next one (see lock())
+
+	/**
+	 * Drop removed entries and dead records. Caller holds the lock
+	 */
+	private void compact() {
+		long size = (long) entryCapacity*ENTRY_SLOT;
+		int live = 0;
+		for (int i = 0; i < namespaceCapacity; i++) {
+			long rec = buffer.getLong(namespaceTable + i*NS_SLOT);
+			if (rec != 0)
+				size += recordSize(checked(rec));
+		}
+		for (int i = 0; i < entryCapacity; i++) {
+			long rec = buffer.getLong(entryTable + i*ENTRY_SLOT + 8);
+			if ((rec != 0) && (rec != REMOVED)) {
+				size += recordSize(checked(rec));
+				live++;
+			}
+		}
+
+		ByteBuffer image = ByteBuffer.allocate((int) size); // the entry table, then the data area
+		ByteBuffer from = buffer.duplicate();
+		long[] names = new long[namespaceCapacity];
+		int top = entryCapacity*ENTRY_SLOT;
+		for (int i = 0; i < namespaceCapacity; i++) {
+			int rec = (int) buffer.getLong(namespaceTable + i*NS_SLOT);
+			if (rec != 0) {
+				names[i] = entryTable + top;
+				top = copyRecord(from, rec, image, top);
+			}
+		}
+		int mask = entryCapacity-1;
+		for (int i = 0; i < entryCapacity; i++) {
+			int slot = entryTable + i*ENTRY_SLOT;
+			long rec = buffer.getLong(slot+8);
+			if ((rec == 0) || (rec == REMOVED))
+				continue;
+			int hash = buffer.getInt(slot);
+			int j = hash & mask;
+			while (image.getLong(j*ENTRY_SLOT + 8) != 0)
+				j = (j+1) & mask;
+			image.putInt(j*ENTRY_SLOT, hash);
+			image.putLong(j*ENTRY_SLOT + 8, entryTable + top);
+			top = copyRecord(from, (int) rec, image, top);
+		}
+
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compactFile)));
+			try {
+				out.writeLong(live);
+				for (long name : names)
+					out.writeLong(name);
+				out.writeInt(image.capacity());
+				out.write(image.array());
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException("cannot compact shared property store: "+e.toString());
+		}
+		buffer.putInt(H_COMPACTING, 1);
+		install(names, live, image);
+	}
+
+	/**
+	 * Copy the record at 'rec' to 'pos' in 'image'
+	 * @return the position after it
+	 */
+	private int copyRecord(ByteBuffer from, int rec, ByteBuffer image, int pos) {
+		int size = recordSize(rec);
+		from.limit(rec+size).position(rec);
+		image.position(pos);
+		image.put(from);
+		from.limit(from.capacity());
+		return pos+size;
+	}
+
+	/**
+	 * Copy a compacted entry table and data area over the store's. Caller holds the lock
+	 * @param names the new record offsets of the namespace names, 0 for empty slots
+	 */
+	private void install(long[] names, long used, ByteBuffer image) {
+		for (int i = 0; i < namespaceCapacity; i++)
+			if (names[i] != 0)
+				buffer.putLong(namespaceTable + i*NS_SLOT, names[i]); // claims are file locks on the slots, which do not move
+		ByteBuffer to = buffer.duplicate();
+		to.position(entryTable);
+		image.clear();
+		to.put(image);
+		buffer.putLong(H_TOP, entryTable + image.capacity());
+		buffer.putLong(H_USED, used);
+		buffer.putInt(H_COMPACTING, 0);
+		compactFile.delete();
+	}
+
+	/**
+	 * Install the compaction staged in compactFile by a writer that did not finish it. Caller holds the lock
+	 */
+	private void finishCompaction() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(compactFile)));
+			try {
+				long used = in.readLong();
+				long[] names = new long[namespaceCapacity];
+				for (int i = 0; i < namespaceCapacity; i++)
+					names[i] = in.readLong();
+				byte[] image = new byte[in.readInt()];
+				in.readFully(image);
+				install(names, used, ByteBuffer.wrap(image));
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException("cannot finish compacting shared property store from "+compactFile+": "+e.toString());
+		}
+	}
+
+
+	String get(String namespace, String key) {
+		int hash = MappedPropertyStore.hash(namespace, key);
+		for (;;) {
+			long v = beginRead();
+			String result = null;
+			try {
+				int slot = findEntry(namespace, key, hash);
+				if (slot >= 0)
+					result = value(checked(buffer.getLong(slot+8)));
+			}
+			catch (RuntimeException e) {
+				if (validate(v))
+					throw e;
+				continue;
+			}
+			if (validate(v))
+				return result;
+		}
+	}
+
+	void put(String namespace, String key, String value) {
+		int hash = MappedPropertyStore.hash(namespace, key);
+		lock();
+		try {
+			// always a new record, published by swapping the slot's offset: a value overwritten in place could be left torn by a process that exits mid-write
+			int slot = findEntry(namespace, key, hash);
+			if (makeRoom(recordSize(namespace.length(), key.length(), value.length()), slot < 0))
+				slot = findEntry(namespace, key, hash);
+			if (slot >= 0) {
+				buffer.putLong(slot+8, append(namespace, key, value));
+				return;
+			}
+			long used = buffer.getLong(H_USED);
+			if ((used+1)*4 > entryCapacity*3L) // only removed slots are reclaimed, and compaction just did that
+				throw new IllegalStateException("shared property store is full: "+used+" entries");
+			long rec = append(namespace, key, value);
+			int mask = entryCapacity-1;
+			for (int i = hash & mask; ; i = (i+1) & mask) {
+				slot = entryTable + i*ENTRY_SLOT;
+				long r = buffer.getLong(slot+8);
+				if ((r == 0) || (r == REMOVED)) {
+					if (r == 0)
+						buffer.putLong(H_USED, used+1);
+					buffer.putInt(slot, hash);
+					buffer.putLong(slot+8, rec);
+					return;
+				}
+			}
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	boolean remove(String namespace, String key) {
+		lock();
+		try {
+			int slot = findEntry(namespace, key, MappedPropertyStore.hash(namespace, key));
+			if (slot < 0)
+				return false;
+			int mask = entryCapacity-1;
+			int i = (slot-entryTable) / ENTRY_SLOT;
+			if (buffer.getLong(entryTable + ((i+1) & mask)*ENTRY_SLOT + 8) != 0) {
+				buffer.putLong(slot+8, REMOVED); // a later key may have probed past this slot
+				return true;
+			}
+			// the end of a probe run: this slot, and the removed ones before it, can be emptied
+			long used = buffer.getLong(H_USED);
+			do {
+				buffer.putLong(entryTable + i*ENTRY_SLOT + 8, 0L);
+				used--;
+				i = (i-1) & mask;
+			} while (buffer.getLong(entryTable + i*ENTRY_SLOT + 8) == REMOVED);
+			buffer.putLong(H_USED, used);
+			return true;
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * @return the keys of 'namespace'. This scans the whole entry table
+	 */
+	Set <String> keys(String namespace) {
+		for (;;) {
+			long v = beginRead();
+			Set <String> result = new HashSet <String> ();
+			try {
+				for (int i = 0; i < entryCapacity; i++) {
+					int slot = entryTable + i*ENTRY_SLOT;
+					long rec = buffer.getLong(slot+8);
+					if ((rec == 0) || (rec == REMOVED))
+						continue;
+					int r = checked(rec);
+					if (matchesNamespace(r, namespace))
+						result.add(key(r));
+				}
+			}
+			catch (RuntimeException e) {
+				if (validate(v))
+					throw e;
+				continue;
+			}
+			if (validate(v))
+				return result;
+		}
+	}
+
+	private boolean matchesNamespace(int rec, String namespace) {
+		if (buffer.getInt(rec) != namespace.length())
+			return false;
+		int pos = rec+REC_CHARS;
+		if (pos + 2L*namespace.length() > end)
+			throw new IllegalStateException("bad record at "+rec);
+		for (int i = 0; i < namespace.length(); i++, pos += 2)
+			if (buffer.getChar(pos) != namespace.charAt(i))
+				return false;
+		return true;
+	}
+
+
+
+	/**
+	 * One namespace of a shared store, with the getters and setters of KeyValueProperties. Values are stored as Strings.
+	 * Every call reads or writes the shared file, so changes made by other processes are seen at once.
+	 */
+	public static final class SharedProperties {
+		private final SharedPropertyThang2 store;
+		private final String namespace;
+
+		SharedProperties(SharedPropertyThang2 store, String namespace) {
+			this.store = store;
+			this.namespace = namespace;
+		}
+
+		public String getNamespace() {
+			return namespace;
+		}
+
+		/**
+		 * @throws NullPointerException if key or value is null
+		 */
+		public void setProperty(String key, String value) {
+			if ((key == null) || (value == null))
+				throw new NullPointerException("key and value cannot be null");
+			store.put(namespace, key, value);
+		}
+
+		public void setProperty(String key, int value) {
+			setProperty(key, String.valueOf(value));
+		}
+
+		public void setProperty(String key, long value) {
+			setProperty(key, String.valueOf(value));
+		}
+
+		public void setProperty(String key, double value) {
+			setProperty(key, String.valueOf(value));
+		}
+
+		public void setProperty(String key, boolean value) {
+			setProperty(key, String.valueOf(value));
+		}
+
+		/**
+		 * @return the value of 'key', or null if it is not set
+		 */
+		public String getProperty(String key) {
+			return (key == null) ? null : store.get(namespace, key);
+		}
+
+		public String getStringProperty(String key, String dflt) {
+			String value = getProperty(key);
+			return (value != null) ? value : dflt;
+		}
+
+		public int getIntProperty(String key, int dflt) {
+			try {
+				String value = getProperty(key);
+				if (value != null)
+					return Integer.parseInt(value);
+			}
+			catch (NumberFormatException e) {
+			}
+			return dflt;
+		}
+
+		public long getLongProperty(String key, long dflt) {
+			try {
+				String value = getProperty(key);
+				if (value != null)
+					return Long.parseLong(value);
+			}
+			catch (NumberFormatException e) {
+			}
+			return dflt;
+		}
+
+		public double getDoubleProperty(String key, double dflt) {
+			try {
+				String value = getProperty(key);
+				if (value != null)
+					return Double.parseDouble(value);
+			}
+			catch (NumberFormatException e) {
+			}
+			return dflt;
+		}
+
+		public boolean getBooleanProperty(String key, boolean dflt) {
+			String value = getProperty(key);
+			return (value != null) ? Boolean.parseBoolean(value) : dflt;
+		}
+
+		public boolean containsKey(String key) {
+			return getProperty(key) != null;
+		}
+
+		/**
+		 * @return true if 'key' was set and has been removed
+		 */
+		public boolean remove(String key) {
+			return (key != null) && store.remove(namespace, key);
+		}
+
+		/**
+		 * @return a copy of the namespace's keys. This scans the whole store
+		 */
+		public Set <String> keySet() {
+			return store.keys(namespace);
+		}
+	}
+
+
+
+
+	// for testing. Run with no arguments; the test runs a second JVM ("child <file>") to check sharing between processes
+	public static void main(String[] args)
+	throws Exception {
+		if ((args.length == 2) && args[0].equals("child")) {
+			SharedPropertyThang2 child = new SharedPropertyThang2(new File(args[1]), 0, 0, 0);
+			try {
+				child.getProperties("NS1");
+				System.out.println("FAIL: child claimed a namespace held by the parent");
+			}
+			catch (UnsupportedOperationException e) {
+				System.out.println("OK: child could not claim the parent's namespace");
+			}
+			System.out.println("hey".equals(new SharedProperties(child, "NS1").getProperty("STRING")) ? "OK: child reads the parent's value" : "FAIL: child cannot see the parent's value");
+			SharedProperties ns2 = child.getProperties("NS2");
+			ns2.setProperty("fromChild", 7);
+			return; // exits holding its claim on NS2
+		}
+
+		File file = new File(System.getProperty("java.io.tmpdir"), "SharedPropertyThang2-"+System.nanoTime());
+		SharedPropertyThang2 pt = new SharedPropertyThang2(file, 100, 10000, 1 << 20);
+		SharedProperties ns1 = pt.getProperties("NS1");
+		ns1.setProperty("INT", 132);
+		ns1.setProperty("STRING", "hey");
+		ns1.setProperty("INT", 1322);
+		ns1.setProperty("LONGISH", 123L);
+		System.out.println((ns1.getIntProperty("INT",-1) == 1322) ? "OK: INT=1322" : "FAIL: INT="+ns1.getProperty("INT"));
+		System.out.println((ns1.getIntProperty("eeee",-1) == -1) ? "OK: missing key gives the default" : "FAIL: eeee="+ns1.getProperty("eeee"));
+		try {
+			pt.getProperties("NS1");
+			System.out.println("FAIL: Did not throw exception on 2nd attempt to allocate a namespace");
+		}
+		catch (UnsupportedOperationException e) {
+			System.out.println("OK: Threw exception on 2nd attempt to allocate a namespace");
+		}
+		ns1.remove("LONGISH");
+		System.out.println((ns1.keySet().equals(new HashSet <String> (Arrays.asList("INT","STRING")))) ? "OK: keys are [INT, STRING]" : "FAIL: keys are "+ns1.keySet());
+
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), SharedPropertyThang2.class.getName(), "child", file.getPath())
+			.inheritIO().start();
+		child.waitFor();
+		SharedProperties ns2 = new SharedProperties(pt, "NS2");
+		System.out.println((ns2.getIntProperty("fromChild",-1) == 7) ? "OK: parent reads the child's value" : "FAIL: fromChild="+ns2.getProperty("fromChild"));
+		System.out.println((! pt.isClaimed("NS2")) ? "OK: the exited child's claim has lapsed" : "FAIL: NS2 still claimed");
+		try {
+			pt.getProperties("NS2");
+			System.out.println("OK: took over the exited child's namespace");
+		}
+		catch (UnsupportedOperationException e) {
+			System.out.println("FAIL: could not take over the exited child's namespace");
+		}
+		System.out.println((pt.releaseProperties("NS1") && (! pt.isClaimed("NS1"))) ? "OK: NS1 released" : "FAIL: NS1 not released");
+		pt.close();
+		file.delete();
+
+		// a small store rewritten many times over: compaction must keep making room
+		file = new File(System.getProperty("java.io.tmpdir"), "SharedPropertyThang2-"+System.nanoTime());
+		pt = new SharedPropertyThang2(file, 4, 16, 2048);
+		SharedProperties small = pt.getProperties("SMALL");
+		try {
+			for (int i = 0; i < 100000; i++) {
+				small.setProperty("k"+(i % 10), i);
+				small.setProperty("t"+i, "temporary");
+				small.remove("t"+i);
+			}
+			boolean ok = small.keySet().size() == 10;
+			for (int i = 0; i < 10; i++)
+				ok &= small.getIntProperty("k"+i, -1) == 99990+i;
+			System.out.println(ok ? "OK: 300000 writes to a 2K store" : "FAIL: wrong values after compaction: "+small.keySet());
+			System.out.println(pt.isClaimed("SMALL") ? "OK: claim survives compaction" : "FAIL: claim lost in compaction");
+		}
+		catch (IllegalStateException e) {
+			System.out.println("FAIL: "+e.getMessage());
+		}
+		pt.close();
+		file.delete();
+	}
+
+}
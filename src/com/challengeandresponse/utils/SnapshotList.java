@@ -0,0 +1,320 @@
+package com.challengeandresponse.utils;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A list that writers keep appending to while any number of readers take consistent snapshots of it, without copying
+ * the list and without locking readers out.
+ *
+ * <p>Elements are kept in fixed-size chunks, found through a spine of chunk references. The list's state is the spine
+ * and the size, published together through one volatile field. A snapshot is just that (spine, size) pair: appends only
+ * write beyond the size of every snapshot taken so far, so they never disturb one, and set() copies the chunk it changes
+ * (and the spine) instead of writing into memory a snapshot can see. Taking a snapshot costs one small object.</p>
+ *
+ * <p>Iterating this list iterates a snapshot taken when the iteration starts, so readers never see a
+ * ConcurrentModificationException and never see half of a change. get() and size() read the latest state.</p>
+ *
+ * Only appending, set() and clear() are supported; removing an element, directly or through a subList(), throws
+ * UnsupportedOperationException. The iterators read a snapshot, and their remove() does nothing.
+ *
+ * MT-safety: safe for any number of readers and writers. Writers are serialized by the list's lock, readers take no lock.
+ *
+ * @author jim
+ *
+ */
+public class SnapshotList <E> extends AbstractList <E> implements RandomAccess {
+
+	private static final int CHUNK_BITS = 6;
+	private static final int CHUNK = 1 << CHUNK_BITS;
+	private static final int MASK = CHUNK-1;
+
+	/**
+	 * The spine and size published together. Neither array is ever written at an index below 'size',
+	 * so a State, once published, never changes as seen through it
+	 */
+	private static final class State {
+		final Object[][] spine;
+		final int size;
+
+		State(Object[][] spine, int size) {
+			this.spine = spine;
+			this.size = size;
+		}
+	}
+
+	private volatile State state = new State(new Object[4][], 0);
+
+
+	public SnapshotList() {
+	}
+
+	public SnapshotList(Collection<? extends E> c) {
+		addAll(c);
+	}
+
+
+	/**
+	 * @return a read-only list of the elements as they are now. Later changes to this list do not show in it
+	 */
+	public ReadonlyList <E> snapshot() {
+		return ReadonlyList.of(new Snapshot <E> (state));
+	}
+
+
+	public int size() {
+		return state.size;
+	}
+
+	public E get(int index) {
+		return Snapshot.get(state, index);
+	}
+
+	/**
+	 * Append 'e'. This writes into the last chunk, past the end of every snapshot, or starts a new chunk
+	 */
+	public synchronized boolean add(E e) {
+		State s = state;
+		Object[][] spine = s.spine;
+		int size = s.size;
+		int c = size >>> CHUNK_BITS;
+		if (c == spine.length)
+			spine = Arrays.copyOf(spine, spine.length*2);
+		if (spine[c] == null)
+			spine[c] = new Object[CHUNK];
+		spine[c][size & MASK] = e;
+		state = new State(spine, size+1);
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Append every element of 'c', publishing them all at once
+	 */
+	public synchronized boolean addAll(Collection<? extends E> c) {
+		State s = state;
+		Object[][] spine = s.spine;
+		int size = s.size;
+		for (E e : c) {
+			int chunk = size >>> CHUNK_BITS;
+			if (chunk == spine.length)
+				spine = Arrays.copyOf(spine, spine.length*2);
+			if (spine[chunk] == null)
+				spine[chunk] = new Object[CHUNK];
+			spine[chunk][size & MASK] = e;
+			size++;
+		}
+		if (size == s.size)
+			return false;
+		state = new State(spine, size);
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Replace the element at 'index'. Snapshots may be reading its chunk, so the chunk and the spine are copied rather than written
+	 */
+	public synchronized E set(int index, E element) {
+		State s = state;
+		checkIndex(index, s.size);
+		Object[][] spine = s.spine.clone();
+		Object[] chunk = spine[index >>> CHUNK_BITS].clone();
+		@SuppressWarnings("unchecked")
+		E previous = (E) chunk[index & MASK];
+		chunk[index & MASK] = element;
+		spine[index >>> CHUNK_BITS] = chunk;
+		state = new State(spine, s.size);
+		return previous;
+	}
+
+	/**
+	 * Empty the list. Snapshots keep their elements
+	 */
+	public synchronized void clear() {
+		state = new State(new Object[4][], 0);
+		modCount++;
+	}
+
+	/** Not supported: removing would shift elements that snapshots may be reading */
+	public E remove(int index) {
+		throw new UnsupportedOperationException("SnapshotList only appends");
+	}
+
+	/** Not supported: removing would shift elements that snapshots may be reading */
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException("SnapshotList only appends");
+	}
+
+	/** Not supported: removing would shift elements that snapshots may be reading */
+	public boolean removeAll(Collection<?> c) {
+		throw new UnsupportedOperationException("SnapshotList only appends");
+	}
+
+	/** Not supported: removing would shift elements that snapshots may be reading */
+	public boolean retainAll(Collection<?> c) {
+		throw new UnsupportedOperationException("SnapshotList only appends");
+	}
+
+	/** Not supported: removing would shift elements that snapshots may be reading */
+	public boolean removeIf(java.util.function.Predicate<? super E> filter) {
+		throw new UnsupportedOperationException("SnapshotList only appends");
+	}
+
+	/** Not supported, so subList(from,to).clear() throws too */
+	protected void removeRange(int fromIndex, int toIndex) {
+		throw new UnsupportedOperationException("SnapshotList only appends");
+	}
+
+	/**
+	 * @return an iterator over a snapshot taken now
+	 */
+	public Iterator <E> iterator() {
+		return snapshot().iterator();
+	}
+
+	public ListIterator <E> listIterator(int index) {
+		return snapshot().listIterator(index);
+	}
+
+	public Spliterator <E> spliterator() {
+		return snapshot().spliterator();
+	}
+
+	public void forEach(Consumer<? super E> action) {
+		snapshot().forEach(action);
+	}
+
+	public Object[] toArray() {
+		return snapshot().toArray();
+	}
+
+	public <T> T[] toArray(T[] a) {
+		return snapshot().toArray(a);
+	}
+
+
+
+	private static void checkIndex(int index, int size) {
+		if ((index < 0) || (index >= size))
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+	}
+
+
+
+	/**
+	 * One (spine, size) state, as an unchangeable list
+	 */
+	private static final class Snapshot <E> extends AbstractList <E> implements RandomAccess {
+		private final State state;
+
+		Snapshot(State state) {
+			this.state = state;
+		}
+
+		@SuppressWarnings("unchecked")
+		static <E> E get(State s, int index) {
+			checkIndex(index, s.size);
+			return (E) s.spine[index >>> CHUNK_BITS][index & MASK];
+		}
+
+		public E get(int index) {
+			return get(state, index);
+		}
+
+		public int size() {
+			return state.size;
+		}
+
+		public void forEach(Consumer<? super E> action) {
+			Object[][] spine = state.spine;
+			int size = state.size;
+			for (int c = 0; (c << CHUNK_BITS) < size; c++) {
+				Object[] chunk = spine[c];
+				int n = Math.min(CHUNK, size - (c << CHUNK_BITS));
+				for (int i = 0; i < n; i++) {
+					@SuppressWarnings("unchecked")
+					E e = (E) chunk[i];
+					action.accept(e);
+				}
+			}
+		}
+
+		public Object[] toArray() {
+			Object[] result = new Object[state.size];
+			Object[][] spine = state.spine;
+			for (int at = 0; at < result.length; at += CHUNK)
+				System.arraycopy(spine[at >>> CHUNK_BITS], 0, result, at, Math.min(CHUNK, result.length-at));
+			return result;
+		}
+	}
+
+
+
+	// for testing
+	public static void main(String[] args)
+	throws InterruptedException {
+		final SnapshotList <Integer> list = new SnapshotList <Integer> ();
+		for (int i = 0; i < 1000; i++)
+			list.add(Integer.valueOf(i));
+		ReadonlyList <Integer> before = list.snapshot();
+		list.set(5, Integer.valueOf(-5));
+		for (int i = 1000; i < 2000; i++)
+			list.add(Integer.valueOf(i));
+		System.out.println((before.size() == 1000) && (before.get(5).intValue() == 5) ? "OK: snapshot unchanged by set and appends" : "FAIL: snapshot changed");
+		System.out.println((list.size() == 2000) && (list.get(5).intValue() == -5) ? "OK: list has the changes" : "FAIL: list is missing changes");
+		System.out.println((list.snapshot() instanceof RandomAccess) ? "OK: snapshots are RandomAccess" : "FAIL: snapshot not RandomAccess");
+		final SnapshotList <Integer> small = new SnapshotList <Integer> (Arrays.asList(1, 2, 3));
+		Runnable[] removals = new Runnable[] {
+			new Runnable() { public void run() { small.remove(Integer.valueOf(2)); } },
+			new Runnable() { public void run() { small.remove(0); } },
+			new Runnable() { public void run() { small.removeAll(Collections.singleton(2)); } },
+			new Runnable() { public void run() { small.retainAll(Collections.singleton(2)); } },
+			new Runnable() { public void run() { small.removeIf(i -> i.intValue() == 2); } },
+			new Runnable() { public void run() { small.subList(0, 2).clear(); } }
+		};
+		String[] names = new String[] {"remove(Object)", "remove(int)", "removeAll", "retainAll", "removeIf", "subList().clear()"};
+		for (int r = 0; r < removals.length; r++) {
+			try {
+				removals[r].run();
+				System.out.println("FAIL: "+names[r]+" did not throw");
+			}
+			catch (UnsupportedOperationException e) {
+				System.out.println((small.size() == 3) ? "OK: "+names[r]+" throws and leaves the list alone" : "FAIL: "+names[r]+" changed the list");
+			}
+		}
+
+		// a writer appends while readers iterate: every iteration must see an unbroken prefix 0,1,2,...
+		final SnapshotList <Integer> shared = new SnapshotList <Integer> ();
+		final boolean[] broken = new boolean[1];
+		Thread writer = new Thread() {
+			public void run() {
+				for (int i = 0; i < 200000; i++)
+					shared.add(Integer.valueOf(i));
+			}
+		};
+		Thread[] readers = new Thread[3];
+		for (int r = 0; r < readers.length; r++) {
+			readers[r] = new Thread() {
+				public void run() {
+					for (int pass = 0; pass < 200; pass++) {
+						int expect = 0;
+						for (Integer i : shared) {
+							if (i.intValue() != expect++)
+								broken[0] = true;
+						}
+					}
+				}
+			};
+		}
+		writer.start();
+		for (Thread t : readers)
+			t.start();
+		writer.join();
+		for (Thread t : readers)
+			t.join();
+		System.out.println((! broken[0]) ? "OK: readers iterated consistent snapshots while the writer appended" : "FAIL: a reader saw an inconsistent list");
+		long sum = shared.parallelStream().mapToLong(Integer::longValue).sum();
+		System.out.println((sum == 199999L*200000L/2) ? "OK: parallel sum of a snapshot" : "FAIL: sum="+sum);
+	}
+
+}